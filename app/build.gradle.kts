@@ -47,6 +47,18 @@ android {
     buildFeatures {
         viewBinding = true
     }
+    sourceSets {
+        // JVM tests read the trusted keys and the certificate fixtures too
+        getByName("test").resources.srcDirs("src/main/assets", "src/androidTest/assets")
+    }
+    testOptions {
+        // android.util.Log and friends are no-ops in JVM tests
+        unitTests.isReturnDefaultValues = true
+        unitTests.all {
+            // -Pbenchmark.large adds the largest sizes to the JVM benchmarks
+            it.systemProperty("benchmark.large", project.hasProperty("benchmark.large"))
+        }
+    }
 
     ndkVersion = "25.1.8937393" // NDK version
 
@@ -65,6 +77,7 @@ dependencies {
     implementation(libs.material)
     implementation(libs.constraintlayout)
     testImplementation(libs.junit)
+    testImplementation("org.json:json:20231013") // Real org.json for JVM tests, android.jar only has stubs
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
     implementation("androidx.appcompat:appcompat:1.6.1")
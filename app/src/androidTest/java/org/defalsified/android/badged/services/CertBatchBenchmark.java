@@ -0,0 +1,143 @@
+package org.defalsified.android.badged.services;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput of {@link Cert#verifyBatch} by worker thread count
+ *
+ * Verifies the same batch with 1, 2, 4 ... threads up to the core count
+ * and logs certificates per second for each under the tag
+ * {@value #TAG}. Every run must give the statuses of the one-thread run.
+ * A second test puts the native and pure Java backends side by side. The
+ * batch repeats the {@link CertFixtures}, with their issuer trusted, so
+ * most certificates go through both signature checks.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CertBatchBenchmark {
+    private static final String TAG = "CertBatchBenchmark";
+    private static final int BATCH_SIZE = 512;
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    private byte[][] fixtureKeys;
+
+    @Before
+    public void setUp() throws Exception {
+        fixtureKeys = CertFixtures.fixtureKeys();
+        assertTrue(Cert.setTrustedKeys(fixtureKeys) > 0);
+    }
+
+    @After
+    public void tearDown() {
+        // Put back the keys the app runs with
+        TrustStore.open(InstrumentationRegistry.getInstrumentation().getTargetContext()).reload();
+    }
+
+    @Test
+    public void throughputScalesWithThreads() throws Exception {
+        List<CertFixtures.Fixture> fixtures = CertFixtures.load();
+        assertFalse("No certificates in test assets", fixtures.isEmpty());
+        byte[][] batch = batch(fixtures);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] expected = Cert.verifyBatch(batch, 1);
+        assertEquals(BATCH_SIZE, expected.length);
+        assertStatuses(fixtures, expected);
+
+        StringBuilder report = new StringBuilder();
+        for (int threads = 1; threads <= cores; threads = next(threads, cores)) {
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                Cert.verifyBatch(batch, threads);
+            }
+
+            long[] nanos = new long[MEASURED_RUNS];
+            for (int i = 0; i < MEASURED_RUNS; i++) {
+                long started = System.nanoTime();
+                int[] statuses = Cert.verifyBatch(batch, threads);
+                nanos[i] = System.nanoTime() - started;
+                assertArrayEquals(expected, statuses);
+            }
+
+            // Median run, so a single GC or migration does not skew it
+            Arrays.sort(nanos);
+            double perSecond = BATCH_SIZE * 1e9 / nanos[MEASURED_RUNS / 2];
+            report.append(String.format("%d threads: %.0f certs/s%n", threads, perSecond));
+        }
+
+        Log.i(TAG, "Batch of " + BATCH_SIZE + " on " + cores + " cores\n" + report);
+    }
+
+    @Test
+    public void nativeComparedToJava() throws Exception {
+        List<CertFixtures.Fixture> fixtures = CertFixtures.load();
+        assertFalse("No certificates in test assets", fixtures.isEmpty());
+        byte[][] batch = batch(fixtures);
+
+        // Both trust the fixture issuer
+        CertVerifier[] verifiers = {new NativeCertVerifier(), new JavaCertVerifier()};
+        for (CertVerifier verifier : verifiers) {
+            verifier.setTrustedKeys(fixtureKeys);
+        }
+
+        int[] expected = verifiers[0].verifyBatch(batch, 1);
+        assertStatuses(fixtures, expected);
+        StringBuilder report = new StringBuilder();
+        for (CertVerifier verifier : verifiers) {
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                verifier.verifyBatch(batch, 1);
+            }
+
+            long[] nanos = new long[MEASURED_RUNS];
+            for (int i = 0; i < MEASURED_RUNS; i++) {
+                long started = System.nanoTime();
+                int[] statuses = verifier.verifyBatch(batch, 1);
+                nanos[i] = System.nanoTime() - started;
+                assertArrayEquals(expected, statuses);
+            }
+
+            Arrays.sort(nanos);
+            double perSecond = BATCH_SIZE * 1e9 / nanos[MEASURED_RUNS / 2];
+            report.append(String.format("%s: %.0f certs/s%n",
+                    verifier.getClass().getSimpleName(), perSecond));
+        }
+
+        Log.i(TAG, "Batch of " + BATCH_SIZE + " on one thread\n" + report);
+    }
+
+    private static byte[][] batch(List<CertFixtures.Fixture> fixtures) {
+        byte[][] batch = new byte[BATCH_SIZE][];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = fixtures.get(i % fixtures.size()).certificate;
+        }
+        return batch;
+    }
+
+    // A benchmark of rejections would say little about the valid path
+    private static void assertStatuses(List<CertFixtures.Fixture> fixtures, int[] statuses) {
+        for (int i = 0; i < statuses.length; i++) {
+            CertFixtures.Fixture fixture = fixtures.get(i % fixtures.size());
+            assertEquals(fixture.name, fixture.expectedStatus, statuses[i]);
+        }
+    }
+
+    // 1, 2, 4 ... and finally exactly the core count
+    private static int next(int threads, int cores) {
+        return threads < cores && threads * 2 > cores ? cores : threads * 2;
+    }
+}
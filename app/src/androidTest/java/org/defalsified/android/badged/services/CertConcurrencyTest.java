@@ -0,0 +1,113 @@
+package org.defalsified.android.badged.services;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress test for verifying many certificates at once on a thread pool
+ *
+ * Certificates come from {@link CertFixtures}, with their issuer trusted
+ * for the duration. Every concurrent result must match the result of
+ * verifying the same certificate alone.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CertConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 200;
+
+    @Before
+    public void setUp() throws Exception {
+        assertTrue(Cert.setTrustedKeys(CertFixtures.fixtureKeys()) > 0);
+    }
+
+    @After
+    public void tearDown() {
+        // Put back the keys the app runs with
+        TrustStore.open(InstrumentationRegistry.getInstrumentation().getTargetContext()).reload();
+    }
+
+    @Test
+    public void verifiesCertificatesConcurrently() throws Exception {
+        List<CertFixtures.Fixture> fixtures = CertFixtures.load();
+        assertFalse("No certificates in test assets", fixtures.isEmpty());
+
+        // Expected results, one certificate at a time
+        List<byte[]> certificates = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (CertFixtures.Fixture fixture : fixtures) {
+            String content = Cert.deserializeAndVerify(fixture.certificate);
+            if (fixture.expectedStatus == Cert.Verification.STATUS_OK) {
+                assertNotNull(fixture.name, content);
+            }
+            certificates.add(fixture.certificate);
+            expected.add(content);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int i = 0; i < ROUNDS; i++) {
+                int index = i % certificates.size();
+                tasks.add(() -> {
+                    assertEquals(expected.get(index),
+                            Cert.deserializeAndVerify(certificates.get(index)));
+                    return index;
+                });
+            }
+            for (Future<Integer> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedCertificatesConcurrently() throws Exception {
+        Random random = new Random(42);
+        List<byte[]> garbage = new ArrayList<>();
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] data = new byte[1 + random.nextInt(512)];
+            random.nextBytes(data);
+            garbage.add(data);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (byte[] data : garbage) {
+                tasks.add(() -> {
+                    try (Cert cert = Cert.deserialize(data)) {
+                        return cert != null && cert.verify();
+                    }
+                });
+            }
+            for (Future<Boolean> result : pool.invokeAll(tasks)) {
+                assertFalse(result.get());
+            }
+        } finally {
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.defalsified.android.badged.services;
+
+import android.content.res.AssetManager;
+import android.util.Base64;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Certificates for native tests, read from the test assets
+ *
+ * Each file under {@value #CERT_ASSETS} holds one base64 encoded
+ * certificate, as found in a voucher QR code. The file name starts with
+ * the status a verifier trusting {@link #fixtureKeys} must give it: ok,
+ * invalid-signature, untrusted or malformed. The certificates were made
+ * with the JVM test helper TestCertificates, signed by the key in
+ * {@value #FIXTURE_KEYS_ASSET}.
+ */
+final class CertFixtures {
+    static final String CERT_ASSETS = "certificates";
+    static final String FIXTURE_KEYS_ASSET = "fixture_trusted_keys";
+
+    private CertFixtures() {}
+
+    /**
+     * One certificate and the status it must verify with
+     */
+    static final class Fixture {
+        final String name;
+        final byte[] certificate;
+        final int expectedStatus;
+
+        Fixture(String name, byte[] certificate) {
+            this.name = name;
+            this.certificate = certificate;
+            this.expectedStatus = expectedStatus(name);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Keys of the trust store asset bundled with the app
+     */
+    static byte[][] trustedKeys() throws IOException {
+        AssetManager assets = InstrumentationRegistry.getInstrumentation().getTargetContext().getAssets();
+        try (InputStream in = assets.open("trusted_keys")) {
+            return TrustStore.parse(in).toArray(new byte[0][]);
+        }
+    }
+
+    /**
+     * Key of the issuer that signed the fixtures
+     */
+    static byte[][] fixtureKeys() throws IOException {
+        try (InputStream in = testAssets().open(FIXTURE_KEYS_ASSET)) {
+            return TrustStore.parse(in).toArray(new byte[0][]);
+        }
+    }
+
+    static List<Fixture> load() throws IOException {
+        AssetManager assets = testAssets();
+        List<Fixture> fixtures = new ArrayList<>();
+        String[] names = assets.list(CERT_ASSETS);
+        if (names == null) {
+            return fixtures;
+        }
+
+        for (String name : names) {
+            try (InputStream in = assets.open(CERT_ASSETS + "/" + name)) {
+                String base64 = new String(readAll(in), StandardCharsets.US_ASCII).trim();
+                fixtures.add(new Fixture(name, Base64.decode(base64, Base64.DEFAULT)));
+            }
+        }
+        return fixtures;
+    }
+
+    private static int expectedStatus(String name) {
+        if (name.startsWith("ok-")) {
+            return Cert.Verification.STATUS_OK;
+        } else if (name.startsWith("invalid-signature-")) {
+            return Cert.Verification.STATUS_INVALID_SIGNATURE;
+        } else if (name.startsWith("untrusted-")) {
+            return Cert.Verification.STATUS_UNTRUSTED;
+        } else if (name.startsWith("malformed-")) {
+            return Cert.Verification.STATUS_MALFORMED;
+        }
+        throw new IllegalArgumentException("No expected status in fixture name " + name);
+    }
+
+    private static AssetManager testAssets() {
+        return InstrumentationRegistry.getInstrumentation().getContext().getAssets();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,145 @@
+package org.defalsified.android.badged.services;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The native and pure Java verifiers must agree on every input
+ *
+ * Runs both over the {@link CertFixtures}, corrupted copies of them and
+ * random bytes, comparing status, payload, domain and signer key. On the
+ * fixtures both must also give the status the fixture is named for, so
+ * libqaeda itself confirms the format the Java side signs in. Needs the
+ * native library, so it only runs where libqaeda is built.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CertVerifierCrossCheckTest {
+    private static final int CORRUPTIONS = 64;
+    private static final int RANDOM_INPUTS = 256;
+
+    private final NativeCertVerifier nativeVerifier = new NativeCertVerifier();
+    private final JavaCertVerifier javaVerifier = new JavaCertVerifier();
+    private Context context;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue("libqaeda not built for this ABI", Cert.isAvailable());
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+        // Both backends trust the fixture issuer
+        byte[][] fixtureKeys = CertFixtures.fixtureKeys();
+        assertEquals(nativeVerifier.setTrustedKeys(fixtureKeys),
+                javaVerifier.setTrustedKeys(fixtureKeys));
+    }
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            // Put back the keys the app runs with
+            TrustStore.open(context).reload();
+        }
+    }
+
+    @Test
+    public void agreeOnFixtures() throws Exception {
+        List<CertFixtures.Fixture> fixtures = CertFixtures.load();
+        assertFalse("No certificates in test assets", fixtures.isEmpty());
+
+        for (CertFixtures.Fixture fixture : fixtures) {
+            assertAgree("fixture " + fixture, fixture.certificate);
+            assertEquals("native status of " + fixture, fixture.expectedStatus,
+                    nativeVerifier.verify(fixture.certificate).getStatus());
+        }
+    }
+
+    @Test
+    public void agreeOnAppKeys() throws Exception {
+        List<CertFixtures.Fixture> fixtures = CertFixtures.load();
+        assertFalse("No certificates in test assets", fixtures.isEmpty());
+
+        byte[][] trustedKeys = CertFixtures.trustedKeys();
+        assertEquals(nativeVerifier.setTrustedKeys(trustedKeys),
+                javaVerifier.setTrustedKeys(trustedKeys));
+        for (CertFixtures.Fixture fixture : fixtures) {
+            assertAgree("fixture " + fixture + " with app keys", fixture.certificate);
+            if (fixture.expectedStatus == Cert.Verification.STATUS_OK) {
+                // The app never trusts the test issuer
+                assertEquals(fixture.name, Cert.Verification.STATUS_UNTRUSTED,
+                        nativeVerifier.verify(fixture.certificate).getStatus());
+            }
+        }
+    }
+
+    @Test
+    public void agreeWithoutTrustedKeys() throws Exception {
+        List<CertFixtures.Fixture> fixtures = CertFixtures.load();
+        assertFalse("No certificates in test assets", fixtures.isEmpty());
+
+        assertEquals(nativeVerifier.setTrustedKeys(new byte[0][]),
+                javaVerifier.setTrustedKeys(new byte[0][]));
+        for (int i = 0; i < fixtures.size(); i++) {
+            assertAgree("untrusted fixture " + fixtures.get(i), fixtures.get(i).certificate);
+        }
+    }
+
+    @Test
+    public void agreeOnCorruptedFixtures() throws Exception {
+        List<CertFixtures.Fixture> fixtures = CertFixtures.load();
+        assertFalse("No certificates in test assets", fixtures.isEmpty());
+
+        Random random = new Random(19);
+        for (int i = 0; i < fixtures.size(); i++) {
+            byte[] fixture = fixtures.get(i).certificate;
+            for (int j = 0; j < CORRUPTIONS; j++) {
+                int length = random.nextInt(fixture.length);
+                assertAgree("fixture " + i + " cut to " + length, Arrays.copyOf(fixture, length));
+
+                byte[] flipped = fixture.clone();
+                int position = random.nextInt(flipped.length);
+                flipped[position] ^= (byte) (1 << random.nextInt(8));
+                assertAgree("fixture " + i + " flipped at " + position, flipped);
+            }
+        }
+    }
+
+    @Test
+    public void agreeOnRandomInput() {
+        Random random = new Random(19);
+        for (int i = 0; i < RANDOM_INPUTS; i++) {
+            byte[] input = new byte[random.nextInt(512)];
+            random.nextBytes(input);
+            if (input.length > 0 && i % 2 == 0) {
+                // Half look like a sequence at first glance
+                input[0] = 0x30;
+            }
+            assertAgree("random input " + i, input);
+        }
+    }
+
+    private void assertAgree(String label, byte[] certificate) {
+        Cert.Verification expected = nativeVerifier.verify(certificate);
+        Cert.Verification actual = javaVerifier.verify(certificate);
+
+        assertEquals(label + " status", expected.getStatus(), actual.getStatus());
+        assertArrayEquals(label + " payload", expected.getPayload(), actual.getPayload());
+        assertEquals(label + " domain", expected.getDomain(), actual.getDomain());
+        assertArrayEquals(label + " signer", expected.getSignerPublicKey(),
+                actual.getSignerPublicKey());
+    }
+}
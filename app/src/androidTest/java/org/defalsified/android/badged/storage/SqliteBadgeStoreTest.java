@@ -0,0 +1,146 @@
+package org.defalsified.android.badged.storage;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.defalsified.android.badged.models.Badge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Listing order and query plans of the SQLite store
+ *
+ * Every page of the latest first order must walk the order index rather
+ * than sort the table, or paging costs grow with the wallet, and the
+ * order must be the one the badge log gives.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SqliteBadgeStoreTest {
+    private static final String ORDER_INDEX = "USING INDEX idx_badges_order";
+    private static final String SORT = "TEMP B-TREE";
+
+    private SqliteBadgeStore store;
+
+    @Before
+    public void setUp() {
+        store = new SqliteBadgeStore(
+                InstrumentationRegistry.getInstrumentation().getTargetContext(), null);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void serialsWiderThanLongSortAsText() throws Exception {
+        // The order BadgeLogTest expects from the badge log
+        List<String> expected = Arrays.asList("9223372036854775807", "7", "007", "-3",
+                "abc", "99999999999999999999999", "18446744073709551616", "-9223372036854775809");
+        List<Badge> badges = new ArrayList<>();
+        for (String serial : expected) {
+            badges.add(new Badge(serial, "Coffee", "holder", "project", "cert"));
+        }
+        Collections.shuffle(badges, new Random(8));
+        store.putAll(badges);
+
+        assertEquals(expected, serials(store.getAll()));
+
+        // Keyset pages run across the numeric and text serials
+        List<Badge> paged = new ArrayList<>();
+        List<Badge> page = store.getPage(BadgeCursor.Order.SERIAL, null, 3);
+        while (!page.isEmpty()) {
+            paged.addAll(page);
+            BadgeCursor after = BadgeCursor.after(BadgeCursor.Order.SERIAL, page.get(page.size() - 1));
+            page = store.getPage(BadgeCursor.Order.SERIAL, after, 3);
+        }
+        assertEquals(expected, serials(paged));
+    }
+
+    @Test
+    public void sameTimestampFallsBackToSerialOrder() throws Exception {
+        // As BadgeOrder.compareTimestamps orders them: newest first, then latest serial first
+        List<String> expected = Arrays.asList("late", "10", "9", "7", "007", "x9", "abc",
+                "99999999999999999999999", "early");
+        List<Badge> badges = new ArrayList<>();
+        for (String serial : expected) {
+            Badge badge = new Badge(serial, "Coffee", "holder", "project", "cert");
+            badge.setTimestamp(serial.equals("late") ? 3000 : serial.equals("early") ? 1000 : 2000);
+            badges.add(badge);
+        }
+        Collections.shuffle(badges, new Random(8));
+        store.putAll(badges);
+
+        assertEquals(expected, serials(store.getPage(BadgeCursor.Order.TIMESTAMP, null, 100)));
+
+        // Keyset pages run across the tied numeric and text serials
+        List<Badge> paged = new ArrayList<>();
+        List<Badge> page = store.getPage(BadgeCursor.Order.TIMESTAMP, null, 2);
+        while (!page.isEmpty()) {
+            paged.addAll(page);
+            BadgeCursor after = BadgeCursor.after(BadgeCursor.Order.TIMESTAMP, page.get(page.size() - 1));
+            page = store.getPage(BadgeCursor.Order.TIMESTAMP, after, 2);
+        }
+        assertEquals(expected, serials(paged));
+    }
+
+    @Test
+    public void firstPageReadsTheOrderIndex() {
+        assertIndexOrdered(null, new String[0]);
+    }
+
+    @Test
+    public void pageAfterNumericSerialSearchesTheOrderIndex() {
+        assertIndexOrdered(SqliteBadgeStore.AFTER_NUMBER, new String[]{"100", "100", "100"});
+        assertIndexOrdered(SqliteBadgeStore.TEXT_SERIALS, new String[0]);
+    }
+
+    @Test
+    public void pageAfterTextSerialSearchesTheOrderIndex() {
+        assertIndexOrdered(SqliteBadgeStore.AFTER_TEXT, new String[]{"A-100"});
+    }
+
+    private void assertIndexOrdered(String selection, String[] args) {
+        List<String> plan = queryPlan(SqliteBadgeStore.sql(selection,
+                SqliteBadgeStore.ORDER_LATEST_FIRST, 20), args);
+        String label = selection + ": " + plan;
+        assertTrue(label, plan.stream().anyMatch(step -> step.contains(ORDER_INDEX)));
+        assertFalse(label, plan.stream().anyMatch(step -> step.contains(SORT)));
+    }
+
+    private List<String> queryPlan(String sql, String[] args) {
+        SQLiteDatabase db = store.getReadableDatabase();
+        List<String> steps = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args)) {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                steps.add(cursor.getString(detail));
+            }
+        }
+        return steps;
+    }
+
+    private static List<String> serials(List<Badge> badges) {
+        List<String> serials = new ArrayList<>(badges.size());
+        for (Badge badge : badges) {
+            serials.add(badge.getSerial());
+        }
+        return serials;
+    }
+}
@@ -1,8 +1,12 @@
 #include <jni.h>
 #include <string.h>
 #include <stdlib.h>
+#include <stdint.h>
+#include <pthread.h>
+#include <unistd.h>
 #include <time.h>
 #include <android/log.h>
+#include <android/trace.h>
 #include <libtasn1.h>
 
 // Forward declarations for structures
@@ -94,69 +98,258 @@ extern int lq_publickey_bytes(LQPubKey *pk, char **out);
 
 // Logging
 #define LOG_TAG "CertJNI"
-#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
-#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+
+// Debug logging is compiled out of release builds, which define NDEBUG
+#ifndef CERT_DEBUG_LOGGING
+#ifdef NDEBUG
+#define CERT_DEBUG_LOGGING 0
+#else
+#define CERT_DEBUG_LOGGING 1
+#endif
+#endif
+
+// Runtime settings, pushed from the Java Tracer
+static int logLevel = ANDROID_LOG_WARN;
+static int tracing = 0;
+
+// Arguments are only evaluated when the level is enabled
+#define LOG_ENABLED(level) (__atomic_load_n(&logLevel, __ATOMIC_RELAXED) <= (level))
+#define DEBUG_ENABLED() (CERT_DEBUG_LOGGING && LOG_ENABLED(ANDROID_LOG_DEBUG))
+#define LOGD(...) do { if (DEBUG_ENABLED()) \
+        __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__); } while (0)
+#define LOGE(...) do { if (LOG_ENABLED(ANDROID_LOG_ERROR)) \
+        __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__); } while (0)
+
+// One trace section per scope, closed even if tracing is turned off in between
+#define TRACE_BEGIN(name) int traced = __atomic_load_n(&tracing, __ATOMIC_RELAXED) \
+        && (ATrace_beginSection(name), 1)
+#define TRACE_END() do { if (traced) ATrace_endSection(); } while (0)
 
 // Trust check result values
 #define TRUST_RESULT_NOT_FOUND -1
 #define TRUST_RESULT_MATCH 1000000
 
-// State variables
-static LQCert *currentCert = NULL;
-static int isInitialized = 0;
-static LQPubKey *requestPubKey = NULL;
-static LQStore *trustStore = NULL;
+// Library initialization runs once per process, from whichever thread comes first
+static pthread_once_t initOnce = PTHREAD_ONCE_INIT;
+
+// Verification status codes, mirrored by Cert.Verification
+#define STATUS_OK 0
+#define STATUS_MALFORMED 1
+#define STATUS_INVALID_SIGNATURE 2
+#define STATUS_UNTRUSTED 3
+#define STATUS_ERROR 4
+
+// Cert.Verification, looked up once in JNI_OnLoad
+static jclass verificationClass = NULL;
+static jmethodID verificationInit = NULL;
 
-// Hard-coded trusted public key
-static const unsigned char TRUSTED_PUBLIC_KEY_1[] = {
+// One deserialized certificate, owned by a Java Cert through an opaque handle
+typedef struct {
+    LQCert *cert;
+    LQPubKey *requestPubKey;
+} CertHandle;
+
+// Built-in issuer key, trusted until Java installs a key set
+static const unsigned char BUILTIN_TRUSTED_KEY[] = {
         0x70, 0xB7, 0x36, 0x7F, 0xD7, 0xC4, 0x86, 0x79,
         0x6E, 0xA4, 0x45, 0x7B, 0xC0, 0x6C, 0x2F, 0xEB,
         0xDD, 0xC5, 0x94, 0x7B, 0xDE, 0x77, 0xC6, 0xCE,
         0x0D, 0x81, 0x74, 0x42, 0xB8, 0xFB, 0x96, 0x7E
 };
 
+// Trust decisions remembered per key set, direct mapped by key hash
+#define DECISION_SLOTS 256
+#define DECISION_KEY_MAX 64
+
 typedef struct {
-    const unsigned char *key;
+    int status;  // STATUS_OK or STATUS_UNTRUSTED, -1 when empty
     size_t length;
-} TrustedKey;
+    unsigned char key[DECISION_KEY_MAX];
+} Decision;
 
-static const TrustedKey TRUSTED_KEYS[] = {
-        { TRUSTED_PUBLIC_KEY_1, 32 },
-        // Add more trusted keys as needed
-};
+// Immutable set of trusted keys, an open addressed hash table over the key bytes
+typedef struct {
+    int refs;  // Guarded by keySetLock
+    int count;
+    uint32_t mask;  // Slot count minus one, slots are a power of two
+    int32_t *slots;  // Index into the keys, -1 when empty
+    size_t *offsets;
+    size_t *lengths;
+    unsigned char *bytes;  // Every key, back to back
+    pthread_mutex_t decisionLock;
+    Decision decisions[DECISION_SLOTS];
+} KeySet;
+
+// The installed key set; verifications hold a reference while they use it
+static pthread_mutex_t keySetLock = PTHREAD_MUTEX_INITIALIZER;
+static KeySet *currentKeySet = NULL;
+
+// FNV-1a over the key bytes
+static uint32_t hashKey(const unsigned char *key, size_t length) {
+    uint32_t hash = 2166136261u;
+    for (size_t i = 0; i < length; i++) {
+        hash = (hash ^ key[i]) * 16777619u;
+    }
+    return hash;
+}
+
+static void freeKeySet(KeySet *set) {
+    if (set == NULL) {
+        return;
+    }
+    pthread_mutex_destroy(&set->decisionLock);
+    free(set->slots);
+    free(set->offsets);
+    free(set->lengths);
+    free(set->bytes);
+    free(set);
+}
+
+// Slot holding the key, or the empty slot where it would go
+static uint32_t findSlot(const KeySet *set, const unsigned char *key, size_t length) {
+    uint32_t slot = hashKey(key, length) & set->mask;
+    for (;;) {
+        int32_t index = set->slots[slot];
+        if (index < 0 || (set->lengths[index] == length &&
+                memcmp(set->bytes + set->offsets[index], key, length) == 0)) {
+            return slot;
+        }
+        slot = (slot + 1) & set->mask;
+    }
+}
 
-static const int NUM_TRUSTED_KEYS = sizeof(TRUSTED_KEYS) / sizeof(TrustedKey);
+static int keySetContains(const KeySet *set, const unsigned char *key, size_t length) {
+    return set->slots[findSlot(set, key, length)] >= 0;
+}
 
-// Our custom in-memory store for trusted keys with  verification
-static int store_get(enum payload_e typ, LQStore *store, const char *key, size_t key_len, char *value, size_t *value_len) {
-    LOGD("store_get called with key_len=%zu", key_len);
+// Build a key set holding copies of the keys, duplicates dropped
+static KeySet *buildKeySet(const unsigned char **keys, const size_t *lengths, int count) {
+    KeySet *set = calloc(1, sizeof(KeySet));
+    if (set == NULL) {
+        return NULL;
+    }
+
+    // Keep the table at most half full so probe runs stay short
+    uint32_t slots = 16;
+    while (slots < (uint32_t)count * 2) {
+        slots <<= 1;
+    }
+    size_t total = 0;
+    for (int i = 0; i < count; i++) {
+        total += lengths[i];
+    }
+
+    set->mask = slots - 1;
+    set->slots = malloc(slots * sizeof(int32_t));
+    set->offsets = calloc(count > 0 ? count : 1, sizeof(size_t));
+    set->lengths = calloc(count > 0 ? count : 1, sizeof(size_t));
+    set->bytes = malloc(total > 0 ? total : 1);
+    if (!set->slots || !set->offsets || !set->lengths || !set->bytes) {
+        freeKeySet(set);
+        return NULL;
+    }
+    memset(set->slots, 0xff, slots * sizeof(int32_t));
+    pthread_mutex_init(&set->decisionLock, NULL);
+    for (int i = 0; i < DECISION_SLOTS; i++) {
+        set->decisions[i].status = -1;
+    }
+
+    size_t offset = 0;
+    for (int i = 0; i < count; i++) {
+        uint32_t slot = findSlot(set, keys[i], lengths[i]);
+        if (set->slots[slot] >= 0) {
+            continue;
+        }
+        memcpy(set->bytes + offset, keys[i], lengths[i]);
+        set->offsets[set->count] = offset;
+        set->lengths[set->count] = lengths[i];
+        set->slots[slot] = set->count++;
+        offset += lengths[i];
+    }
+    set->refs = 1;
+    return set;
+}
+
+// Take a reference to the installed key set
+static KeySet *acquireKeySet(void) {
+    pthread_mutex_lock(&keySetLock);
+    KeySet *set = currentKeySet;
+    if (set != NULL) {
+        set->refs++;
+    }
+    pthread_mutex_unlock(&keySetLock);
+    return set;
+}
+
+static void releaseKeySet(KeySet *set) {
+    if (set == NULL) {
+        return;
+    }
+    pthread_mutex_lock(&keySetLock);
+    int refs = --set->refs;
+    pthread_mutex_unlock(&keySetLock);
+    if (refs == 0) {
+        freeKeySet(set);
+    }
+}
+
+// Swap in a new key set; the old one is freed once its last verification ends
+static void installKeySet(KeySet *set) {
+    pthread_mutex_lock(&keySetLock);
+    KeySet *old = currentKeySet;
+    currentKeySet = set;
+    pthread_mutex_unlock(&keySetLock);
+    releaseKeySet(old);
+}
+
+// Remembered decision for a key, -1 when there is none
+static int lookupDecision(KeySet *set, const unsigned char *key, size_t length) {
+    if (length > DECISION_KEY_MAX) {
+        return -1;
+    }
+    Decision *decision = &set->decisions[hashKey(key, length) % DECISION_SLOTS];
+    int status = -1;
+    pthread_mutex_lock(&set->decisionLock);
+    if (decision->status >= 0 && decision->length == length &&
+            memcmp(decision->key, key, length) == 0) {
+        status = decision->status;
+    }
+    pthread_mutex_unlock(&set->decisionLock);
+    return status;
+}
+
+static void rememberDecision(KeySet *set, const unsigned char *key, size_t length, int status) {
+    if (length > DECISION_KEY_MAX) {
+        return;
+    }
+    Decision *decision = &set->decisions[hashKey(key, length) % DECISION_SLOTS];
+    pthread_mutex_lock(&set->decisionLock);
+    decision->status = status;
+    decision->length = length;
+    memcpy(decision->key, key, length);
+    pthread_mutex_unlock(&set->decisionLock);
+}
 
+// Store callbacks answer from the key set passed as userdata
+static int store_get(enum payload_e typ, LQStore *store, const char *key, size_t key_len, char *value, size_t *value_len) {
     // Only handle public key requests
-    if (typ != LQ_CONTENT_KEY_PUBLIC || key == NULL || key_len == 0) {
+    if (typ != LQ_CONTENT_KEY_PUBLIC || key == NULL || key_len == 0 || store->userdata == NULL) {
         LOGD("Invalid parameters or not a public key request");
         return -1;
     }
 
-    // Check if the key is in our trusted list
-    for (int i = 0; i < NUM_TRUSTED_KEYS; i++) {
-        // Verify key length matches
-        if (key_len == TRUSTED_KEYS[i].length) {
-            // Compare key bytes
-            if (memcmp(key, TRUSTED_KEYS[i].key, key_len) == 0) {
-                // Key found in trusted list
-                if (value != NULL && value_len != NULL && *value_len >= 2) {
-                    // Set empty flags (all zeros) - we don't use flags in TRUST_MATCH_NONE mode
-                    memset(value, 0, 2);
-                    *value_len = 2;
-                    LOGD("Found trusted key at index %d", i);
-                    return ERR_OK;
-                }
-            }
-        }
+    if (!keySetContains(store->userdata, (const unsigned char *)key, key_len)) {
+        LOGD("Key not found in trusted set");
+        return -1;
     }
 
-    LOGD("Key not found in trusted list");
-    return -1;  // Key not found
+    if (value != NULL && value_len != NULL && *value_len >= 2) {
+        // Set empty flags (all zeros) - we don't use flags in TRUST_MATCH_NONE mode
+        memset(value, 0, 2);
+        *value_len = 2;
+        return ERR_OK;
+    }
+    return -1;
 }
 
 static int store_put(enum payload_e typ, LQStore *store, const char *key, size_t *key_len, char *value, size_t value_len) {
@@ -165,177 +358,172 @@ static int store_put(enum payload_e typ, LQStore *store, const char *key, size_t
 }
 
 static int store_count(enum payload_e typ, LQStore *store, const char *key, size_t key_len) {
-    // For any public key that's in our trusted list, return 1
-    if (typ == LQ_CONTENT_KEY_PUBLIC && key != NULL && key_len > 0) {
-        for (int i = 0; i < NUM_TRUSTED_KEYS; i++) {
-            if (key_len == TRUSTED_KEYS[i].length &&
-                memcmp(key, TRUSTED_KEYS[i].key, key_len) == 0) {
-                return 1;
-            }
-        }
+    // For any public key that's in the trusted set, return 1
+    if (typ == LQ_CONTENT_KEY_PUBLIC && key != NULL && key_len > 0 && store->userdata != NULL) {
+        return keySetContains(store->userdata, (const unsigned char *)key, key_len);
     }
 
     return 0;
 }
 
 static void store_free(LQStore *store) {
-    // Nothing to free
+    // Key sets are freed by reference count
 }
 
-// Initialize library and trust store
-static void ensureInitialized() {
-    if (!isInitialized) {
-        // Initialize libqaeda
-        lq_init();
-
-        // Create our custom in-memory trust store
-        if (trustStore == NULL) {
-            // Allocate memory for the store
-            trustStore = (LQStore*)malloc(sizeof(LQStore));
-            if (trustStore != NULL) {
-                // Initialize the store with our functions
-                trustStore->store_typ = 1;  // Custom store type
-                trustStore->userdata = NULL;
-                trustStore->get = store_get;
-                trustStore->put = store_put;
-                trustStore->count = store_count;
-                trustStore->free = store_free;
-
-                LOGD("Custom trust store initialized");
-            } else {
-                LOGE("Failed to allocate memory for trust store");
-            }
-        }
+// Template for the store handed to lq_trust_check, copied per check with its key set
+static const LQStore trustStore = {
+        .store_typ = 1,  // Custom store type
+        .userdata = NULL,
+        .get = store_get,
+        .put = store_put,
+        .count = store_count,
+        .free = store_free,
+};
 
-        isInitialized = 1;
-        LOGD("Initialized libqaeda");
+static void initialize(void) {
+    lq_init();
+
+    // Start out trusting the built-in key, unless Java got there first
+    const unsigned char *keys[] = { BUILTIN_TRUSTED_KEY };
+    size_t lengths[] = { sizeof(BUILTIN_TRUSTED_KEY) };
+    KeySet *builtin = buildKeySet(keys, lengths, 1);
+    pthread_mutex_lock(&keySetLock);
+    if (currentKeySet == NULL) {
+        currentKeySet = builtin;
+        builtin = NULL;
     }
+    pthread_mutex_unlock(&keySetLock);
+    freeKeySet(builtin);
+    LOGD("Initialized libqaeda");
 }
 
-// Deserialize certificate and extract JSON data
-JNIEXPORT jstring JNICALL
-Java_org_defalsified_android_badged_services_Cert_deserialize(
-        JNIEnv *env, jobject thiz, jbyteArray serializedData) {
-    // Ensure library is initialized
-    ensureInitialized();
+// Initialize library
+static void ensureInitialized() {
+    pthread_once(&initOnce, initialize);
+}
 
-    if (!serializedData) {
-        LOGE("Serialized data is null");
-        return NULL;
-    }
+static CertHandle *fromHandle(jlong handle) {
+    return (CertHandle *)(intptr_t)handle;
+}
 
-    // Free any previously stored certificate
-    if (currentCert != NULL) {
-        lq_certificate_free(currentCert);
-        currentCert = NULL;
+JNIEXPORT jint JNICALL
+JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
     }
 
-    // Reset request public key pointer
-    requestPubKey = NULL;
-
-    // Get byte array from Java
-    jsize length = (*env)->GetArrayLength(env, serializedData);
-    jbyte *bytes = (*env)->GetByteArrayElements(env, serializedData, NULL);
-    if (!bytes) {
-        LOGE("Failed to get byte array elements");
-        return NULL;
+    jclass clazz = (*env)->FindClass(env,
+            "org/defalsified/android/badged/services/Cert$Verification");
+    if (clazz == NULL) {
+        LOGE("Cert.Verification class not found");
+        return JNI_ERR;
+    }
+    verificationClass = (*env)->NewGlobalRef(env, clazz);
+    (*env)->DeleteLocalRef(env, clazz);
+    verificationInit = (*env)->GetMethodID(env, verificationClass, "<init>",
+            "(I[B[B[B)V");
+    if (verificationInit == NULL) {
+        LOGE("Cert.Verification constructor not found");
+        return JNI_ERR;
     }
 
-    // Deserialize the certificate
-    int result = lq_certificate_deserialize(&currentCert, NULL, (char *)bytes, length);
+    return JNI_VERSION_1_6;
+}
 
-    // Release the Java byte array
-    (*env)->ReleaseByteArrayElements(env, serializedData, bytes, JNI_ABORT);
+// Deserialize certificate bytes in native memory, returns a status code
+static int deserializeBytes(char *data, size_t length, LQCert **out) {
+    *out = NULL;
+    if (data == NULL) {
+        return STATUS_MALFORMED;
+    }
 
+    LQCert *cert = NULL;
+    int result = lq_certificate_deserialize(&cert, NULL, data, length);
     if (result != ERR_OK) {
         LOGE("Failed to deserialize certificate: %d", result);
-        return NULL;
+        if (cert != NULL) {
+            lq_certificate_free(cert);
+        }
+        return STATUS_MALFORMED;
     }
 
-    if (!currentCert) {
+    if (!cert) {
         LOGE("Deserialization succeeded but returned NULL certificate");
-        return NULL;
+        return STATUS_MALFORMED;
     }
 
-    LOGD("Certificate domain: %.*s", LQ_CERT_DOMAIN_LEN, currentCert->domain);
-
-    // Extract JSON from request
-    jstring jsonString = NULL;
-    if (currentCert->request && currentCert->request->data && currentCert->request->len > 0) {
-        // Create Java string from request data - ensure null termination
-        char *json_copy = malloc(currentCert->request->len + 1);
-        if (json_copy) {
-            memcpy(json_copy, currentCert->request->data, currentCert->request->len);
-            json_copy[currentCert->request->len] = '\0';
+    LOGD("Certificate domain: %.*s", LQ_CERT_DOMAIN_LEN, cert->domain);
+    *out = cert;
+    return STATUS_OK;
+}
 
-            jsonString = (*env)->NewStringUTF(env, json_copy);
-            free(json_copy);
+// Deserialize a Java byte array, returns a status code
+static int deserializeArray(JNIEnv *env, jbyteArray serializedData, LQCert **out) {
+    *out = NULL;
+    if (!serializedData) {
+        LOGE("Serialized data is null");
+        return STATUS_MALFORMED;
+    }
 
-            LOGD("Extracted JSON from certificate (length: %zu)", currentCert->request->len);
-        } else {
-            LOGE("Failed to allocate memory for JSON string");
-        }
-    } else {
-        LOGE("Certificate request message is null or empty");
+    // Get byte array from Java
+    jsize length = (*env)->GetArrayLength(env, serializedData);
+    jbyte *bytes = (*env)->GetByteArrayElements(env, serializedData, NULL);
+    if (!bytes) {
+        LOGE("Failed to get byte array elements");
+        return STATUS_ERROR;
     }
 
-    return jsonString;
-}
+    // Deserialize the certificate
+    int status = deserializeBytes((char *)bytes, length, out);
 
-// Verify certificate and extract public key
-JNIEXPORT jboolean JNICALL
-Java_org_defalsified_android_badged_services_Cert_verify(
-        JNIEnv *env, jobject thiz) {
-    if (currentCert == NULL) {
-        LOGE("No certificate available to verify");
-        return JNI_FALSE;
-    }
+    // Release the Java byte array
+    (*env)->ReleaseByteArrayElements(env, serializedData, bytes, JNI_ABORT);
+    return status;
+}
 
+// Check signatures and trust, returns a status code and the signing key
+static int verifyCertificate(LQCert *cert, LQPubKey **signer) {
     // Declare local variables for pubkeys
     LQPubKey *reqKey = NULL, *respKey = NULL;
+    *signer = NULL;
 
     LOGD("Starting verification for domain: %.*s",
-         LQ_CERT_DOMAIN_LEN, currentCert->domain);
+         LQ_CERT_DOMAIN_LEN, cert->domain);
 
     // Verify and get keys
-    int result = lq_certificate_verify(currentCert, &reqKey, &respKey);
+    int result = lq_certificate_verify(cert, &reqKey, &respKey);
 
     if (result != ERR_OK) {
         LOGE("Verification failed: %d", result);
-        return JNI_FALSE;
+        return STATUS_INVALID_SIGNATURE;
     }
 
     // Check if we got the request public key
     if (reqKey == NULL) {
         // Fallback: Try to get key from message
-        if (currentCert->request && currentCert->request->pubkey) {
-            reqKey = (LQPubKey*)currentCert->request->pubkey;
+        if (cert->request && cert->request->pubkey) {
+            reqKey = (LQPubKey*)cert->request->pubkey;
             LOGD("Using fallback pubkey from message");
         } else {
             LOGE("No public key extracted");
-            return JNI_FALSE;
+            return STATUS_INVALID_SIGNATURE;
         }
     }
 
-    // Store the key for trust checks
-    requestPubKey = reqKey;
-
-    // Now check if this key is trusted
-    if (trustStore == NULL) {
-        LOGE("Trust store not initialized");
-        return JNI_FALSE;
-    }
+    // Keep the key for the caller
+    *signer = reqKey;
 
     char *keydata;
-    size_t keylen = lq_publickey_bytes(requestPubKey, &keydata);
+    size_t keylen = lq_publickey_bytes(reqKey, &keydata);
 
     if (keydata == NULL || keylen == 0) {
         LOGE("Failed to extract public key bytes");
-        return JNI_FALSE;
+        return STATUS_ERROR;
     }
 
     // Log key bytes for debugging
-    if (keylen <= 64) {  // Avoids logging very large keys
+    if (DEBUG_ENABLED() && keylen <= 64) {  // Avoids logging very large keys
         char hexbuf[128] = {0};
         for (int i = 0; i < keylen && i < 32; i++) {
             sprintf(hexbuf + (i*3), "%02X ", (unsigned char)keydata[i]);
@@ -343,60 +531,404 @@ Java_org_defalsified_android_badged_services_Cert_verify(
         LOGD("Key bytes (first 32): %s", hexbuf);
     }
 
-    // Create empty flags for TRUST_MATCH_NONE mode
-    unsigned char flags[2] = {0x00, 0x00};
+    KeySet *keys = acquireKeySet();
+    if (keys == NULL) {
+        LOGE("No trusted key set installed");
+        return STATUS_ERROR;
+    }
+
+    // Repeat issuers are answered without another trust check
+    int status = lookupDecision(keys, (unsigned char *)keydata, keylen);
+    if (status < 0) {
+        // Create empty flags for TRUST_MATCH_NONE mode
+        unsigned char flags[2] = {0x00, 0x00};
 
-    // Check trust level using lq_trust_check
-    int trust_level = lq_trust_check(requestPubKey, trustStore, TRUST_MATCH_NONE, flags);
+        // Check trust level using lq_trust_check
+        LQStore store = trustStore;
+        store.userdata = keys;
+        int trust_level = lq_trust_check(reqKey, &store, TRUST_MATCH_NONE, flags);
 
-    LOGD("Trust check result: %d", trust_level);
+        LOGD("Trust check result: %d", trust_level);
 
-    // Only consider verification successful if the key is trusted
-    if (trust_level == TRUST_RESULT_NOT_FOUND) {
+        // Only consider verification successful if the key is trusted
+        status = trust_level == TRUST_RESULT_NOT_FOUND ? STATUS_UNTRUSTED : STATUS_OK;
+        rememberDecision(keys, (unsigned char *)keydata, keylen, status);
+    }
+    releaseKeySet(keys);
+
+    if (status != STATUS_OK) {
         LOGE("Certificate verification failed: Key not trusted");
-        return JNI_FALSE;
+        return status;
     }
 
-    LOGD("Verification successful. Key trusted: %p", requestPubKey);
-    return JNI_TRUE;
+    LOGD("Verification successful. Key trusted: %p", reqKey);
+    return STATUS_OK;
 }
 
-// Free certificate resources
-JNIEXPORT void JNICALL
-Java_org_defalsified_android_badged_services_Cert_destroy(
-        JNIEnv *env, jobject thiz) {
-    // Free the stored certificate
-    if (currentCert != NULL) {
-        lq_certificate_free(currentCert);
-        currentCert = NULL;
+// New Java byte array holding a copy of native bytes, NULL when there are none
+static jbyteArray toByteArray(JNIEnv *env, const char *data, size_t len) {
+    if (data == NULL) {
+        return NULL;
+    }
+    jbyteArray array = (*env)->NewByteArray(env, (jsize)len);
+    if (array != NULL && len > 0) {
+        (*env)->SetByteArrayRegion(env, array, 0, (jsize)len, (const jbyte *)data);
     }
+    return array;
+}
 
-    // Reset request public key pointer
-    requestPubKey = NULL;
+// Verify a deserialized certificate and build the Java result, freeing the certificate
+static jobject buildVerification(JNIEnv *env, LQCert *cert) {
+    LQPubKey *signer;
+    int status = verifyCertificate(cert, &signer);
 
-    LOGD("Certificate resources freed");
+    // Payload and domain are returned whatever the verification outcome
+    jbyteArray payload = NULL;
+    if (cert->request && cert->request->data) {
+        payload = toByteArray(env, cert->request->data, cert->request->len);
+    }
+    jbyteArray domain = toByteArray(env, cert->domain,
+            strnlen(cert->domain, LQ_CERT_DOMAIN_LEN));
+
+    jbyteArray signerKey = NULL;
+    if (signer != NULL) {
+        char *keydata = NULL;
+        size_t keylen = lq_publickey_bytes(signer, &keydata);
+        if (keydata != NULL && keylen > 0) {
+            signerKey = toByteArray(env, keydata, keylen);
+        }
+    }
+
+    // The signer key belongs to the certificate
+    lq_certificate_free(cert);
+
+    // An array allocation failed, let the OutOfMemoryError propagate
+    if ((*env)->ExceptionCheck(env)) {
+        return NULL;
+    }
+    return (*env)->NewObject(env, verificationClass, verificationInit, status,
+            payload, domain, signerKey);
+}
+
+static jobject failedVerification(JNIEnv *env, int status) {
+    return (*env)->NewObject(env, verificationClass, verificationInit, status,
+            NULL, NULL, NULL);
+}
+
+// Apply the Java Tracer settings
+JNIEXPORT void JNICALL
+Java_org_defalsified_android_badged_services_Cert_nativeSetTracer(
+        JNIEnv *env, jclass clazz, jint level, jboolean enabled) {
+    __atomic_store_n(&logLevel, level, __ATOMIC_RELAXED);
+    __atomic_store_n(&tracing, enabled ? 1 : 0, __ATOMIC_RELAXED);
 }
 
-// Clean up global resources
+// Initialize libqaeda and the trusted key set ahead of the first verification
 JNIEXPORT void JNICALL
-Java_org_defalsified_android_badged_services_Cert_cleanupJNI(
-        JNIEnv *env, jobject thiz) {
-    // Free certificate
-    if (currentCert != NULL) {
-        lq_certificate_free(currentCert);
-        currentCert = NULL;
+Java_org_defalsified_android_badged_services_Cert_nativeInitialize(
+        JNIEnv *env, jclass clazz) {
+    ensureInitialized();
+}
+
+// Deserialize, verify and extract in a single call
+JNIEXPORT jobject JNICALL
+Java_org_defalsified_android_badged_services_Cert_nativeVerifyAndExtract(
+        JNIEnv *env, jclass clazz, jbyteArray serializedData) {
+    // Ensure library is initialized
+    ensureInitialized();
+    TRACE_BEGIN("Cert.verifyAndExtract");
+
+    LQCert *cert;
+    int status = deserializeArray(env, serializedData, &cert);
+    jobject result = status == STATUS_OK
+            ? buildVerification(env, cert) : failedVerification(env, status);
+    TRACE_END();
+    return result;
+}
+
+// Same as above, reading the certificate in place from a direct ByteBuffer
+JNIEXPORT jobject JNICALL
+Java_org_defalsified_android_badged_services_Cert_nativeVerifyAndExtractDirect(
+        JNIEnv *env, jclass clazz, jobject buffer, jint length) {
+    // Ensure library is initialized
+    ensureInitialized();
+
+    char *data = buffer != NULL ? (*env)->GetDirectBufferAddress(env, buffer) : NULL;
+    jlong capacity = buffer != NULL ? (*env)->GetDirectBufferCapacity(env, buffer) : -1;
+    if (data == NULL || length < 0 || length > capacity) {
+        LOGE("Not a direct buffer holding %d bytes", length);
+        return failedVerification(env, STATUS_ERROR);
+    }
+
+    // No copy: the certificate is parsed where Java decoded it
+    TRACE_BEGIN("Cert.verifyAndExtractDirect");
+    LQCert *cert;
+    int status = deserializeBytes(data, length, &cert);
+    jobject result = status == STATUS_OK
+            ? buildVerification(env, cert) : failedVerification(env, status);
+    TRACE_END();
+    return result;
+}
+
+// Certificates of one batch, copied out of the JVM so workers need no JNIEnv
+typedef struct {
+    char **data;
+    size_t *lengths;
+    jint *statuses;
+    int count;
+    int next;  // Next unclaimed item, taken atomically
+} Batch;
+
+static void freeBatch(Batch *batch) {
+    if (batch->data != NULL) {
+        for (int i = 0; i < batch->count; i++) {
+            free(batch->data[i]);
+        }
+    }
+    free(batch->data);
+    free(batch->lengths);
+    free(batch->statuses);
+}
+
+// Deserialize and verify a certificate held in native memory
+static int verifyBytes(char *data, size_t length) {
+    LQCert *cert;
+    int status = deserializeBytes(data, length, &cert);
+    if (status != STATUS_OK) {
+        return status;
+    }
+
+    LQPubKey *signer;
+    status = verifyCertificate(cert, &signer);
+    lq_certificate_free(cert);
+    return status;
+}
+
+// Worker loop: claim items until the batch is exhausted
+static void *batchWorker(void *arg) {
+    Batch *batch = arg;
+    for (;;) {
+        int i = __atomic_fetch_add(&batch->next, 1, __ATOMIC_RELAXED);
+        if (i >= batch->count) {
+            return NULL;
+        }
+        batch->statuses[i] = verifyBytes(batch->data[i], batch->lengths[i]);
+    }
+}
+
+// Verify an array of certificates on native worker threads
+JNIEXPORT jintArray JNICALL
+Java_org_defalsified_android_badged_services_Cert_nativeVerifyBatch(
+        JNIEnv *env, jclass clazz, jobjectArray certificates, jint threads) {
+    // Ensure library is initialized
+    ensureInitialized();
+
+    int count = certificates != NULL ? (*env)->GetArrayLength(env, certificates) : 0;
+    jintArray statusArray = (*env)->NewIntArray(env, count);
+    if (statusArray == NULL || count == 0) {
+        return statusArray;
+    }
+
+    Batch batch = { .count = count, .next = 0 };
+    batch.data = calloc(count, sizeof(char *));
+    batch.lengths = calloc(count, sizeof(size_t));
+    batch.statuses = calloc(count, sizeof(jint));
+    if (!batch.data || !batch.lengths || !batch.statuses) {
+        LOGE("Failed to allocate batch of %d certificates", count);
+        freeBatch(&batch);
+        return NULL;
+    }
+
+    // Copy every certificate out first, workers cannot touch Java arrays
+    for (int i = 0; i < count; i++) {
+        jbyteArray item = (jbyteArray)(*env)->GetObjectArrayElement(env, certificates, i);
+        if (item == NULL) {
+            continue;
+        }
+        jsize length = (*env)->GetArrayLength(env, item);
+        batch.data[i] = malloc(length > 0 ? length : 1);
+        if (batch.data[i] == NULL) {
+            LOGE("Failed to copy certificate %d of batch", i);
+            (*env)->DeleteLocalRef(env, item);
+            freeBatch(&batch);
+            return NULL;
+        }
+        (*env)->GetByteArrayRegion(env, item, 0, length, (jbyte *)batch.data[i]);
+        batch.lengths[i] = length;
+        (*env)->DeleteLocalRef(env, item);
+    }
+
+    // Default to one worker per online core, never more than items
+    if (threads <= 0) {
+        long cores = sysconf(_SC_NPROCESSORS_ONLN);
+        threads = cores > 0 ? (jint)cores : 1;
+    }
+    if (threads > count) {
+        threads = count;
     }
 
-    // Free trust store
-    if (trustStore != NULL) {
-        free(trustStore);
-        trustStore = NULL;
+    TRACE_BEGIN("Cert.verifyBatch");
+    pthread_t *workers = calloc(threads, sizeof(pthread_t));
+    int started = 0;
+    if (workers != NULL) {
+        // The calling thread works too, so spawn one fewer
+        for (; started < threads - 1; started++) {
+            if (pthread_create(&workers[started], NULL, batchWorker, &batch) != 0) {
+                LOGE("Failed to start batch worker %d", started);
+                break;
+            }
+        }
+    }
+    batchWorker(&batch);
+    for (int i = 0; i < started; i++) {
+        pthread_join(workers[i], NULL);
+    }
+    free(workers);
+    TRACE_END();
+
+    LOGD("Verified batch of %d certificates on %d threads", count, started + 1);
+
+    (*env)->SetIntArrayRegion(env, statusArray, 0, count, batch.statuses);
+    freeBatch(&batch);
+    return statusArray;
+}
+
+// Replace the trusted key set, returns the number of distinct keys or -1
+JNIEXPORT jint JNICALL
+Java_org_defalsified_android_badged_services_Cert_nativeSetTrustedKeys(
+        JNIEnv *env, jclass clazz, jobjectArray keyArray) {
+    // Ensure library is initialized, so it cannot replace this set afterwards
+    ensureInitialized();
+
+    int count = keyArray != NULL ? (*env)->GetArrayLength(env, keyArray) : 0;
+    const unsigned char **keys = calloc(count > 0 ? count : 1, sizeof(unsigned char *));
+    size_t *lengths = calloc(count > 0 ? count : 1, sizeof(size_t));
+    int copied = 0;
+    KeySet *set = NULL;
+    if (keys != NULL && lengths != NULL) {
+        for (; copied < count; copied++) {
+            jbyteArray item = (jbyteArray)(*env)->GetObjectArrayElement(env, keyArray, copied);
+            jsize length = item != NULL ? (*env)->GetArrayLength(env, item) : 0;
+            unsigned char *key = length > 0 ? malloc(length) : NULL;
+            if (key == NULL) {
+                if (item != NULL) {
+                    (*env)->DeleteLocalRef(env, item);
+                }
+                break;
+            }
+            (*env)->GetByteArrayRegion(env, item, 0, length, (jbyte *)key);
+            (*env)->DeleteLocalRef(env, item);
+            keys[copied] = key;
+            lengths[copied] = length;
+        }
+        if (copied == count) {
+            set = buildKeySet(keys, lengths, count);
+        }
+    }
+
+    if (keys != NULL) {
+        for (int i = 0; i < copied; i++) {
+            free((void *)keys[i]);
+        }
+    }
+    free(keys);
+    free(lengths);
+
+    if (set == NULL) {
+        LOGE("Failed to build trusted key set of %d keys", count);
+        return -1;
+    }
+    int installed = set->count;
+    installKeySet(set);
+    LOGD("Installed %d trusted keys", installed);
+    return installed;
+}
+
+// Deserialize certificate into a new handle
+JNIEXPORT jlong JNICALL
+Java_org_defalsified_android_badged_services_Cert_nativeDeserialize(
+        JNIEnv *env, jclass clazz, jbyteArray serializedData) {
+    // Ensure library is initialized
+    ensureInitialized();
+
+    LQCert *cert;
+    if (deserializeArray(env, serializedData, &cert) != STATUS_OK) {
+        return 0;
+    }
+
+    CertHandle *handle = calloc(1, sizeof(CertHandle));
+    if (!handle) {
+        LOGE("Failed to allocate certificate handle");
+        lq_certificate_free(cert);
+        return 0;
+    }
+    handle->cert = cert;
+    return (jlong)(intptr_t)handle;
+}
+
+// Extract JSON data from a deserialized certificate
+JNIEXPORT jstring JNICALL
+Java_org_defalsified_android_badged_services_Cert_nativeGetContent(
+        JNIEnv *env, jclass clazz, jlong handlePtr) {
+    CertHandle *handle = fromHandle(handlePtr);
+    if (handle == NULL || handle->cert == NULL) {
+        LOGE("No certificate available");
+        return NULL;
+    }
+    LQCert *cert = handle->cert;
+
+    // Extract JSON from request
+    jstring jsonString = NULL;
+    if (cert->request && cert->request->data && cert->request->len > 0) {
+        // Create Java string from request data - ensure null termination
+        char *json_copy = malloc(cert->request->len + 1);
+        if (json_copy) {
+            memcpy(json_copy, cert->request->data, cert->request->len);
+            json_copy[cert->request->len] = '\0';
+
+            jsonString = (*env)->NewStringUTF(env, json_copy);
+            free(json_copy);
+
+            LOGD("Extracted JSON from certificate (length: %zu)", cert->request->len);
+        } else {
+            LOGE("Failed to allocate memory for JSON string");
+        }
+    } else {
+        LOGE("Certificate request message is null or empty");
     }
 
-    // Reset request public key pointer
-    requestPubKey = NULL;
+    return jsonString;
+}
+
+// Verify certificate and extract public key
+JNIEXPORT jboolean JNICALL
+Java_org_defalsified_android_badged_services_Cert_nativeVerify(
+        JNIEnv *env, jclass clazz, jlong handlePtr) {
+    CertHandle *handle = fromHandle(handlePtr);
+    if (handle == NULL || handle->cert == NULL) {
+        LOGE("No certificate available to verify");
+        return JNI_FALSE;
+    }
 
-    isInitialized = 0;
+    // Store the key for later trust decisions on this handle
+    int status = verifyCertificate(handle->cert, &handle->requestPubKey);
+    return status == STATUS_OK ? JNI_TRUE : JNI_FALSE;
+}
+
+// Free a certificate handle
+JNIEXPORT void JNICALL
+Java_org_defalsified_android_badged_services_Cert_nativeDestroy(
+        JNIEnv *env, jclass clazz, jlong handlePtr) {
+    CertHandle *handle = fromHandle(handlePtr);
+    if (handle == NULL) {
+        return;
+    }
 
-    LOGD("JNI resources cleaned up");
-}
\ No newline at end of file
+    // The request public key belongs to the certificate
+    if (handle->cert != NULL) {
+        lq_certificate_free(handle->cert);
+    }
+    free(handle);
+
+    LOGD("Certificate resources freed");
+}
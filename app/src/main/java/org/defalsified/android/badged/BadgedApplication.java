@@ -0,0 +1,28 @@
+package org.defalsified.android.badged;
+
+import android.app.Application;
+import android.content.pm.ApplicationInfo;
+
+import org.defalsified.android.badged.services.BadgeReverifier;
+import org.defalsified.android.badged.services.CertWarmup;
+import org.defalsified.android.badged.utils.Tracer;
+
+/**
+ * Application entry point, readies background work at launch
+ */
+public class BadgedApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Debug logging and trace sections in debuggable builds only
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            Tracer.setLevel(Tracer.DEBUG);
+            Tracer.setTracing(true);
+        }
+
+        // Verifier warm-up first, re-verification of stored badges once it is done
+        CertWarmup.start(this).thenRun(() -> BadgeReverifier.open(this).start());
+    }
+}
@@ -6,12 +6,26 @@ import java.util.Date;
 import java.util.Locale;
 
 public class Badge implements Serializable {
+
+    /**
+     * Source of certificates stored outside the badge
+     */
+    public interface CertificateLoader {
+        String loadCertificate(String certificateRef);
+    }
+
+    // Resolves certificate references, set once by the storage layer
+    private static volatile CertificateLoader certificateLoader;
+
     private String serial;
     private String offer;
     private String holder;
     private String project;
     private String certificateData;
+    private String certificateRef;
     private long timestamp;
+    // Parsed from the serial on first comparison, rebuilt after deserializing
+    private transient SerialKey serialKey;
 
     public Badge() {
         this.timestamp = System.currentTimeMillis();
@@ -29,7 +43,24 @@ public class Badge implements Serializable {
 
     // Getters and Setters
     public String getSerial() { return serial; }
-    public void setSerial(String serial) { this.serial = serial; }
+    public void setSerial(String serial) {
+        this.serial = serial;
+        this.serialKey = null;
+    }
+
+    /**
+     * Get the typed sort key of the serial
+     *
+     * Parsed once and kept, so sorting never parses serials again.
+     */
+    public SerialKey getSerialKey() {
+        SerialKey key = serialKey;
+        if (key == null) {
+            key = SerialKey.of(serial);
+            serialKey = key;
+        }
+        return key;
+    }
 
     public String getOffer() { return offer; }
     public void setOffer(String offer) { this.offer = offer; }
@@ -40,11 +71,32 @@ public class Badge implements Serializable {
     public String getProject() { return project; }
     public void setProject(String project) { this.project = project; }
 
-    public String getCertificateData() { return certificateData; }
+    /**
+     * Get the base64 certificate
+     *
+     * A certificate stored by reference is loaded on first call and then
+     * kept, so listing badges never touches certificate files.
+     */
+    public String getCertificateData() {
+        if (certificateData == null && certificateRef != null && certificateLoader != null) {
+            certificateData = certificateLoader.loadCertificate(certificateRef);
+        }
+        return certificateData;
+    }
     public void setCertificateData(String certificateData) {
         this.certificateData = certificateData;
     }
 
+    // Digest of the stored certificate, null while the certificate is inline
+    public String getCertificateRef() { return certificateRef; }
+    public void setCertificateRef(String certificateRef) {
+        this.certificateRef = certificateRef;
+    }
+
+    public static void setCertificateLoader(CertificateLoader loader) {
+        certificateLoader = loader;
+    }
+
     public long getTimestamp() { return timestamp; }
     public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
 
@@ -0,0 +1,127 @@
+package org.defalsified.android.badged.models;
+
+/**
+ * Sort key of a badge serial, parsed once
+ *
+ * Serials made of decimal digits, with an optional leading minus, that
+ * fit a long compare by value. Any other serial, wider numbers included,
+ * compares as text, by code point, and sorts below every numeric serial.
+ * Numerically equal serials such as "7" and "007" fall back to comparing
+ * the text, so two keys are only equal when their serials are.
+ *
+ * This is the order SQLite gives the serial_number and serial columns
+ * of {@code SqliteBadgeStore}, where numbers are 64-bit integers and text
+ * compares as UTF-8 bytes, so every badge store lists badges alike.
+ */
+public final class SerialKey implements Comparable<SerialKey> {
+    private final String serial;
+    private final boolean numeric;
+    private final long number;
+
+    private SerialKey(String serial, boolean numeric, long number) {
+        this.serial = serial;
+        this.numeric = numeric;
+        this.number = number;
+    }
+
+    /**
+     * Parse a serial
+     *
+     * @param serial The serial, null sorts as an empty text serial
+     */
+    public static SerialKey of(String serial) {
+        if (serial == null) {
+            serial = "";
+        }
+        if (!isNumber(serial)) {
+            return new SerialKey(serial, false, 0);
+        }
+
+        try {
+            return new SerialKey(serial, true, Long.parseLong(serial));
+        } catch (NumberFormatException e) {
+            // Wider than a long, which SQLite cannot store as an integer either
+            return new SerialKey(serial, false, 0);
+        }
+    }
+
+    public String getSerial() { return serial; }
+
+    public boolean isNumeric() { return numeric; }
+
+    /**
+     * Value of a numeric serial
+     *
+     * @return The value, or null for text serials
+     */
+    public Long toLong() {
+        return numeric ? number : null;
+    }
+
+    /**
+     * Compare by value for numeric serials, ascending
+     *
+     * Listings that show the latest badge first use the reverse.
+     */
+    @Override
+    public int compareTo(SerialKey other) {
+        if (numeric != other.numeric) {
+            return numeric ? 1 : -1;
+        }
+
+        if (numeric) {
+            int result = Long.compare(number, other.number);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return compareCodePoints(serial, other.serial);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return serial.equals(((SerialKey) o).serial);
+    }
+
+    @Override
+    public int hashCode() {
+        return serial.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return serial;
+    }
+
+    // Same order as comparing the UTF-8 bytes, unlike String.compareTo past U+FFFF
+    private static int compareCodePoints(String s1, String s2) {
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < s1.length() && i2 < s2.length()) {
+            int c1 = s1.codePointAt(i1);
+            int c2 = s2.codePointAt(i2);
+            if (c1 != c2) {
+                return Integer.compare(c1, c2);
+            }
+            i1 += Character.charCount(c1);
+            i2 += Character.charCount(c2);
+        }
+        return Integer.compare(s1.length() - i1, s2.length() - i2);
+    }
+
+    private static boolean isNumber(String serial) {
+        int start = serial.startsWith("-") ? 1 : 0;
+        if (start == serial.length()) {
+            return false;
+        }
+        for (int i = start; i < serial.length(); i++) {
+            char c = serial.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
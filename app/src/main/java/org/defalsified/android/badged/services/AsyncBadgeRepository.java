@@ -0,0 +1,176 @@
+package org.defalsified.android.badged.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.defalsified.android.badged.models.Badge;
+import org.defalsified.android.badged.storage.BadgeCursor;
+import org.defalsified.android.badged.storage.BadgePage;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Non-blocking front of {@link BadgeRepository}
+ *
+ * Writes run one at a time on {@link BadgeExecutors#writer()}, reads on
+ * the background pool. Every call returns a future completed off the main
+ * thread; the overloads taking a {@link Callback} deliver the result, or
+ * the failure, on the main thread instead, ready to touch views. The
+ * repository itself is opened on the writer thread too, since opening may
+ * migrate old data.
+ */
+public class AsyncBadgeRepository {
+    private static final String TAG = "AsyncBadgeRepository";
+
+    /**
+     * Receives a result on the main thread
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+
+        /**
+         * Called instead of {@link #onResult} when the work failed
+         *
+         * Logs the failure by default; override it to leave a loading state.
+         */
+        default void onError(Throwable error) {
+            Log.e(TAG, "Badge repository call failed", error);
+        }
+    }
+
+    private final CompletableFuture<BadgeRepository> repository;
+    private final Executor writer;
+    private final Executor background;
+    private final Executor mainThread;
+
+    public AsyncBadgeRepository(Context context) {
+        this(openRepository(context.getApplicationContext()), BadgeExecutors.writer(),
+                BadgeExecutors.background(), BadgeExecutors.mainThread());
+    }
+
+    /**
+     * @param repository Completes with the repository once it is open
+     * @param writer Runs writes, one at a time
+     * @param background Runs reads
+     * @param mainThread Runs callbacks
+     */
+    AsyncBadgeRepository(CompletableFuture<BadgeRepository> repository, Executor writer,
+                         Executor background, Executor mainThread) {
+        this.repository = repository;
+        this.writer = writer;
+        this.background = background;
+        this.mainThread = mainThread;
+    }
+
+    private static CompletableFuture<BadgeRepository> openRepository(Context appContext) {
+        return CompletableFuture.supplyAsync(() -> new BadgeRepository(appContext),
+                BadgeExecutors.writer());
+    }
+
+    /**
+     * Get a badge by its serial
+     *
+     * @return Completes with the badge, or null if there is none
+     */
+    public CompletableFuture<Badge> getBadgeById(String badgeSerial) {
+        return read(repo -> repo.getBadgeById(badgeSerial));
+    }
+
+    public void getBadgeById(String badgeSerial, Callback<Badge> callback) {
+        deliver(getBadgeById(badgeSerial), callback);
+    }
+
+    /**
+     * Get all badges, latest first
+     */
+    public CompletableFuture<List<Badge>> getAllBadges() {
+        return read(BadgeRepository::getAllBadges);
+    }
+
+    public void getAllBadges(Callback<List<Badge>> callback) {
+        deliver(getAllBadges(), callback);
+    }
+
+    /**
+     * Get one page of badges, see {@link BadgeRepository#getBadgePage}
+     */
+    public CompletableFuture<BadgePage> getBadgePage(BadgeCursor.Order order, BadgeCursor after,
+                                                     int pageSize) {
+        return read(repo -> repo.getBadgePage(order, after, pageSize));
+    }
+
+    public void getBadgePage(BadgeCursor.Order order, BadgeCursor after, int pageSize,
+                             Callback<BadgePage> callback) {
+        deliver(getBadgePage(order, after, pageSize), callback);
+    }
+
+    /**
+     * Save a badge on the writer thread
+     *
+     * @return Completes with true once the badge is durably stored
+     */
+    public CompletableFuture<Boolean> saveBadge(Badge badge) {
+        return write(repo -> repo.saveBadge(badge));
+    }
+
+    /**
+     * Save several badges in one write on the writer thread
+     *
+     * @return Completes with true once all of them are durably stored
+     */
+    public CompletableFuture<Boolean> saveBadges(Collection<Badge> badges) {
+        return write(repo -> repo.saveBadges(badges));
+    }
+
+    /**
+     * Save a badge unless one with the same serial is already stored
+     *
+     * The lookup and the save run as one step on the writer thread, so two
+     * scans of the same badge cannot both save it.
+     *
+     * @return Completes with the badge now in the wallet: the given badge
+     *         if it was saved, the earlier one otherwise. Completes
+     *         exceptionally with an {@link IOException} if the save failed.
+     */
+    public CompletableFuture<Badge> saveBadgeIfAbsent(Badge badge) {
+        return write(repo -> {
+            Badge existing = repo.getBadgeById(badge.getSerial());
+            if (existing != null) {
+                return existing;
+            }
+            if (!repo.saveBadge(badge)) {
+                throw new CompletionException(
+                        new IOException("Failed to save badge " + badge.getSerial()));
+            }
+            return badge;
+        });
+    }
+
+    private <T> CompletableFuture<T> read(Function<BadgeRepository, T> task) {
+        return CompletableFuture.supplyAsync(() -> task.apply(repository.join()), background);
+    }
+
+    // Submitted straight to the writer, keeping writes in call order; the
+    // repository was opened by an earlier task on the same thread
+    private <T> CompletableFuture<T> write(Function<BadgeRepository, T> task) {
+        return CompletableFuture.supplyAsync(() -> task.apply(repository.join()), writer);
+    }
+
+    // Exactly one of the two callback methods is called, so callers can always leave loading
+    private <T> void deliver(CompletableFuture<T> future, Callback<T> callback) {
+        future.whenCompleteAsync((result, error) -> {
+            if (error == null) {
+                callback.onResult(result);
+            } else {
+                callback.onError(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            }
+        }, mainThread);
+    }
+}
@@ -0,0 +1,86 @@
+package org.defalsified.android.badged.services;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads that badge work runs on
+ *
+ * Every write to the wallet goes through the single writer thread, so
+ * saves are applied one at a time in submission order. Reads and other
+ * slow work run on a small background pool, and results meant for views
+ * are handed to the main thread.
+ */
+public final class BadgeExecutors {
+    private static final int BACKGROUND_THREADS = 2;
+
+    private static ScheduledExecutorService writer;
+    private static ExecutorService background;
+    private static ScheduledExecutorService idle;
+    private static Executor mainThread;
+
+    private BadgeExecutors() {}
+
+    /**
+     * The single thread every wallet write runs on
+     */
+    public static synchronized ScheduledExecutorService writer() {
+        if (writer == null) {
+            writer = Executors.newSingleThreadScheduledExecutor(daemon("badge-writer"));
+        }
+        return writer;
+    }
+
+    /**
+     * Pool for reads and verification, kept off the main thread
+     */
+    public static synchronized ExecutorService background() {
+        if (background == null) {
+            background = Executors.newFixedThreadPool(BACKGROUND_THREADS,
+                    daemon("badge-background"));
+        }
+        return background;
+    }
+
+    /**
+     * Low priority thread for maintenance that can wait, such as re-verification
+     */
+    public static synchronized ScheduledExecutorService idle() {
+        if (idle == null) {
+            ThreadFactory factory = daemon("badge-idle");
+            idle = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = factory.newThread(runnable);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        }
+        return idle;
+    }
+
+    /**
+     * Runs tasks on the main thread, for delivering results to views
+     */
+    public static synchronized Executor mainThread() {
+        if (mainThread == null) {
+            Handler handler = new Handler(Looper.getMainLooper());
+            mainThread = handler::post;
+        }
+        return mainThread;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
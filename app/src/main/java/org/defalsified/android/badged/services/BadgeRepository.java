@@ -4,70 +4,174 @@ import android.content.Context;
 import android.util.Log;
 
 import org.defalsified.android.badged.models.Badge;
+import org.defalsified.android.badged.storage.BadgeCache;
+import org.defalsified.android.badged.storage.BadgeCursor;
+import org.defalsified.android.badged.storage.BadgeJsonCodec;
+import org.defalsified.android.badged.storage.BadgeLog;
+import org.defalsified.android.badged.storage.BadgePage;
+import org.defalsified.android.badged.storage.BadgeStore;
+import org.defalsified.android.badged.storage.BadgeWriteCoalescer;
+import org.defalsified.android.badged.storage.CertificateBlobStore;
+import org.defalsified.android.badged.storage.SqliteBadgeStore;
 import org.defalsified.android.badged.utils.PrefsManager;
 
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 /**
- * Repository for managing badge data using SharedPreferences
+ * Repository for managing badge data
+ *
+ * Badges are kept in a {@link BadgeStore}: the append-only badge log by
+ * default, or SQLite when selected with {@link #setStoreBackend}. A
+ * process-wide write-through cache sits in front of either. Saves are
+ * durable once they return; {@link #queueBadge} merges saves arriving
+ * close together into one write.
  */
 public class BadgeRepository {
     private static final String TAG = "BadgeRepository";
+
+    // Storage backends
+    public static final String BACKEND_LOG = "log";
+    public static final String BACKEND_SQLITE = "sqlite";
+    private static final String PREF_BADGE_STORE = "badge_store";
+
+    // Legacy storage: the whole wallet as one JSON array in SharedPreferences
     private static final String PREF_BADGES = "user_badges";
+    private static final String PREF_BADGES_MIGRATED = "user_badges_migrated";
+
+    // Default time a queued save waits for others to share its write
+    private static final long DEFAULT_WRITE_WINDOW_MS = 50;
+
+    // Shared by every repository instance in the process
+    private static final BadgeCache cache = new BadgeCache();
+    private static BadgeWriteCoalescer writeCoalescer;
+    private static long writeWindowMillis = DEFAULT_WRITE_WINDOW_MS;
 
     private final PrefsManager prefsManager;
+    private final BadgeStore badgeStore;
+    private final CertificateBlobStore certificateStore;
 
     public BadgeRepository(Context context) {
         this.prefsManager = new PrefsManager(context);
+
+        // Certificates live in their own files and load lazily
+        this.certificateStore = CertificateBlobStore.open(context);
+        Badge.setCertificateLoader(certificateStore);
+
+        String backend = prefsManager.getString(PREF_BADGE_STORE, BACKEND_LOG);
+        if (BACKEND_SQLITE.equals(backend)) {
+            this.badgeStore = SqliteBadgeStore.open(context);
+            migrateLegacyBadges(PREF_BADGES_MIGRATED + "_" + BACKEND_SQLITE);
+        } else {
+            this.badgeStore = BadgeLog.open(context);
+            migrateLegacyBadges(PREF_BADGES_MIGRATED);
+        }
+    }
+
+    /**
+     * Select the storage backend used by repositories created from now on
+     *
+     * Each backend imports the legacy preference wallet once on first use;
+     * badges saved to one backend are not copied to the other.
+     *
+     * @param backend {@link #BACKEND_LOG} or {@link #BACKEND_SQLITE}
+     */
+    public static void setStoreBackend(Context context, String backend) {
+        synchronized (BadgeRepository.class) {
+            // Queued saves belong to the old backend
+            if (writeCoalescer != null) {
+                writeCoalescer.flushNow();
+                writeCoalescer = null;
+            }
+        }
+        new PrefsManager(context).commitString(PREF_BADGE_STORE, backend);
+        cache.invalidate();
+    }
+
+    /**
+     * Set how long a queued save waits for others to share its write
+     *
+     * A longer window merges more saves per write at the cost of
+     * latency until they are durable.
+     */
+    public static synchronized void setWriteWindow(long windowMillis) {
+        writeWindowMillis = windowMillis;
+        if (writeCoalescer != null) {
+            writeCoalescer.setWindowMillis(windowMillis);
+        }
     }
 
     /**
      * Save a badge to storage
+     *
+     * Writes a single badge to the store, replacing any earlier badge
+     * with the same serial. The certificate is stored separately and the
+     * badge record only references it.
      */
     public boolean saveBadge(Badge badge) {
+        return saveBadges(Collections.singletonList(badge));
+    }
+
+    /**
+     * Save several badges in one write
+     *
+     * Either all of the badges are stored or none are. Returns once they
+     * are on disk.
+     */
+    public boolean saveBadges(Collection<Badge> badges) {
         try {
-            // Get all badges
-            List<Badge> badges = getAllBadges();
-
-            // Check if badge already exists
-            for (int i = 0; i < badges.size(); i++) {
-                if (badges.get(i).getSerial().equals(badge.getSerial())) {
-                    // Update existing badge
-                    badges.set(i, badge);
-                    return saveBadgeList(badges);
-                }
+            for (Badge badge : badges) {
+                certificateStore.externalize(badge);
             }
+            badgeStore.putAll(badges);
+            badgeStore.sync();
+            cache.putAll(badges);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving " + badges.size() + " badges", e);
+            return false;
+        }
+    }
 
-            // Add new badge
-            badges.add(badge);
-
-            // Sorting vouchers latest first( descending order by serial number)
-            badges.sort(new Comparator<Badge>() {
-                @Override
-                public int compare(Badge b1, Badge b2) {
-                    try {
-                        int serial1 = Integer.parseInt(b1.getSerial());
-                        int serial2 = Integer.parseInt(b2.getSerial());
-                        return Integer.compare(serial2, serial1);
-                    } catch (NumberFormatException e) {
-                        Log.w(TAG, "Failed to parse serial numbers as integers, using string comparison");
-                        return b2.getSerial().compareTo(b1.getSerial());
-                    }
-                }
-            });
+    /**
+     * Queue a badge to be saved together with others saved around the same time
+     *
+     * Does not block. Saves queued within the write window go to the store
+     * as one batch on a background thread.
+     *
+     * @return Completes with the result of {@link #saveBadges} for the batch
+     */
+    public Future<Boolean> queueBadge(Badge badge) {
+        return coalescer().submit(badge);
+    }
 
-            return saveBadgeList(badges);
+    /**
+     * Write queued saves now rather than at the end of their window
+     */
+    public static Future<Boolean> flushQueuedBadges() {
+        synchronized (BadgeRepository.class) {
+            if (writeCoalescer == null) {
+                return CompletableFuture.completedFuture(true);
+            }
+            return writeCoalescer.flushNow();
+        }
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error saving badge", e);
-            return false;
+    private BadgeWriteCoalescer coalescer() {
+        synchronized (BadgeRepository.class) {
+            if (writeCoalescer == null) {
+                writeCoalescer = new BadgeWriteCoalescer(this::saveBadges,
+                        BadgeExecutors.writer(), writeWindowMillis);
+            }
+            return writeCoalescer;
         }
     }
 
@@ -75,74 +179,144 @@ public class BadgeRepository {
      * Get a badge by its serial
      */
     public Badge getBadgeById(String badgeSerial) {
-        List<Badge> badges = getAllBadges();
-
-        for (Badge badge : badges) {
-            if (badge.getSerial().equals(badgeSerial)) {
-                return badge;
-            }
+        try {
+            return cache.get(badgeSerial, badgeStore);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading badge " + badgeSerial, e);
+            return null;
         }
-
-        return null;
     }
 
     /**
-     * Get and return all badges
+     * Get and return all badges, latest first
      */
     public List<Badge> getAllBadges() {
-        List<Badge> badges = new ArrayList<>();
-
-        String badgesJson = prefsManager.getString(PREF_BADGES, "[]");
-
         try {
-            JSONArray badgesArray = new JSONArray(badgesJson);
-
-            for (int i = 0; i < badgesArray.length(); i++) {
-                JSONObject badgeJson = badgesArray.getJSONObject(i);
-
-                Badge badge = new Badge();
-                badge.setSerial(badgeJson.getString("serial"));
-                badge.setOffer(badgeJson.getString("offer"));
-                badge.setHolder(badgeJson.getString("holder"));
-                badge.setProject(badgeJson.getString("project"));
-                badge.setCertificateData(badgeJson.getString("certificateData"));
-                badge.setTimestamp(badgeJson.getLong("timestamp"));
+            return cache.getAll(badgeStore);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading badges", e);
+            return new ArrayList<>();
+        }
+    }
 
-                badges.add(badge);
+    /**
+     * Get one page of badges
+     *
+     * Reads only the badges on the page, so listing cost does not grow
+     * with the size of the wallet.
+     *
+     * @param order Sort order of the listing
+     * @param after Cursor from the previous page, or null for the first page
+     * @param pageSize Maximum number of badges on the page
+     */
+    public BadgePage getBadgePage(BadgeCursor.Order order, BadgeCursor after, int pageSize) {
+        try {
+            // One extra badge tells whether another page follows
+            List<Badge> badges = badgeStore.getPage(order, after, pageSize + 1);
+            if (badges.size() <= pageSize) {
+                return new BadgePage(badges, null);
             }
 
-        } catch (JSONException e) {
-            Log.e(TAG, "Error parsing badges JSON", e);
+            badges = new ArrayList<>(badges.subList(0, pageSize));
+            return new BadgePage(badges, BadgeCursor.after(order, badges.get(pageSize - 1)));
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading badge page", e);
+            return new BadgePage(new ArrayList<>(), null);
+        }
+    }
+
+    /**
+     * Get the badges issued for a project, latest first
+     */
+    public List<Badge> getBadgesByProject(String project) {
+        try {
+            return badgeStore.findByProject(project);
+        } catch (IOException e) {
+            Log.e(TAG, "Error querying badges for project " + project, e);
+            return new ArrayList<>();
         }
+    }
 
-        return badges;
+    /**
+     * Get the badges issued to a holder, latest first
+     */
+    public List<Badge> getBadgesByHolder(String holder) {
+        try {
+            return badgeStore.findByHolder(holder);
+        } catch (IOException e) {
+            Log.e(TAG, "Error querying badges for holder " + holder, e);
+            return new ArrayList<>();
+        }
     }
 
     /**
-     * Save a list of badges to storage
+     * Get the badges saved within a time range, latest first
+     *
+     * @param from Start of the range in epoch millis, inclusive
+     * @param to End of the range in epoch millis, exclusive
      */
-    private boolean saveBadgeList(List<Badge> badges) {
+    public List<Badge> getBadgesBetween(long from, long to) {
         try {
-            JSONArray badgesArray = new JSONArray();
+            return badgeStore.findByTimestamp(from, to);
+        } catch (IOException e) {
+            Log.e(TAG, "Error querying badges between " + from + " and " + to, e);
+            return new ArrayList<>();
+        }
+    }
 
-            for (Badge badge : badges) {
-                JSONObject badgeJson = new JSONObject();
-                badgeJson.put("serial", badge.getSerial());
-                badgeJson.put("offer", badge.getOffer());
-                badgeJson.put("holder", badge.getHolder());
-                badgeJson.put("project", badge.getProject());
-                badgeJson.put("certificateData", badge.getCertificateData());
-                badgeJson.put("timestamp", badge.getTimestamp());
-
-                badgesArray.put(badgeJson);
+    /**
+     * Get the badge cache, for its hit/miss counters or to invalidate it
+     * after the store was changed without going through a repository
+     */
+    public static BadgeCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Move badges from the legacy preference blob into the badge store
+     *
+     * Runs once per install and backend, as a single batch that is synced
+     * before the flag is committed. The blob itself is left in place so
+     * that a downgrade still finds the wallet. Replaying an interrupted
+     * migration is harmless since saves replace earlier badges by serial.
+     *
+     * @param migratedKey Preference flag marking the migration done
+     */
+    private void migrateLegacyBadges(String migratedKey) {
+        synchronized (BadgeRepository.class) {
+            if (prefsManager.getBoolean(migratedKey, false)) {
+                return;
             }
 
-            prefsManager.setString(PREF_BADGES, badgesArray.toString());
-            return true;
+            String badgesJson = prefsManager.getString(PREF_BADGES, null);
+            if (badgesJson != null) {
+                try {
+                    JSONArray badgesArray = new JSONArray(badgesJson);
+                    List<Badge> badges = new ArrayList<>(badgesArray.length());
 
-        } catch (JSONException e) {
-            Log.e(TAG, "Error creating badges JSON", e);
-            return false;
+                    for (int i = 0; i < badgesArray.length(); i++) {
+                        try {
+                            Badge badge = BadgeJsonCodec.fromJson(badgesArray.getJSONObject(i));
+                            certificateStore.externalize(badge);
+                            badges.add(badge);
+                        } catch (JSONException e) {
+                            Log.e(TAG, "Skipping unreadable legacy badge " + i, e);
+                        }
+                    }
+                    badgeStore.putAll(badges);
+                    badgeStore.sync();
+
+                    cache.invalidate();
+                    Log.d(TAG, "Migrated " + badges.size() + " legacy badges");
+                } catch (JSONException e) {
+                    Log.e(TAG, "Error parsing legacy badges JSON", e);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error migrating legacy badges", e);
+                    return;
+                }
+            }
+
+            prefsManager.commitBoolean(migratedKey, true);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,263 @@
+package org.defalsified.android.badged.services;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import org.defalsified.android.badged.models.Badge;
+import org.defalsified.android.badged.storage.BadgeCursor;
+import org.defalsified.android.badged.storage.BadgePage;
+import org.defalsified.android.badged.storage.VerificationStateStore;
+import org.defalsified.android.badged.utils.PrefsManager;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background re-verification of stored badges
+ *
+ * Walks the wallet in serial order a batch at a time, checks each
+ * certificate with {@link CertVerifier#verifyBatch} and records the outcome in
+ * the {@link VerificationStateStore}. Progress is checkpointed after
+ * every batch, so a pass resumes where it stopped after process death.
+ *
+ * A pass starts over whenever the trusted key set changes, and otherwise
+ * runs once a day. The job runs on the idle thread with one
+ * verification thread, waits between batches, and stands aside while
+ * it is paused for live scanning.
+ */
+public class BadgeReverifier {
+    private static final String TAG = "BadgeReverifier";
+
+    private static final int BATCH_SIZE = 32;
+    private static final long BATCH_DELAY_MS = 500;
+    private static final long PAUSED_DELAY_MS = 5000;
+    private static final long RETRY_DELAY_MS = 60 * 1000;
+    private static final long PASS_INTERVAL_MS = 24 * 60 * 60 * 1000;
+
+    // Checkpoint of the current pass
+    private static final String PREF_FINGERPRINT = "reverify_fingerprint";
+    private static final String PREF_AFTER_SERIAL = "reverify_after_serial";
+    private static final String PREF_AFTER_TIMESTAMP = "reverify_after_timestamp";
+    private static final String PREF_COMPLETED_AT = "reverify_completed_at";
+
+    private static BadgeReverifier instance;
+
+    private final Context context;
+    private final PrefsManager prefs;
+    private final TrustStore trustStore;
+    private final VerificationStateStore states;
+    private final AtomicInteger pauses = new AtomicInteger();
+
+    // Created on the idle thread, as opening it may migrate storage
+    private BadgeRepository repository;
+    // The live step chain, null until started; guarded by this
+    private Object chain;
+    private ScheduledFuture<?> scheduled;
+
+    /**
+     * Get the process-wide re-verifier
+     *
+     * @param context Any context, only its application context is kept
+     */
+    public static synchronized BadgeReverifier open(Context context) {
+        if (instance == null) {
+            instance = new BadgeReverifier(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private BadgeReverifier(Context context) {
+        this.context = context;
+        this.prefs = new PrefsManager(context);
+        this.trustStore = TrustStore.open(context);
+        this.states = VerificationStateStore.open(context);
+    }
+
+    /**
+     * Start or continue re-verifying, if not already scheduled
+     */
+    public synchronized void start() {
+        if (chain == null) {
+            schedule(0);
+        }
+    }
+
+    /**
+     * Hold off until {@link #resume}, for example while the scanner is open
+     *
+     * A batch already running finishes first; it is short.
+     */
+    public void pause() {
+        pauses.incrementAndGet();
+    }
+
+    /**
+     * Undo one {@link #pause}
+     */
+    public void resume() {
+        if (pauses.updateAndGet(count -> Math.max(count - 1, 0)) == 0) {
+            wake();
+        }
+    }
+
+    /**
+     * Start a new pass now rather than at the next check
+     */
+    static void onTrustedKeysChanged() {
+        BadgeReverifier reverifier;
+        synchronized (BadgeReverifier.class) {
+            reverifier = instance;
+        }
+        if (reverifier != null) {
+            reverifier.wake();
+        }
+    }
+
+    /**
+     * Latest re-verification outcome of a badge
+     *
+     * @return The state, or null if the badge was not re-verified yet
+     */
+    public VerificationStateStore.State getState(String serial) {
+        try {
+            return states.get(serial);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading verification state of " + serial, e);
+            return null;
+        }
+    }
+
+    // Run the next step now, superseding the pending one
+    private synchronized void wake() {
+        if (chain != null) {
+            scheduled.cancel(false);
+            schedule(0);
+        }
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        Object link = new Object();
+        chain = link;
+        scheduled = BadgeExecutors.idle().schedule(() -> step(link), delayMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void step(Object link) {
+        synchronized (this) {
+            if (chain != link) {
+                return;
+            }
+        }
+
+        long delay;
+        try {
+            delay = runBatch();
+        } catch (Exception e) {
+            Log.e(TAG, "Re-verification batch failed", e);
+            delay = RETRY_DELAY_MS;
+        }
+
+        synchronized (this) {
+            // A wake during the batch already scheduled the next step
+            if (chain == link) {
+                schedule(delay);
+            }
+        }
+    }
+
+    /**
+     * Verify the next batch of the current pass
+     *
+     * @return Milliseconds to wait before the next step
+     */
+    private long runBatch() throws IOException {
+        if (pauses.get() > 0) {
+            return PAUSED_DELAY_MS;
+        }
+        if (!trustStore.load()) {
+            return RETRY_DELAY_MS;
+        }
+
+        long now = System.currentTimeMillis();
+        String fingerprint = trustStore.getFingerprint();
+        if (!fingerprint.equals(prefs.getString(PREF_FINGERPRINT, null))) {
+            // Outcomes against other keys no longer hold, start over
+            Log.d(TAG, "Trusted keys changed, starting a new pass");
+            prefs.edit()
+                    .setString(PREF_FINGERPRINT, fingerprint)
+                    .setString(PREF_AFTER_SERIAL, null)
+                    .setLong(PREF_COMPLETED_AT, 0)
+                    .commit();
+        } else {
+            long completedAt = prefs.getLong(PREF_COMPLETED_AT, 0);
+            if (completedAt != 0 && now < completedAt + PASS_INTERVAL_MS) {
+                return completedAt + PASS_INTERVAL_MS - now;
+            }
+        }
+
+        String afterSerial = prefs.getString(PREF_AFTER_SERIAL, null);
+        BadgeCursor after = afterSerial == null ? null : BadgeCursor.at(BadgeCursor.Order.SERIAL,
+                afterSerial, prefs.getLong(PREF_AFTER_TIMESTAMP, 0));
+        BadgePage page = repository().getBadgePage(BadgeCursor.Order.SERIAL, after, BATCH_SIZE);
+        verify(page.getBadges(), now);
+
+        // States are written before the checkpoint, so a crash repeats a batch at worst
+        if (page.hasNext()) {
+            BadgeCursor next = page.getNext();
+            prefs.edit()
+                    .setString(PREF_AFTER_SERIAL, next.getSerial())
+                    .setLong(PREF_AFTER_TIMESTAMP, next.getTimestamp())
+                    .setLong(PREF_COMPLETED_AT, 0)
+                    .commit();
+            return BATCH_DELAY_MS;
+        }
+
+        prefs.edit()
+                .setString(PREF_AFTER_SERIAL, null)
+                .setLong(PREF_COMPLETED_AT, now)
+                .commit();
+        Log.d(TAG, "Re-verification pass complete");
+        return PASS_INTERVAL_MS;
+    }
+
+    private void verify(List<Badge> badges, long now) throws IOException {
+        if (badges.isEmpty()) {
+            return;
+        }
+
+        byte[][] certificates = new byte[badges.size()][];
+        for (int i = 0; i < certificates.length; i++) {
+            String certificateData = badges.get(i).getCertificateData();
+            try {
+                // Missing or undecodable certificates count as malformed
+                certificates[i] = certificateData != null
+                        ? Base64.decode(certificateData, Base64.DEFAULT) : null;
+            } catch (IllegalArgumentException e) {
+                certificates[i] = null;
+            }
+        }
+
+        // One thread, leaving the other cores to the foreground
+        int[] statuses = CertVerifiers.get().verifyBatch(certificates, 1);
+
+        Map<String, VerificationStateStore.State> updates = new HashMap<>();
+        for (int i = 0; i < statuses.length; i++) {
+            updates.put(badges.get(i).getSerial(),
+                    new VerificationStateStore.State(statuses[i], now));
+        }
+        states.putAll(updates);
+    }
+
+    private BadgeRepository repository() {
+        if (repository == null) {
+            repository = new BadgeRepository(context);
+        }
+        return repository;
+    }
+}
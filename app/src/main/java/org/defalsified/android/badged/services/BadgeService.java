@@ -1,8 +1,6 @@
 package org.defalsified.android.badged.services;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import org.defalsified.android.badged.dto.BadgeDTO;
@@ -10,75 +8,96 @@ import org.defalsified.android.badged.models.Badge;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
 public class BadgeService {
     private static final String TAG = "BadgeService";
     private final Context context;
-    private final BadgeRepository badgeRepository;
+    private final AsyncBadgeRepository badgeRepository;
     private final CertificateService certificateService;
+    private final Executor mainThread;
 
     public BadgeService(Context context) {
         this.context = context;
-        this.badgeRepository = new BadgeRepository(context);
+        this.badgeRepository = new AsyncBadgeRepository(context);
         this.certificateService = new CertificateService();
+        this.mainThread = BadgeExecutors.mainThread();
     }
 
     /**
      * Mint a new badge from QR data
+     *
+     * Verification runs in the background and the save on the badge
+     * writer thread. The callback is called on the main thread.
      */
     public void mintBadge(JSONObject qrData, BadgeCallback callback) {
-        new Handler(Looper.getMainLooper()).postDelayed(() -> {
-            try {
-                // Create BadgeDTO from QR data
-                BadgeDTO badgeDto = new BadgeDTO(qrData);
-
-                // Get certificate data
-                String certData = badgeDto.getCertificateData();
-
-                // Verify certificate using new method
-                boolean isValid = certificateService.verifyCertificate(certData);
-
-                if (!isValid) {
-                    callback.onError("Certificate verification failed");
-                    return;
-                }
-
-                // Check if badge already exists
-                Badge existingBadge = badgeRepository.getBadgeById(badgeDto.getSerial());
-                if (existingBadge != null) {
-                    callback.onSuccess(existingBadge, false);
-                    return;
-                }
-
-                // Extract certificate data if needed
-                JSONObject certJson = certificateService.extractCertificateData(certData);
-                if (certJson == null) {
-                    callback.onError("Failed to extract certificate data");
-                    return;
-                }
-
-                // Create new badge using constructor
-                Badge badge = new Badge(
-                        badgeDto.getSerial(),
-                        badgeDto.getOffer() + " Badge",
-                        badgeDto.getHolder(),
-                        badgeDto.getProject(),
-                        badgeDto.getCertificateData()
-                );
-
-                // Save badge to repository
-                boolean saved = badgeRepository.saveBadge(badge);
-
-                if (saved) {
-                    callback.onSuccess(badge, true);
-                } else {
-                    callback.onError("Failed to save badge");
-                }
-
-            } catch (Exception e) {
-                Log.e(TAG, "Error processing badge", e);
-                callback.onError("Processing error: " + e.getMessage());
+        CompletableFuture<Badge> minted =
+                CompletableFuture.supplyAsync(() -> prepareBadge(qrData), BadgeExecutors.background());
+
+        minted.thenCompose(badgeRepository::saveBadgeIfAbsent)
+                .whenCompleteAsync((stored, error) -> {
+                    if (error != null) {
+                        callback.onError(errorMessage(error));
+                        return;
+                    }
+                    // The minted badge comes back only if it was saved just now
+                    callback.onSuccess(stored, stored == minted.join());
+                }, mainThread);
+    }
+
+    private static String errorMessage(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause() : error;
+        if (cause instanceof MintException) {
+            return cause.getMessage();
+        }
+        if (cause instanceof IOException) {
+            return "Failed to save badge";
+        }
+        Log.e(TAG, "Error processing badge", cause);
+        return "Processing error: " + cause.getMessage();
+    }
+
+    /**
+     * Verify QR data and build the badge it describes
+     *
+     * @throws MintException If the certificate does not check out
+     */
+    private Badge prepareBadge(JSONObject qrData) {
+        try {
+            // Create BadgeDTO from QR data
+            BadgeDTO badgeDto = new BadgeDTO(qrData);
+
+            // Get certificate data
+            String certData = badgeDto.getCertificateData();
+
+            // Verify certificate using new method
+            boolean isValid = certificateService.verifyCertificate(certData);
+
+            if (!isValid) {
+                throw new MintException("Certificate verification failed");
+            }
+
+            // Extract certificate data if needed
+            JSONObject certJson = certificateService.extractCertificateData(certData);
+            if (certJson == null) {
+                throw new MintException("Failed to extract certificate data");
             }
-        }, 500);
+
+            // Create new badge using constructor
+            return new Badge(
+                    badgeDto.getSerial(),
+                    badgeDto.getOffer() + " Badge",
+                    badgeDto.getHolder(),
+                    badgeDto.getProject(),
+                    badgeDto.getCertificateData()
+            );
+        } catch (JSONException e) {
+            throw new CompletionException(e);
+        }
     }
 
     /**
@@ -88,4 +107,11 @@ public class BadgeService {
         void onSuccess(Badge badge, boolean isNewBadge);
         void onError(String errorMessage);
     }
-}
\ No newline at end of file
+
+    // A mint refused for a reason that is shown to the user as is
+    private static class MintException extends RuntimeException {
+        MintException(String message) {
+            super(message);
+        }
+    }
+}
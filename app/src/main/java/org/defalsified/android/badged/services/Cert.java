@@ -2,55 +2,178 @@ package org.defalsified.android.badged.services;
 
 import android.util.Log;
 
+import org.defalsified.android.badged.utils.Tracer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Certificate handler for verifying digital vouchers using libqaeda
  *
  * This class provides a secure interface to native certificate verification
  * functionality. It ensures certificates are properly verified against
  * trusted public keys before accepting their contents.
+ *
+ * Each Cert owns one deserialized native certificate, referenced by an
+ * opaque handle. Certificates share no native state, so different
+ * instances can be verified on different threads at the same time.
+ * Close a Cert when done with it, best in a try-with-resources block.
+ *
+ * When only the outcome is needed, {@link #verifyAndExtract} does the
+ * whole job in one native call without a handle. Most callers go through
+ * {@link CertVerifiers#get} instead, which falls back to a pure Java
+ * verifier where the native library is missing.
  */
-public class Cert {
+public class Cert implements AutoCloseable {
     private static final String TAG = "Cert";
 
+    // Whether libqaeda loaded; there is no build for every ABI
+    private static final boolean AVAILABLE;
+
     // Load libqaeda library
     static {
+        boolean loaded = false;
         try {
             System.loadLibrary("qaeda");
-            Log.d(TAG, "Successfully loaded libqaeda");
+            Tracer.d(TAG, "Successfully loaded libqaeda");
+            // Native logging and tracing follow the Java settings
+            Tracer.addListener(Cert::nativeSetTracer);
+            loaded = true;
         } catch (UnsatisfiedLinkError e) {
             Log.e(TAG, "Failed to load libqaeda: " + e.getMessage());
         }
+        AVAILABLE = loaded;
+    }
+
+    // Native certificate, 0 once closed
+    private long handle;
+
+    private Cert(long handle) {
+        this.handle = handle;
     }
 
     /**
-     * Deserialize certificate and extract JSON content
+     * Whether the native library loaded, so the native methods can be called
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Load the native library and initialize it, if not done yet
+     *
+     * Verification does this on first use; calling it early moves the
+     * cost off the first scan.
+     */
+    public static void initialize() {
+        nativeInitialize();
+    }
+
+    /**
+     * Deserialize a certificate
      *
      * @param serializedData The serialized certificate bytes
+     * @return The certificate, or null if the data is not a certificate
+     */
+    public static Cert deserialize(byte[] serializedData) {
+        long handle = nativeDeserialize(serializedData);
+        return handle != 0 ? new Cert(handle) : null;
+    }
+
+    /**
+     * Deserialize, verify and trust check a certificate in one native call
+     *
+     * @param serializedData The serialized certificate bytes
+     * @return The outcome, never null
+     */
+    public static Verification verifyAndExtract(byte[] serializedData) {
+        return nativeVerifyAndExtract(serializedData);
+    }
+
+    /**
+     * Deserialize, verify and trust check a certificate held in a direct buffer
+     *
+     * Native code parses the certificate in place, without copying it.
+     *
+     * @param certificate Direct buffer holding the certificate from index 0
+     * @param length Number of certificate bytes in the buffer
+     * @return The outcome, never null
+     */
+    public static Verification verifyAndExtract(ByteBuffer certificate, int length) {
+        if (!certificate.isDirect()) {
+            throw new IllegalArgumentException("Certificate buffer must be direct");
+        }
+        return nativeVerifyAndExtractDirect(certificate, length);
+    }
+
+    /**
+     * Verify many certificates on native worker threads
+     *
+     * The certificates are copied into native memory once and then
+     * verified in parallel, with no further JNI transitions per item.
+     *
+     * @param certificates Serialized certificates, null entries count as malformed
+     * @param threads Worker threads to use, or 0 for one per online core
+     * @return One {@link Verification} status code per certificate
+     */
+    public static int[] verifyBatch(byte[][] certificates, int threads) {
+        return nativeVerifyBatch(certificates, threads);
+    }
+
+    /**
+     * Verify many certificates using every core
+     */
+    public static int[] verifyBatch(byte[][] certificates) {
+        return verifyBatch(certificates, 0);
+    }
+
+    /**
+     * Replace the set of trusted issuer keys
+     *
+     * Verifications already running finish against the set they started
+     * with. Cached results must be invalidated afterwards, which
+     * {@link TrustStore} takes care of.
+     *
+     * @param keys Raw public keys, duplicates are ignored
+     * @return Number of distinct keys now trusted, or -1 if the set was not replaced
+     */
+    static int setTrustedKeys(byte[][] keys) {
+        return nativeSetTrustedKeys(keys);
+    }
+
+    /**
+     * Get the JSON content of the certificate
+     *
      * @return JSON string extracted from the certificate, or null if failed
      */
-    public native String deserialize(byte[] serializedData);
+    public synchronized String getJsonContent() {
+        return handle != 0 ? nativeGetContent(handle) : null;
+    }
 
     /**
-     * Verify the currently loaded certificate
+     * Verify the certificate
      *
      * This checks both the certificate's cryptographic integrity and
      * validates that it was signed by a trusted key.
      *
      * @return true if verification succeeds and the certificate is trusted, false otherwise
      */
-    public native boolean verify();
+    public synchronized boolean verify() {
+        return handle != 0 && nativeVerify(handle);
+    }
 
     /**
      * Free certificate resources
-     * Should be called when done with the certificate to prevent memory leaks
-     */
-    public native void destroy();
-
-    /**
-     * Clean up any global JNI resources
-     * Should be called when the application is shutting down
+     *
+     * Safe to call more than once; the certificate is unusable afterwards.
      */
-    public native void cleanupJNI();
+    @Override
+    public synchronized void close() {
+        if (handle != 0) {
+            nativeDestroy(handle);
+            handle = 0;
+        }
+    }
 
     /**
      * Helper method to deserialize and verify a certificate
@@ -58,14 +181,9 @@ public class Cert {
      * @param serializedData The serialized certificate bytes
      * @return JSON string extracted from the certificate if valid, null otherwise
      */
-    public String deserializeAndVerify(byte[] serializedData) {
-        String jsonContent = deserialize(serializedData);
-        if (jsonContent != null && verify()) {
-            return jsonContent;
-        }
-        // Clean up if verification failed
-        destroy();
-        return null;
+    public static String deserializeAndVerify(byte[] serializedData) {
+        Verification verification = verifyAndExtract(serializedData);
+        return verification.isVerified() ? verification.getJsonContent() : null;
     }
 
     /**
@@ -75,40 +193,120 @@ public class Cert {
      * @param serializedData The serialized certificate bytes
      * @return CertificateResult containing the status and JSON if successful
      */
-    public CertificateResult processAndCleanup(byte[] serializedData) {
-        CertificateResult result = new CertificateResult();
-
+    public static CertificateResult processAndCleanup(byte[] serializedData) {
         try {
-            // Deserialize
-            String jsonContent = deserialize(serializedData);
+            return verifyAndExtract(serializedData).toCertificateResult();
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing certificate: " + e.getMessage(), e);
+            CertificateResult result = new CertificateResult();
+            result.success = false;
+            result.error = "Exception during certificate processing: " + e.getMessage();
+            return result;
+        }
+    }
+
+    private static native void nativeSetTracer(int level, boolean tracing);
+
+    private static native void nativeInitialize();
+
+    private static native Verification nativeVerifyAndExtract(byte[] serializedData);
+
+    private static native Verification nativeVerifyAndExtractDirect(ByteBuffer certificate,
+                                                                    int length);
+
+    private static native int[] nativeVerifyBatch(byte[][] certificates, int threads);
+
+    private static native int nativeSetTrustedKeys(byte[][] keys);
+
+    private static native long nativeDeserialize(byte[] serializedData);
+
+    private static native String nativeGetContent(long handle);
+
+    private static native boolean nativeVerify(long handle);
+
+    private static native void nativeDestroy(long handle);
+
+    /**
+     * Everything one verification learns about a certificate
+     *
+     * Built by a {@link CertVerifier}; the payload and domain are present
+     * whenever the certificate could be deserialized, whether or not it verified.
+     * Instances are shared through the verification cache, so the getters
+     * hand out copies of the byte arrays.
+     */
+    public static final class Verification {
+        // Status codes, kept in sync with the native library
+        public static final int STATUS_OK = 0;
+        public static final int STATUS_MALFORMED = 1;
+        public static final int STATUS_INVALID_SIGNATURE = 2;
+        public static final int STATUS_UNTRUSTED = 3;
+        public static final int STATUS_ERROR = 4;
+
+        private final int status;
+        private final byte[] payload;
+        private final byte[] domain;
+        private final byte[] signerPublicKey;
+        // Decoded from the payload on first use
+        private String jsonContent;
+
+        // Called from native code and JavaCertVerifier
+        Verification(int status, byte[] payload, byte[] domain, byte[] signerPublicKey) {
+            this.status = status;
+            this.payload = payload;
+            this.domain = domain;
+            this.signerPublicKey = signerPublicKey;
+        }
+
+        public int getStatus() { return status; }
+
+        public boolean isVerified() { return status == STATUS_OK; }
+
+        // Raw request payload, null if the certificate did not deserialize
+        public byte[] getPayload() { return payload != null ? payload.clone() : null; }
+
+        // Public key that signed the request, null if none was found
+        public byte[] getSignerPublicKey() {
+            return signerPublicKey != null ? signerPublicKey.clone() : null;
+        }
+
+        // Payload size without a copy, for cache accounting
+        int payloadLength() { return payload != null ? payload.length : 0; }
+
+        public String getDomain() {
+            return domain != null ? new String(domain, StandardCharsets.UTF_8) : null;
+        }
+
+        /**
+         * Get the payload as a JSON string
+         *
+         * @return The payload, or null if there is none or it is empty, as
+         *         the native content extraction has always reported
+         */
+        public synchronized String getJsonContent() {
+            if (jsonContent == null && payload != null && payload.length > 0) {
+                jsonContent = new String(payload, StandardCharsets.UTF_8);
+            }
+            return jsonContent;
+        }
+
+        /**
+         * Convert to the result shape the scanner reports
+         */
+        public CertificateResult toCertificateResult() {
+            CertificateResult result = new CertificateResult();
+            String jsonContent = getJsonContent();
             if (jsonContent == null) {
                 result.success = false;
                 result.error = "Failed to deserialize certificate";
-                return result;
-            }
-
-            // Verify
-            boolean isValid = verify();
-            if (!isValid) {
+            } else if (!isVerified()) {
                 result.success = false;
                 result.error = "Certificate verification failed: Not trusted or invalid signature";
-                destroy(); // Clean up on failure
-                return result;
+            } else {
+                result.success = true;
+                result.jsonContent = jsonContent;
             }
-
-            // Success
-            result.success = true;
-            result.jsonContent = jsonContent;
-        } catch (Exception e) {
-            Log.e(TAG, "Error processing certificate: " + e.getMessage(), e);
-            result.success = false;
-            result.error = "Exception during certificate processing: " + e.getMessage();
-        } finally {
-            // Clean up resources
-            destroy();
+            return result;
         }
-
-        return result;
     }
 
     /**
@@ -119,4 +317,4 @@ public class Cert {
         public String jsonContent;
         public String error;
     }
-}
\ No newline at end of file
+}
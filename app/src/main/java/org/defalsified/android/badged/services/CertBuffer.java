@@ -0,0 +1,135 @@
+package org.defalsified.android.badged.services;
+
+import java.nio.ByteBuffer;
+import org.defalsified.android.badged.utils.Spare;
+
+import java.util.Arrays;
+
+/**
+ * Reusable direct buffer holding one decoded certificate
+ *
+ * Base64 from a QR code is decoded straight into native-visible memory,
+ * so verification reads it in place without a byte[] in between. Buffers
+ * are borrowed and given back; the one spare is kept for the next scan.
+ */
+final class CertBuffer {
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private static final int SKIP = -1;
+    private static final int EQUALS = -2;
+
+    // Decoded value of each base64 character, as Base64.DEFAULT reads it:
+    // the standard alphabet only, padding, and everything else skipped
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) SKIP);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+        DECODE['='] = EQUALS;
+    }
+
+    private static final Spare<CertBuffer> spare = new Spare<>();
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    private int length;
+
+    private CertBuffer() {}
+
+    /**
+     * Borrow a buffer, the spare one if it is free
+     */
+    static CertBuffer acquire() {
+        CertBuffer certBuffer = spare.take();
+        return certBuffer != null ? certBuffer : new CertBuffer();
+    }
+
+    /**
+     * Give a borrowed buffer back
+     */
+    void release() {
+        spare.put(this);
+    }
+
+    /**
+     * Decode base64 into the buffer, replacing what it held
+     *
+     * Gives the same bytes as {@code Base64.decode(text, Base64.DEFAULT)},
+     * which the rest of the app decodes vouchers with: characters outside
+     * the standard alphabet, URL-safe ones included, are skipped, padding
+     * is optional, and nothing but skipped characters may follow it.
+     *
+     * @throws IllegalArgumentException If the text is not base64
+     */
+    void decode(CharSequence base64) {
+        int capacity = base64.length() / 4 * 3 + 3;
+        if (buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(Math.max(capacity, buffer.capacity() * 2));
+        }
+
+        int value = 0;
+        // Characters of the current group of four, and '=' seen: 1 wants another, 2 is done
+        int count = 0;
+        int padding = 0;
+        int out = 0;
+        for (int i = 0; i < base64.length(); i++) {
+            char c = base64.charAt(i);
+            // Non-ASCII text arrives as UTF-8 bytes there, all of which are skipped
+            int d = c < 128 ? DECODE[c] : SKIP;
+            if (d == SKIP) {
+                continue;
+            }
+            if (d == EQUALS) {
+                if (padding == 1) {
+                    padding = 2;
+                } else if (padding == 0 && count == 2) {
+                    buffer.put(out++, (byte) (value >> 4));
+                    padding = 1;
+                } else if (padding == 0 && count == 3) {
+                    buffer.put(out++, (byte) (value >> 10));
+                    buffer.put(out++, (byte) (value >> 2));
+                    padding = 2;
+                } else {
+                    throw new IllegalArgumentException("bad base-64");
+                }
+                count = 0;
+                continue;
+            }
+            if (padding != 0) {
+                throw new IllegalArgumentException("bad base-64");
+            }
+
+            value = (value << 6) | d;
+            if (++count == 4) {
+                buffer.put(out++, (byte) (value >> 16));
+                buffer.put(out++, (byte) (value >> 8));
+                buffer.put(out++, (byte) value);
+                count = 0;
+                value = 0;
+            }
+        }
+
+        if (padding == 1 || count == 1) {
+            throw new IllegalArgumentException("bad base-64");
+        } else if (count == 2) {
+            buffer.put(out++, (byte) (value >> 4));
+        } else if (count == 3) {
+            buffer.put(out++, (byte) (value >> 10));
+            buffer.put(out++, (byte) (value >> 2));
+        }
+        length = out;
+    }
+
+    /**
+     * Direct buffer holding the decoded bytes from position 0
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+}
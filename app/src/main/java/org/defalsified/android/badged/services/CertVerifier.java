@@ -0,0 +1,59 @@
+package org.defalsified.android.badged.services;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Certificate verification backend
+ *
+ * Deserializes a libqaeda certificate, checks its signatures and checks
+ * the signer against the trusted issuer keys. {@link NativeCertVerifier}
+ * does this in libqaeda, which only ships for arm64; {@link JavaCertVerifier}
+ * does the same in plain Java, for other ABIs and for JVM tests and
+ * benchmarks. Both give the same outcome for the same certificate.
+ *
+ * Implementations are thread safe. Use {@link CertVerifiers#get} for the
+ * backend of this process.
+ */
+public interface CertVerifier {
+
+    /**
+     * Ready the backend ahead of the first verification
+     */
+    void initialize();
+
+    /**
+     * Deserialize, verify and trust check a certificate
+     *
+     * @param certificate The serialized certificate bytes
+     * @return The outcome, never null
+     */
+    Cert.Verification verify(byte[] certificate);
+
+    /**
+     * Same as {@link #verify(byte[])}, for a certificate held in a buffer
+     *
+     * @param certificate Buffer holding the certificate from index 0
+     * @param length Number of certificate bytes in the buffer
+     * @return The outcome, never null
+     */
+    Cert.Verification verify(ByteBuffer certificate, int length);
+
+    /**
+     * Verify many certificates, possibly in parallel
+     *
+     * @param certificates Serialized certificates, null entries count as malformed
+     * @param threads Worker threads to use, or 0 for one per core
+     * @return One {@link Cert.Verification} status code per certificate
+     */
+    int[] verifyBatch(byte[][] certificates, int threads);
+
+    /**
+     * Replace the set of trusted issuer keys
+     *
+     * Verifications already running finish against the set they started with.
+     *
+     * @param keys Raw public keys, duplicates are ignored
+     * @return Number of distinct keys now trusted, or -1 if the set was not replaced
+     */
+    int setTrustedKeys(byte[][] keys);
+}
@@ -0,0 +1,28 @@
+package org.defalsified.android.badged.services;
+
+import android.util.Log;
+
+/**
+ * The certificate verification backend of this process
+ *
+ * libqaeda when its native library loaded, the pure Java verifier
+ * otherwise, for example on x86 devices, which get no native build.
+ */
+public final class CertVerifiers {
+    private static final String TAG = "CertVerifiers";
+
+    private static CertVerifier instance;
+
+    private CertVerifiers() {}
+
+    /**
+     * Get the process-wide backend, picking it on first use
+     */
+    public static synchronized CertVerifier get() {
+        if (instance == null) {
+            instance = Cert.isAvailable() ? new NativeCertVerifier() : new JavaCertVerifier();
+            Log.i(TAG, "Verifying certificates with " + instance.getClass().getSimpleName());
+        }
+        return instance;
+    }
+}
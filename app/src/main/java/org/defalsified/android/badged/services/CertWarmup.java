@@ -0,0 +1,60 @@
+package org.defalsified.android.badged.services;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Readies certificate verification at app start
+ *
+ * Picks and initializes the verification backend, loads the trusted keys
+ * and runs one throwaway verification, all on a background thread, so
+ * the first real scan is as fast as any later one.
+ */
+public final class CertWarmup {
+    private static final String TAG = "CertWarmup";
+
+    private static CompletableFuture<Long> warmup;
+
+    private CertWarmup() {}
+
+    /**
+     * Start warming up, unless that was already started
+     *
+     * @param context Any context, only its application context is kept
+     * @return Completes with the warm-up time in milliseconds, or -1 if it failed
+     */
+    public static synchronized CompletableFuture<Long> start(Context context) {
+        if (warmup == null) {
+            Context app = context.getApplicationContext();
+            warmup = CompletableFuture.supplyAsync(() -> run(app), BadgeExecutors.background());
+        }
+        return warmup;
+    }
+
+    private static long run(Context context) {
+        try {
+            long started = SystemClock.elapsedRealtime();
+            // Picks the backend, loading libqaeda if there is one, then initializes it
+            CertVerifiers.get().initialize();
+            long initialized = SystemClock.elapsedRealtime();
+
+            TrustStore.open(context).load();
+            long loaded = SystemClock.elapsedRealtime();
+
+            CertificateService.warmUp();
+            long finished = SystemClock.elapsedRealtime();
+
+            Log.i(TAG, "Verifier warm-up took " + (finished - started) + "ms: verifier init "
+                    + (initialized - started) + "ms, trusted keys " + (loaded - initialized)
+                    + "ms, first verification " + (finished - loaded) + "ms");
+            return finished - started;
+        } catch (RuntimeException | LinkageError e) {
+            // Scanning retries all of this lazily
+            Log.e(TAG, "Verifier warm-up failed", e);
+            return -1L;
+        }
+    }
+}
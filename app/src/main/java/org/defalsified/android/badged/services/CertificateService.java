@@ -1,19 +1,53 @@
 package org.defalsified.android.badged.services;
 
-import android.util.Base64;
 import android.util.Log;
+
+import org.defalsified.android.badged.storage.CertificateBlobStore;
+import org.defalsified.android.badged.utils.Tracer;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.nio.ByteBuffer;
+
 /**
  * Service class for certificate operations
+ *
+ * Verification results are cached process-wide by certificate digest, so
+ * checking the same voucher again, as one scan does several times, costs
+ * a hash instead of a parse and a signature check. The verification itself
+ * is done by a {@link CertVerifier} backend, by default the process one.
  */
 public class CertificateService {
     private static final String TAG = "CertificateService";
-    private final Cert certHandler;
+
+    // Cache bounds: results kept, and payload bytes kept across them
+    private static final int CACHE_MAX_ENTRIES = 256;
+    private static final long CACHE_MAX_PAYLOAD_BYTES = 1024 * 1024;
+
+    // Validly signed, with a response, by a key nobody trusts: warm-up runs
+    // both signature checks and the trust lookup, and can never accept it
+    static final String WARM_UP_CERTIFICATE =
+            "MIIBDQQGYmFkZ2VkMEUBAf8EFHsic2VyaWFsIjoid2FybS11cCJ9BAgAAAAAAAAA"
+            + "AAQg0wVUFhI+2TRRaVWsTdTeVz0iz7qnUPOH+xcqSHcw4S8EQALzviQhREC+MsMl"
+            + "RGxW8mLXw0B4a1MyzymmsyPm0KZo5dExr0j9O7mrOprGp0cl1DTHddCnqzYfE2jW"
+            + "Ib7IjQ0wOAEB/wQHd2FybS11cAQIAAAAAAAAAAAEILcOJK+p/0gCRN2COBQtxXoT"
+            + "I3uzkdVbz/2B+Y07cOTRBECMssGbt2aqsV5UIlpNkNC/LBsV69MDlWwcFnJr1QCR"
+            + "lgwmzGFlAYnxCTa7JNtNpwr7gJCLaz+Hcx6qR/UZHoAO";
+
+    private static final VerifiedCertCache cache =
+            new VerifiedCertCache(CACHE_MAX_ENTRIES, CACHE_MAX_PAYLOAD_BYTES);
+
+    private final CertVerifier verifier;
 
     public CertificateService() {
-        this.certHandler = new Cert();
+        this(CertVerifiers.get());
+    }
+
+    /**
+     * @param verifier Backend to verify with; results are shared with other backends
+     */
+    public CertificateService(CertVerifier verifier) {
+        this.verifier = verifier;
     }
 
     /**
@@ -25,44 +59,39 @@ public class CertificateService {
      */
     public JSONObject processCertificate(String base64CertData) {
         try {
-            // Decode certificate data from base64
-            byte[] certData = Base64.decode(base64CertData, Base64.DEFAULT);
-
-            // Deserialize certificate to get JSON content
-            String jsonContent = certHandler.deserialize(certData);
-
+            Cert.Verification result = process(verifier, base64CertData);
+            String jsonContent = result.getJsonContent();
             if (jsonContent == null || jsonContent.isEmpty()) {
                 Log.e(TAG, "Certificate deserialization failed");
                 return null;
             }
 
-            // Verify the certificate
-            boolean isValid = certHandler.verify();
-
-            if (!isValid) {
+            if (!result.isVerified()) {
                 Log.e(TAG, "Certificate verification failed");
                 return null;
             }
 
-            // Parse JSON data
-            JSONObject certJson = new JSONObject(jsonContent);
-
-            // Add original certificate data
-            certJson.put("cert", base64CertData);
-
-            return certJson;
+            return toJson(jsonContent, base64CertData);
         } catch (JSONException e) {
             Log.e(TAG, "Error parsing certificate JSON", e);
             return null;
         } catch (Exception e) {
             Log.e(TAG, "Certificate processing error", e);
             return null;
-        } finally {
-            // Always release certificate resources
-            certHandler.destroy();
         }
     }
 
+    /**
+     * Process a certificate as read from a QR code
+     *
+     * @param base64CertData Base64 encoded certificate data
+     * @return CertificateResult containing the status and JSON if successful
+     * @throws IllegalArgumentException If the data is not base64
+     */
+    public Cert.CertificateResult processScannedCertificate(String base64CertData) {
+        return process(verifier, base64CertData).toCertificateResult();
+    }
+
     /**
      * Verify a certificate from base64 encoded data without extracting JSON
      *
@@ -71,22 +100,10 @@ public class CertificateService {
      */
     public boolean verifyCertificate(String base64CertData) {
         try {
-            // Decode certificate data
-            byte[] certData = Base64.decode(base64CertData, Base64.DEFAULT);
-
-            // Deserialize certificate
-            certHandler.deserialize(certData);
-
-            // Verify certificate
-            boolean isValid = certHandler.verify();
-
-            return isValid;
+            return process(verifier, base64CertData).isVerified();
         } catch (Exception e) {
             Log.e(TAG, "Certificate verification error", e);
             return false;
-        } finally {
-            // Always release certificate resources
-            certHandler.destroy();
         }
     }
 
@@ -98,33 +115,107 @@ public class CertificateService {
      */
     public JSONObject extractCertificateData(String base64CertData) {
         try {
-            // Decode certificate data
-            byte[] certData = Base64.decode(base64CertData, Base64.DEFAULT);
-
-            // Deserialize certificate to get JSON content
-            String jsonContent = certHandler.deserialize(certData);
-
+            String jsonContent = process(verifier, base64CertData).getJsonContent();
             if (jsonContent == null || jsonContent.isEmpty()) {
                 Log.e(TAG, "Certificate deserialization failed");
                 return null;
             }
 
-            // Parse JSON data
-            JSONObject certJson = new JSONObject(jsonContent);
-
-            // Add original certificate data
-            certJson.put("cert", base64CertData);
-
-            return certJson;
+            return toJson(jsonContent, base64CertData);
         } catch (JSONException e) {
             Log.e(TAG, "Error parsing certificate JSON", e);
             return null;
         } catch (Exception e) {
             Log.e(TAG, "Certificate data extraction error", e);
             return null;
+        }
+    }
+
+    /**
+     * Forget every cached result
+     *
+     * Must be called whenever the set of trusted keys changes, as cached
+     * verification outcomes were decided against the old set.
+     */
+    public static void onTrustedKeysChanged() {
+        cache.invalidate();
+    }
+
+    /**
+     * Run one throwaway verification through the whole scan path
+     *
+     * Touches the decode buffer, the digest provider and the process
+     * verifier, down to signature and trust checks. The result is not
+     * cached, so it cannot take the place of a real scan.
+     */
+    static void warmUp() {
+        CertBuffer certBuffer = CertBuffer.acquire();
+        try {
+            certBuffer.decode(WARM_UP_CERTIFICATE);
+            ByteBuffer buffer = certBuffer.buffer();
+            buffer.clear().limit(certBuffer.length());
+            CertificateBlobStore.digest(buffer);
+            int status = CertVerifiers.get().verify(buffer, certBuffer.length()).getStatus();
+            if (status != Cert.Verification.STATUS_UNTRUSTED) {
+                // Still warmed up what it reached, but stopped short of the trust check
+                Log.w(TAG, "Warm-up certificate verified with status " + status);
+            }
         } finally {
-            // Always release certificate resources
-            certHandler.destroy();
+            certBuffer.release();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Get the verification cache, for its counters
+     */
+    public static VerifiedCertCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Deserialize and verify a certificate, or take the result from the cache
+     *
+     * The base64 is decoded into a reused direct buffer that native code
+     * parses in place, so a scan allocates no certificate byte[].
+     *
+     * @throws IllegalArgumentException If the data is not base64
+     */
+    private static Cert.Verification process(CertVerifier verifier, String base64CertData) {
+        boolean traced = Tracer.begin("CertificateService.process");
+        CertBuffer certBuffer = CertBuffer.acquire();
+        try {
+            certBuffer.decode(base64CertData);
+            ByteBuffer buffer = certBuffer.buffer();
+            buffer.clear().limit(certBuffer.length());
+
+            String digest = CertificateBlobStore.digest(buffer);
+            Cert.Verification result = cache.get(digest);
+            if (result != null) {
+                return result;
+            }
+
+            // One call covers deserializing, verifying and the trust check
+            long generation = cache.getGeneration();
+            result = verifier.verify(buffer, certBuffer.length());
+            // Internal errors may not repeat, only definite outcomes are kept
+            if (result.getStatus() != Cert.Verification.STATUS_ERROR) {
+                cache.put(digest, result, generation);
+            }
+            return result;
+        } finally {
+            certBuffer.release();
+            Tracer.end(traced);
+        }
+    }
+
+    private static JSONObject toJson(String jsonContent, String base64CertData)
+            throws JSONException {
+        // Parse JSON data
+        JSONObject certJson = new JSONObject(jsonContent);
+
+        // Add original certificate data
+        certJson.put("cert", base64CertData);
+
+        return certJson;
+    }
+}
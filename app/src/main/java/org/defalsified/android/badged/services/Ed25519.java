@@ -0,0 +1,224 @@
+package org.defalsified.android.badged.services;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Ed25519 signature verification, RFC 8032, in plain Java
+ *
+ * Android has no Ed25519 before API 33, so the curve arithmetic is done
+ * here on BigInteger in extended coordinates. It is written for clarity
+ * rather than speed and makes no constant time claims, which is fine for
+ * verifying public signatures but rules it out for signing with secrets.
+ */
+final class Ed25519 {
+    static final int KEY_LENGTH = 32;
+    static final int SIGNATURE_LENGTH = 64;
+
+    // Field prime 2^255 - 19
+    static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+    // Group order 2^252 + 27742317777372353535851937790883648493
+    static final BigInteger L = BigInteger.ONE.shiftLeft(252)
+            .add(new BigInteger("27742317777372353535851937790883648493"));
+
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+    // Curve constant -121665 / 121666
+    private static final BigInteger D = BigInteger.valueOf(-121665)
+            .multiply(BigInteger.valueOf(121666).modInverse(P)).mod(P);
+    private static final BigInteger D2 = D.multiply(TWO).mod(P);
+    // Square root of -1
+    private static final BigInteger SQRT_M1 = TWO.modPow(P.subtract(BigInteger.ONE).shiftRight(2), P);
+    private static final BigInteger SQRT_EXPONENT = P.add(BigInteger.valueOf(3)).shiftRight(3);
+
+    private static final Point NEUTRAL = new Point(BigInteger.ZERO, BigInteger.ONE,
+            BigInteger.ONE, BigInteger.ZERO);
+    // Base point, y = 4/5 with x even
+    static final Point BASE = decode(encodeInt(BigInteger.valueOf(4)
+            .multiply(BigInteger.valueOf(5).modInverse(P)).mod(P)), 0);
+
+    private Ed25519() {}
+
+    /**
+     * Check a signature
+     *
+     * @param publicKey 32 byte encoded public key
+     * @param message The signed message
+     * @param signature Signature bytes R || S
+     * @param offset Where the 64 signature bytes start
+     * @return true if the signature is valid for the key and message
+     */
+    static boolean verify(byte[] publicKey, byte[] message, byte[] signature, int offset) {
+        if (publicKey.length != KEY_LENGTH || signature.length - offset < SIGNATURE_LENGTH) {
+            return false;
+        }
+        Point a = decode(publicKey, 0);
+        if (a == null) {
+            return false;
+        }
+        BigInteger s = decodeInt(signature, offset + 32, 32);
+        if (s.compareTo(L) >= 0) {
+            return false;
+        }
+
+        MessageDigest sha512 = sha512();
+        sha512.update(signature, offset, 32);
+        sha512.update(publicKey);
+        BigInteger k = decodeInt(sha512.digest(message), 0, 64).mod(L);
+
+        // [S]B - [k]A must encode to R
+        byte[] r = encode(scalarMultiply(s, BASE, k, negate(a)));
+        for (int i = 0; i < 32; i++) {
+            if (r[i] != signature[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static MessageDigest sha512() {
+        try {
+            return MessageDigest.getInstance("SHA-512");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-512 not available", e);
+        }
+    }
+
+    /**
+     * [a]P + [b]Q, both scalars at once
+     */
+    static Point scalarMultiply(BigInteger a, Point p, BigInteger b, Point q) {
+        Point both = add(p, q);
+        Point result = NEUTRAL;
+        for (int i = Math.max(a.bitLength(), b.bitLength()) - 1; i >= 0; i--) {
+            result = doubled(result);
+            boolean bitA = a.testBit(i);
+            boolean bitB = b.testBit(i);
+            if (bitA && bitB) {
+                result = add(result, both);
+            } else if (bitA) {
+                result = add(result, p);
+            } else if (bitB) {
+                result = add(result, q);
+            }
+        }
+        return result;
+    }
+
+    static Point scalarMultiply(BigInteger a, Point p) {
+        return scalarMultiply(a, p, BigInteger.ZERO, NEUTRAL);
+    }
+
+    static Point add(Point p, Point q) {
+        BigInteger a = p.y.subtract(p.x).multiply(q.y.subtract(q.x)).mod(P);
+        BigInteger b = p.y.add(p.x).multiply(q.y.add(q.x)).mod(P);
+        BigInteger c = p.t.multiply(D2).multiply(q.t).mod(P);
+        BigInteger d = p.z.multiply(TWO).multiply(q.z).mod(P);
+        BigInteger e = b.subtract(a);
+        BigInteger f = d.subtract(c);
+        BigInteger g = d.add(c);
+        BigInteger h = b.add(a);
+        return new Point(e.multiply(f).mod(P), g.multiply(h).mod(P),
+                f.multiply(g).mod(P), e.multiply(h).mod(P));
+    }
+
+    static Point doubled(Point p) {
+        BigInteger a = p.x.multiply(p.x).mod(P);
+        BigInteger b = p.y.multiply(p.y).mod(P);
+        BigInteger c = TWO.multiply(p.z).multiply(p.z).mod(P);
+        BigInteger h = a.add(b);
+        BigInteger sum = p.x.add(p.y);
+        BigInteger e = h.subtract(sum.multiply(sum)).mod(P);
+        BigInteger g = a.subtract(b);
+        BigInteger f = c.add(g);
+        return new Point(e.multiply(f).mod(P), g.multiply(h).mod(P),
+                f.multiply(g).mod(P), e.multiply(h).mod(P));
+    }
+
+    static Point negate(Point p) {
+        return new Point(P.subtract(p.x).mod(P), p.y, p.z, P.subtract(p.t).mod(P));
+    }
+
+    /**
+     * Decode a point, RFC 8032 section 5.1.3
+     *
+     * @return The point, or null if the bytes encode none
+     */
+    static Point decode(byte[] bytes, int offset) {
+        int sign = (bytes[offset + 31] >> 7) & 1;
+        byte[] copy = new byte[32];
+        System.arraycopy(bytes, offset, copy, 0, 32);
+        copy[31] &= 0x7f;
+        BigInteger y = decodeInt(copy, 0, 32);
+        if (y.compareTo(P) >= 0) {
+            return null;
+        }
+
+        // x^2 = (y^2 - 1) / (d y^2 + 1)
+        BigInteger y2 = y.multiply(y).mod(P);
+        BigInteger u = y2.subtract(BigInteger.ONE).mod(P);
+        BigInteger v = D.multiply(y2).add(BigInteger.ONE).mod(P);
+        BigInteger x2 = u.multiply(v.modInverse(P)).mod(P);
+        BigInteger x = x2.modPow(SQRT_EXPONENT, P);
+        if (!x.multiply(x).subtract(x2).mod(P).equals(BigInteger.ZERO)) {
+            x = x.multiply(SQRT_M1).mod(P);
+            if (!x.multiply(x).subtract(x2).mod(P).equals(BigInteger.ZERO)) {
+                return null;
+            }
+        }
+        if (x.signum() == 0 && sign == 1) {
+            return null;
+        }
+        if (x.testBit(0) != (sign == 1)) {
+            x = P.subtract(x);
+        }
+        return new Point(x, y, BigInteger.ONE, x.multiply(y).mod(P));
+    }
+
+    static byte[] encode(Point p) {
+        BigInteger zInverse = p.z.modInverse(P);
+        BigInteger x = p.x.multiply(zInverse).mod(P);
+        BigInteger y = p.y.multiply(zInverse).mod(P);
+        byte[] bytes = encodeInt(y);
+        if (x.testBit(0)) {
+            bytes[31] |= (byte) 0x80;
+        }
+        return bytes;
+    }
+
+    // 32 bytes little endian
+    static byte[] encodeInt(BigInteger value) {
+        byte[] bytes = new byte[32];
+        byte[] bigEndian = value.toByteArray();
+        for (int i = 0; i < 32 && i < bigEndian.length; i++) {
+            bytes[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return bytes;
+    }
+
+    // Unsigned little endian
+    static BigInteger decodeInt(byte[] bytes, int offset, int length) {
+        byte[] bigEndian = new byte[length + 1];
+        for (int i = 0; i < length; i++) {
+            bigEndian[length - i] = bytes[offset + i];
+        }
+        return new BigInteger(bigEndian);
+    }
+
+    /**
+     * Curve point in extended coordinates, x = X/Z, y = Y/Z, x y = T/Z
+     */
+    static final class Point {
+        final BigInteger x;
+        final BigInteger y;
+        final BigInteger z;
+        final BigInteger t;
+
+        Point(BigInteger x, BigInteger y, BigInteger z, BigInteger t) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.t = t;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package org.defalsified.android.badged.services;
+
+import org.defalsified.android.badged.utils.Tracer;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verification in plain Java, following libqaeda
+ *
+ * Certificates are DER encoded per the libqaeda ASN.1 module:
+ * <pre>
+ * Msg ::= SEQUENCE { literal BOOLEAN, data OCTET STRING,
+ *                    timestamp OCTET STRING, pubkey OCTET STRING }
+ * Cert ::= SEQUENCE { domain OCTET STRING, request ANY, request_sig OCTET STRING,
+ *                     response ANY, response_sig OCTET STRING,
+ *                     parent OCTET STRING OPTIONAL }
+ * </pre>
+ * where request and response hold an encoded Msg. Signatures are Ed25519,
+ * 64 bytes R || S, by the pubkey of the message they sign; an empty or
+ * all zero signature counts as absent. All digests are SHA-512:
+ * <ul>
+ * <li>the request signs over the state digest of the zero padded 8 byte domain,</li>
+ * <li>the response over the state digest of the domain and the request signature,</li>
+ * <li>and a message is signed as SHA-512(SHA-512(state digest || data)).</li>
+ * </ul>
+ * The request signature is required, a missing response signature skips
+ * the response. The request signer must be a trusted key. As in libqaeda,
+ * the parent is only carried along: it is not part of the signed state of
+ * a deserialized certificate.
+ */
+public class JavaCertVerifier implements CertVerifier {
+    private static final String TAG = "JavaCertVerifier";
+
+    static final int DOMAIN_LENGTH = 8;
+    // libqaeda reads values into buffers of this size, larger ones fail to deserialize
+    static final int MAX_VALUE_LENGTH = 4096;
+    private static final int MAX_TIMESTAMP_LENGTH = 8;
+
+    private static final int TAG_BOOLEAN = 0x01;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_SEQUENCE = 0x30;
+
+    // Same built-in issuer key as native code, trusted until keys are installed
+    private static final byte[] BUILTIN_TRUSTED_KEY = {
+            (byte) 0x70, (byte) 0xB7, (byte) 0x36, (byte) 0x7F, (byte) 0xD7, (byte) 0xC4, (byte) 0x86, (byte) 0x79,
+            (byte) 0x6E, (byte) 0xA4, (byte) 0x45, (byte) 0x7B, (byte) 0xC0, (byte) 0x6C, (byte) 0x2F, (byte) 0xEB,
+            (byte) 0xDD, (byte) 0xC5, (byte) 0x94, (byte) 0x7B, (byte) 0xDE, (byte) 0x77, (byte) 0xC6, (byte) 0xCE,
+            (byte) 0x0D, (byte) 0x81, (byte) 0x74, (byte) 0x42, (byte) 0xB8, (byte) 0xFB, (byte) 0x96, (byte) 0x7E
+    };
+
+    // Swapped whole, never modified
+    private volatile Set<ByteBuffer> trustedKeys =
+            Collections.singleton(ByteBuffer.wrap(BUILTIN_TRUSTED_KEY.clone()));
+
+    @Override
+    public void initialize() {
+        // Class initialization decodes the base point
+        Ed25519.sha512();
+    }
+
+    @Override
+    public Cert.Verification verify(byte[] certificate) {
+        if (certificate == null) {
+            return failed(Cert.Verification.STATUS_MALFORMED);
+        }
+        return verify(certificate, 0, certificate.length);
+    }
+
+    @Override
+    public Cert.Verification verify(ByteBuffer certificate, int length) {
+        if (length < 0 || length > certificate.capacity()) {
+            return failed(Cert.Verification.STATUS_ERROR);
+        }
+        if (certificate.hasArray()) {
+            return verify(certificate.array(), certificate.arrayOffset(), length);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer source = certificate.duplicate();
+        source.clear();
+        source.get(bytes);
+        return verify(bytes, 0, length);
+    }
+
+    /**
+     * Verifies on {@code threads - 1} helper threads plus the calling one
+     */
+    @Override
+    public int[] verifyBatch(byte[][] certificates, int threads) {
+        int[] statuses = new int[certificates.length];
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            for (int i = next.getAndIncrement(); i < statuses.length; i = next.getAndIncrement()) {
+                statuses[i] = verify(certificates[i]).getStatus();
+            }
+        };
+
+        int workers = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        Thread[] helpers = new Thread[Math.max(Math.min(workers, certificates.length) - 1, 0)];
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = new Thread(worker, TAG + "-" + i);
+            helpers[i].start();
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        for (Thread helper : helpers) {
+            while (helper.isAlive()) {
+                try {
+                    helper.join();
+                } catch (InterruptedException e) {
+                    // The statuses are needed either way, finish and keep the flag
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return statuses;
+    }
+
+    @Override
+    public int setTrustedKeys(byte[][] keys) {
+        if (keys == null) {
+            return -1;
+        }
+        Set<ByteBuffer> set = new HashSet<>();
+        for (byte[] key : keys) {
+            if (key == null || key.length == 0) {
+                return -1;
+            }
+            set.add(ByteBuffer.wrap(key.clone()));
+        }
+        trustedKeys = Collections.unmodifiableSet(set);
+        return set.size();
+    }
+
+    private Cert.Verification verify(byte[] data, int offset, int length) {
+        boolean traced = Tracer.begin("JavaCertVerifier.verify");
+        try {
+            ParsedCert cert = ParsedCert.parse(data, offset, length);
+            if (cert == null) {
+                return failed(Cert.Verification.STATUS_MALFORMED);
+            }
+
+            int status = checkSignatures(cert);
+            byte[] signer = null;
+            if (status == Cert.Verification.STATUS_OK) {
+                signer = cert.request.publicKey;
+                if (!trustedKeys.contains(ByteBuffer.wrap(signer))) {
+                    Tracer.d(TAG, "Certificate signer not trusted");
+                    status = Cert.Verification.STATUS_UNTRUSTED;
+                }
+            }
+
+            // Payload and domain are returned whatever the verification outcome
+            int domainLength = 0;
+            while (domainLength < DOMAIN_LENGTH && cert.domain[domainLength] != 0) {
+                domainLength++;
+            }
+            return new Cert.Verification(status, cert.request.data,
+                    Arrays.copyOf(cert.domain, domainLength), signer);
+        } catch (IllegalStateException e) {
+            Tracer.d(TAG, "Verification error: ", e);
+            return failed(Cert.Verification.STATUS_ERROR);
+        } finally {
+            Tracer.end(traced);
+        }
+    }
+
+    private static int checkSignatures(ParsedCert cert) {
+        if (cert.requestSignature == null) {
+            Tracer.d(TAG, "Certificate has no request signature");
+            return Cert.Verification.STATUS_INVALID_SIGNATURE;
+        }
+
+        MessageDigest sha512 = Ed25519.sha512();
+        byte[] state = sha512.digest(cert.domain);
+        if (!verifyMessage(sha512, cert.request, cert.requestSignature, state)) {
+            Tracer.d(TAG, "Request signature does not verify");
+            return Cert.Verification.STATUS_INVALID_SIGNATURE;
+        }
+
+        if (cert.responseSignature != null) {
+            sha512.update(cert.domain);
+            sha512.update(cert.requestSignature, 0, Ed25519.SIGNATURE_LENGTH);
+            state = sha512.digest();
+            if (!verifyMessage(sha512, cert.response, cert.responseSignature, state)) {
+                Tracer.d(TAG, "Response signature does not verify");
+                return Cert.Verification.STATUS_INVALID_SIGNATURE;
+            }
+        }
+        return Cert.Verification.STATUS_OK;
+    }
+
+    private static boolean verifyMessage(MessageDigest sha512, ParsedMsg msg, byte[] signature,
+                                         byte[] state) {
+        if (msg.publicKey == null) {
+            return false;
+        }
+        sha512.update(state);
+        sha512.update(msg.data);
+        byte[] signed = sha512.digest(sha512.digest());
+        return Ed25519.verify(msg.publicKey, signed, signature, 0);
+    }
+
+    private static Cert.Verification failed(int status) {
+        return new Cert.Verification(status, null, null, null);
+    }
+
+    /**
+     * Fields of a deserialized certificate
+     */
+    private static final class ParsedCert {
+        byte[] domain;
+        ParsedMsg request;
+        byte[] requestSignature;
+        ParsedMsg response;
+        byte[] responseSignature;
+
+        /**
+         * @return The certificate, or null if the bytes are not one
+         */
+        static ParsedCert parse(byte[] bytes, int offset, int length) {
+            try {
+                Der der = new Der(bytes, offset, length);
+                Der fields = der.sequence();
+                der.expectEnd();
+
+                ParsedCert cert = new ParsedCert();
+                cert.domain = Arrays.copyOf(fields.octets(DOMAIN_LENGTH), DOMAIN_LENGTH);
+                cert.request = ParsedMsg.parse(fields.any());
+                cert.requestSignature = signature(fields.octets(MAX_VALUE_LENGTH));
+                cert.response = ParsedMsg.parse(fields.any());
+                cert.responseSignature = signature(fields.octets(MAX_VALUE_LENGTH));
+                if (fields.hasMore()) {
+                    // Parent digest, carried but not verified
+                    fields.octets(MAX_VALUE_LENGTH);
+                }
+                fields.expectEnd();
+                return cert;
+            } catch (MalformedException e) {
+                Tracer.d(TAG, "Malformed certificate: ", e.getMessage());
+                return null;
+            }
+        }
+
+        // Null when absent: empty, or the first 64 bytes all zero
+        private static byte[] signature(byte[] bytes) {
+            if (bytes.length == 0) {
+                return null;
+            }
+            if (bytes.length >= Ed25519.SIGNATURE_LENGTH) {
+                for (int i = 0; i < Ed25519.SIGNATURE_LENGTH; i++) {
+                    if (bytes[i] != 0) {
+                        return bytes;
+                    }
+                }
+                return null;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Fields of a deserialized message
+     */
+    private static final class ParsedMsg {
+        byte[] data;
+        // First 32 bytes of the pubkey, null if it is missing or too short
+        byte[] publicKey;
+
+        static ParsedMsg parse(byte[] encoded) throws MalformedException {
+            Der der = new Der(encoded, 0, encoded.length);
+            Der fields = der.sequence();
+            der.expectEnd();
+
+            ParsedMsg msg = new ParsedMsg();
+            fields.bool();
+            msg.data = fields.octets(MAX_VALUE_LENGTH);
+            fields.octets(MAX_TIMESTAMP_LENGTH);
+            byte[] key = fields.octets(MAX_VALUE_LENGTH);
+            fields.expectEnd();
+
+            if (key.length >= Ed25519.KEY_LENGTH) {
+                msg.publicKey = Arrays.copyOf(key, Ed25519.KEY_LENGTH);
+            }
+            return msg;
+        }
+    }
+
+    /**
+     * Reader over DER encoded values, single byte tags and definite lengths only
+     */
+    private static final class Der {
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+
+        Der(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        boolean hasMore() {
+            return position < end;
+        }
+
+        void expectEnd() throws MalformedException {
+            if (position != end) {
+                throw new MalformedException("Trailing bytes");
+            }
+        }
+
+        Der sequence() throws MalformedException {
+            int length = header(TAG_SEQUENCE);
+            Der contents = new Der(bytes, position, length);
+            position += length;
+            return contents;
+        }
+
+        byte[] octets(int maxLength) throws MalformedException {
+            int length = header(TAG_OCTET_STRING);
+            if (length > maxLength) {
+                throw new MalformedException("Value of " + length + " bytes too long");
+            }
+            return take(position, length);
+        }
+
+        boolean bool() throws MalformedException {
+            if (header(TAG_BOOLEAN) != 1) {
+                throw new MalformedException("Bad boolean");
+            }
+            return bytes[position++] != 0;
+        }
+
+        // A whole value of any type, tag and length included
+        byte[] any() throws MalformedException {
+            int start = position;
+            int length = header(-1);
+            if (position - start + length > MAX_VALUE_LENGTH) {
+                throw new MalformedException("Value of " + length + " bytes too long");
+            }
+            return take(start, position - start + length);
+        }
+
+        private byte[] take(int from, int length) {
+            byte[] value = Arrays.copyOfRange(bytes, from, from + length);
+            position = from + length;
+            return value;
+        }
+
+        /**
+         * Read a tag and length, leaving the position at the contents
+         *
+         * @param tag Expected tag, or -1 for any
+         * @return Length of the contents
+         */
+        private int header(int tag) throws MalformedException {
+            if (end - position < 2) {
+                throw new MalformedException("Truncated value");
+            }
+            int actual = bytes[position++] & 0xff;
+            if ((actual & 0x1f) == 0x1f || (tag >= 0 && actual != tag)) {
+                throw new MalformedException("Unexpected tag " + actual);
+            }
+
+            int length = bytes[position++] & 0xff;
+            if (length >= 0x80) {
+                int count = length & 0x7f;
+                if (count == 0 || count > 3 || end - position < count) {
+                    throw new MalformedException("Bad length");
+                }
+                length = 0;
+                for (int i = 0; i < count; i++) {
+                    length = (length << 8) | (bytes[position++] & 0xff);
+                }
+            }
+            if (length > end - position) {
+                throw new MalformedException("Truncated value");
+            }
+            return length;
+        }
+    }
+
+    private static final class MalformedException extends Exception {
+        MalformedException(String message) {
+            // Expected on bad input, skip the stack trace
+            super(message, null, false, false);
+        }
+    }
+}
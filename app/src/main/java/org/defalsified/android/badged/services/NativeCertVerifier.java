@@ -0,0 +1,46 @@
+package org.defalsified.android.badged.services;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Verification in libqaeda, through the {@link Cert} JNI bindings
+ *
+ * Only usable where the native library loaded, see {@link Cert#isAvailable}.
+ */
+public class NativeCertVerifier implements CertVerifier {
+
+    @Override
+    public void initialize() {
+        Cert.initialize();
+    }
+
+    @Override
+    public Cert.Verification verify(byte[] certificate) {
+        return Cert.verifyAndExtract(certificate);
+    }
+
+    /**
+     * Parses in place when the buffer is direct, otherwise copies it out first
+     */
+    @Override
+    public Cert.Verification verify(ByteBuffer certificate, int length) {
+        if (certificate.isDirect()) {
+            return Cert.verifyAndExtract(certificate, length);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer source = certificate.duplicate();
+        source.clear();
+        source.get(bytes);
+        return Cert.verifyAndExtract(bytes);
+    }
+
+    @Override
+    public int[] verifyBatch(byte[][] certificates, int threads) {
+        return Cert.verifyBatch(certificates, threads);
+    }
+
+    @Override
+    public int setTrustedKeys(byte[][] keys) {
+        return Cert.setTrustedKeys(keys);
+    }
+}
@@ -0,0 +1,223 @@
+package org.defalsified.android.badged.services;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import org.defalsified.android.badged.storage.CertificateBlobStore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Trusted issuer keys, loaded at runtime
+ *
+ * Keys are read from a file in the app files directory, or from the
+ * bundled asset of the same name when no such file exists. The file holds
+ * one hex encoded public key per line; blank lines and lines starting
+ * with '#' are ignored. The verifier indexes the keys in a hash table, so
+ * a set of thousands of keys costs the same per lookup as a single key.
+ *
+ * Reloading swaps the whole set at once: each verification sees either
+ * the old keys or the new ones, and one bad line keeps the old set.
+ */
+public class TrustStore {
+    private static final String TAG = "TrustStore";
+    private static final String FILE_NAME = "trusted_keys";
+
+    private static TrustStore instance;
+
+    private final File file;
+    private final AssetManager assets;
+    private boolean loaded;
+    private volatile int size = -1;
+    private volatile String fingerprint;
+
+    /**
+     * Get the process-wide trust store
+     *
+     * @param context Any context, only its application context is kept
+     */
+    public static synchronized TrustStore open(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new TrustStore(new File(app.getFilesDir(), FILE_NAME), app.getAssets());
+        }
+        return instance;
+    }
+
+    private TrustStore(File file, AssetManager assets) {
+        this.file = file;
+        this.assets = assets;
+    }
+
+    /**
+     * Load the keys unless that was already done
+     *
+     * Does file I/O, call it off the main thread.
+     *
+     * @return true if keys are loaded
+     */
+    public synchronized boolean load() {
+        return loaded || reload();
+    }
+
+    /**
+     * Read the keys again and install them in place of the current set
+     *
+     * Does file I/O, call it off the main thread.
+     *
+     * @return true if the new set is installed, false if the old one stays
+     */
+    public synchronized boolean reload() {
+        List<byte[]> keys;
+        try (InputStream in = file.exists() ? new FileInputStream(file) : assets.open(FILE_NAME)) {
+            keys = parse(in);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read trusted keys", e);
+            return false;
+        }
+        return install(keys);
+    }
+
+    /**
+     * Save a new set of keys to the files directory and install it
+     *
+     * @param keys Raw public keys
+     * @return true if the new set is installed
+     */
+    public synchronized boolean replace(List<byte[]> keys) throws IOException {
+        for (byte[] key : keys) {
+            if (key == null || key.length == 0) {
+                throw new IllegalArgumentException("Empty trusted key");
+            }
+        }
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        // Write aside and rename, so a reload never reads half a file
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.US_ASCII);
+            for (byte[] key : keys) {
+                writer.write(toHex(key));
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+        return install(keys);
+    }
+
+    /**
+     * Number of distinct keys trusted, -1 before the first load
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Digest identifying the trusted key set, null before the first load
+     *
+     * Equal for equal sets whatever the order or duplicates in the file.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    private boolean install(List<byte[]> keys) {
+        int installed = CertVerifiers.get().setTrustedKeys(keys.toArray(new byte[0][]));
+        if (installed < 0) {
+            Log.e(TAG, "Failed to install " + keys.size() + " trusted keys");
+            return false;
+        }
+
+        // Results decided against the old keys no longer hold
+        CertificateService.onTrustedKeysChanged();
+        BadgeReverifier.onTrustedKeysChanged();
+        loaded = true;
+        size = installed;
+        fingerprint = fingerprint(keys);
+        Log.d(TAG, "Trusting " + installed + " issuer keys");
+        return true;
+    }
+
+    /**
+     * Parse a key file
+     *
+     * @throws IOException If a line is not a hex encoded key
+     */
+    static List<byte[]> parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.US_ASCII));
+        List<byte[]> keys = new ArrayList<>();
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            byte[] key = fromHex(line);
+            if (key == null) {
+                throw new IOException("Not a hex key on line " + lineNumber);
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private static String fingerprint(List<byte[]> keys) {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (byte[] key : keys) {
+            sorted.add(toHex(key));
+        }
+        byte[] joined = String.join("\n", sorted).getBytes(StandardCharsets.US_ASCII);
+        return CertificateBlobStore.digest(joined);
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0x0f, 16));
+            hex.append(Character.forDigit(b & 0x0f, 16));
+        }
+        return hex.toString();
+    }
+}
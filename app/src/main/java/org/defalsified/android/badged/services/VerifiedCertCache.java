@@ -0,0 +1,116 @@
+package org.defalsified.android.badged.services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of certificate verification results
+ *
+ * Keyed by the SHA-256 digest of the certificate bytes, so the same
+ * voucher is only parsed and verified once. Bounded both by entry count
+ * and by the total size of the cached payloads. Results depend on the
+ * trusted keys, so the cache must be invalidated when those change.
+ */
+public class VerifiedCertCache {
+
+    private final int maxEntries;
+    private final long maxPayloadBytes;
+
+    // Access ordered, eldest first; guarded by this
+    private final LinkedHashMap<String, Cert.Verification> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long payloadBytes;
+    private long generation;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Constructor
+     *
+     * @param maxEntries Most results kept
+     * @param maxPayloadBytes Most payload bytes kept across all results
+     */
+    public VerifiedCertCache(int maxEntries, long maxPayloadBytes) {
+        this.maxEntries = maxEntries;
+        this.maxPayloadBytes = maxPayloadBytes;
+    }
+
+    /**
+     * Look up the result for a certificate digest
+     *
+     * @return The cached result, or null on a miss
+     */
+    public synchronized Cert.Verification get(String digest) {
+        Cert.Verification result = entries.get(digest);
+        if (result != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return result;
+    }
+
+    /**
+     * Generation to pass to {@link #put}, read before computing a result
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Store a result computed since {@link #getGeneration} returned generation
+     *
+     * Results computed before the last invalidation are dropped, since
+     * they may reflect trusted keys that no longer apply.
+     */
+    public synchronized void put(String digest, Cert.Verification result, long generation) {
+        if (generation != this.generation || weight(result) > maxPayloadBytes) {
+            return;
+        }
+
+        Cert.Verification previous = entries.put(digest, result);
+        if (previous != null) {
+            payloadBytes -= weight(previous);
+        }
+        payloadBytes += weight(result);
+
+        Iterator<Map.Entry<String, Cert.Verification>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || payloadBytes > maxPayloadBytes)
+                && eldest.hasNext()) {
+            payloadBytes -= weight(eldest.next().getValue());
+            eldest.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Drop every result, for when the trusted keys changed
+     */
+    public synchronized void invalidate() {
+        entries.clear();
+        payloadBytes = 0;
+        generation++;
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    public synchronized long getHitCount() { return hitCount; }
+
+    public synchronized long getMissCount() { return missCount; }
+
+    public synchronized long getEvictionCount() { return evictionCount; }
+
+    /**
+     * Fraction of lookups answered from the cache, 0 before any lookup
+     */
+    public synchronized double getHitRate() {
+        long lookups = hitCount + missCount;
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+
+    private static int weight(Cert.Verification result) {
+        return result.payloadLength();
+    }
+}
@@ -0,0 +1,179 @@
+package org.defalsified.android.badged.storage;
+
+import org.defalsified.android.badged.models.Badge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary record format for badges
+ *
+ * Layout, version 1:
+ * [byte version][byte flags][serial][offer][holder][project][certificate][varint timestamp]
+ *
+ * Strings are a varint of the UTF-8 length plus one, 0 meaning null,
+ * followed by the bytes. The certificate is the inline base64 data, or
+ * the blob digest when {@link #FLAG_CERTIFICATE_REF} is set. A version
+ * byte never collides with the '{' that starts a JSON record.
+ */
+public final class BadgeBinaryCodec {
+    public static final int VERSION = 1;
+
+    // Certificate field holds a blob store digest
+    private static final int FLAG_CERTIFICATE_REF = 0x01;
+
+    private BadgeBinaryCodec() {}
+
+    /**
+     * Check whether a record was written by this codec
+     */
+    public static boolean isBinary(byte[] data, int offset, int length) {
+        return length > 0 && data[offset] == VERSION;
+    }
+
+    /**
+     * Encode a badge to a new array
+     */
+    public static byte[] encode(Badge badge) {
+        Output out = new Output(128);
+        write(badge, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Append a badge record to a reusable buffer
+     */
+    public static void write(Badge badge, Output out) {
+        String certificateRef = badge.getCertificateRef();
+
+        out.write(VERSION);
+        out.write(certificateRef != null ? FLAG_CERTIFICATE_REF : 0);
+        writeString(out, badge.getSerial());
+        writeString(out, badge.getOffer());
+        writeString(out, badge.getHolder());
+        writeString(out, badge.getProject());
+        writeString(out, certificateRef != null ? certificateRef : badge.getCertificateData());
+        writeVarLong(out, badge.getTimestamp());
+    }
+
+    /**
+     * Decode a badge record
+     *
+     * @throws IOException If the record is truncated or of an unknown version
+     */
+    public static Badge decode(byte[] data, int offset, int length) throws IOException {
+        Input in = new Input(data, offset, length);
+
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown badge record version " + version);
+        }
+        int flags = in.readByte();
+
+        Badge badge = new Badge();
+        badge.setSerial(in.readString());
+        badge.setOffer(in.readString());
+        badge.setHolder(in.readString());
+        badge.setProject(in.readString());
+        if ((flags & FLAG_CERTIFICATE_REF) != 0) {
+            badge.setCertificateRef(in.readString());
+        } else {
+            badge.setCertificateData(in.readString());
+        }
+        badge.setTimestamp(in.readVarLong());
+        return badge;
+    }
+
+    private static void writeString(Output out, String value) {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarLong(Output out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Growable output buffer whose contents can be used without copying
+     */
+    public static final class Output extends ByteArrayOutputStream {
+        public Output(int size) {
+            super(size);
+        }
+
+        public byte[] buffer() {
+            return buf;
+        }
+
+        /**
+         * Drop everything written after the first size bytes
+         */
+        public void truncate(int size) {
+            if (size < 0 || size > count) {
+                throw new IllegalArgumentException("Cannot truncate " + count + " bytes to " + size);
+            }
+            count = size;
+        }
+    }
+
+    /**
+     * Bounds-checked reader over a record
+     */
+    private static final class Input {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        Input(byte[] data, int offset, int length) {
+            this.data = data;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        int readByte() throws IOException {
+            if (position >= end) {
+                throw new IOException("Truncated badge record");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in badge record");
+        }
+
+        String readString() throws IOException {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            // Lengths past Long.MAX_VALUE read back negative
+            if (length < 0 || length - 1 > end - position) {
+                throw new IOException("Truncated badge record");
+            }
+
+            int size = (int) (length - 1);
+            String value = new String(data, position, size, StandardCharsets.UTF_8);
+            position += size;
+            return value;
+        }
+    }
+}
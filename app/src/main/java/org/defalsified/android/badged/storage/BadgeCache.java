@@ -0,0 +1,113 @@
+package org.defalsified.android.badged.storage;
+
+import org.defalsified.android.badged.models.Badge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-through cache of the whole badge wallet
+ *
+ * Holds a serial index and the wallet in display order. It is filled once
+ * from the backing store and then kept current by every save, so lookups
+ * stay in memory. A hit is a request answered from memory, a miss is one
+ * that had to go to the backing store.
+ */
+public class BadgeCache {
+    private final Map<String, Badge> bySerial = new HashMap<>();
+    private final List<Badge> ordered = new ArrayList<>();
+
+    private boolean loaded;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Get a badge by serial
+     *
+     * Until the wallet is loaded this is a single lookup in the store, so
+     * opening one badge does not pull in the whole wallet.
+     *
+     * @return The badge, or null if the wallet has no such serial
+     */
+    public synchronized Badge get(String serial, BadgeStore store) throws IOException {
+        if (loaded) {
+            hitCount++;
+            return bySerial.get(serial);
+        }
+
+        missCount++;
+        return store.get(serial);
+    }
+
+    /**
+     * Get a copy of the wallet in display order, loading it first if needed
+     */
+    public synchronized List<Badge> getAll(BadgeStore store) throws IOException {
+        if (loaded) {
+            hitCount++;
+        } else {
+            missCount++;
+            load(store);
+        }
+        return new ArrayList<>(ordered);
+    }
+
+    /**
+     * Record a badge that was just written to the backing store
+     *
+     * Nothing is kept until the cache is loaded, the next load reads the
+     * badge from the store anyway.
+     */
+    public synchronized void put(Badge badge) {
+        if (!loaded) {
+            return;
+        }
+
+        // The list is kept ordered, so the slot is found by binary search
+        bySerial.put(badge.getSerial(), badge);
+        int position = Collections.binarySearch(ordered, badge, BadgeOrder.SERIAL_DESCENDING);
+        if (position >= 0) {
+            ordered.set(position, badge);
+        } else {
+            ordered.add(-(position + 1), badge);
+        }
+    }
+
+    /**
+     * Record a batch of badges that was just written to the backing store
+     */
+    public synchronized void putAll(Collection<Badge> badges) {
+        for (Badge badge : badges) {
+            put(badge);
+        }
+    }
+
+    /**
+     * Drop everything, for when the backing store changed behind the cache
+     */
+    public synchronized void invalidate() {
+        bySerial.clear();
+        ordered.clear();
+        loaded = false;
+    }
+
+    public synchronized boolean isLoaded() { return loaded; }
+
+    public synchronized long getHitCount() { return hitCount; }
+
+    public synchronized long getMissCount() { return missCount; }
+
+    private void load(BadgeStore store) throws IOException {
+        List<Badge> badges = store.getAll();
+        for (Badge badge : badges) {
+            bySerial.put(badge.getSerial(), badge);
+        }
+        ordered.addAll(badges);
+        loaded = true;
+    }
+}
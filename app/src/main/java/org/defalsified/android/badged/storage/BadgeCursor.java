@@ -0,0 +1,51 @@
+package org.defalsified.android.badged.storage;
+
+import org.defalsified.android.badged.models.Badge;
+
+/**
+ * Keyset position in a paged badge listing
+ *
+ * A cursor remembers the sort key of the last badge of a page; the next
+ * page starts right after it. Unlike an offset it stays valid while
+ * badges are being added.
+ */
+public final class BadgeCursor {
+
+    /**
+     * Sort order of a paged listing, both latest first
+     */
+    public enum Order {
+        // Descending serial, the gallery order
+        SERIAL,
+        // Descending save time, ties broken by descending serial
+        TIMESTAMP
+    }
+
+    private final Order order;
+    private final String serial;
+    private final long timestamp;
+
+    private BadgeCursor(Order order, String serial, long timestamp) {
+        this.order = order;
+        this.serial = serial;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Cursor positioned right after the given badge
+     */
+    public static BadgeCursor after(Order order, Badge badge) {
+        return new BadgeCursor(order, badge.getSerial(), badge.getTimestamp());
+    }
+
+    /**
+     * Cursor positioned right after a badge with the given sort keys
+     */
+    public static BadgeCursor at(Order order, String serial, long timestamp) {
+        return new BadgeCursor(order, serial, timestamp);
+    }
+
+    public Order getOrder() { return order; }
+    public String getSerial() { return serial; }
+    public long getTimestamp() { return timestamp; }
+}
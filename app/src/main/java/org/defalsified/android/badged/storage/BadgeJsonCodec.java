@@ -0,0 +1,73 @@
+package org.defalsified.android.badged.storage;
+
+import org.defalsified.android.badged.models.Badge;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON mapping for badges, shared by the legacy preference blob and the badge log
+ */
+public final class BadgeJsonCodec {
+    private static final String FIELD_SERIAL = "serial";
+    private static final String FIELD_OFFER = "offer";
+    private static final String FIELD_HOLDER = "holder";
+    private static final String FIELD_PROJECT = "project";
+    private static final String FIELD_CERTIFICATE_DATA = "certificateData";
+    private static final String FIELD_CERTIFICATE_REF = "certificateRef";
+    private static final String FIELD_TIMESTAMP = "timestamp";
+
+    private BadgeJsonCodec() {}
+
+    /**
+     * Convert a badge to its JSON representation
+     */
+    public static JSONObject toJson(Badge badge) throws JSONException {
+        JSONObject badgeJson = new JSONObject();
+        badgeJson.put(FIELD_SERIAL, badge.getSerial());
+        badgeJson.put(FIELD_OFFER, badge.getOffer());
+        badgeJson.put(FIELD_HOLDER, badge.getHolder());
+        badgeJson.put(FIELD_PROJECT, badge.getProject());
+        if (badge.getCertificateRef() != null) {
+            badgeJson.put(FIELD_CERTIFICATE_REF, badge.getCertificateRef());
+        } else {
+            badgeJson.put(FIELD_CERTIFICATE_DATA, badge.getCertificateData());
+        }
+        badgeJson.put(FIELD_TIMESTAMP, badge.getTimestamp());
+        return badgeJson;
+    }
+
+    /**
+     * Build a badge from its JSON representation
+     */
+    public static Badge fromJson(JSONObject badgeJson) throws JSONException {
+        Badge badge = new Badge();
+        badge.setSerial(badgeJson.getString(FIELD_SERIAL));
+        badge.setOffer(badgeJson.getString(FIELD_OFFER));
+        badge.setHolder(badgeJson.getString(FIELD_HOLDER));
+        badge.setProject(badgeJson.getString(FIELD_PROJECT));
+        if (badgeJson.has(FIELD_CERTIFICATE_REF)) {
+            badge.setCertificateRef(badgeJson.getString(FIELD_CERTIFICATE_REF));
+        } else {
+            badge.setCertificateData(badgeJson.getString(FIELD_CERTIFICATE_DATA));
+        }
+        badge.setTimestamp(badgeJson.getLong(FIELD_TIMESTAMP));
+        return badge;
+    }
+
+    /**
+     * Encode a badge as UTF-8 JSON bytes
+     */
+    public static byte[] encode(Badge badge) throws JSONException {
+        return toJson(badge).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode a badge from UTF-8 JSON bytes
+     */
+    public static Badge decode(byte[] data) throws JSONException {
+        return fromJson(new JSONObject(new String(data, StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,661 @@
+package org.defalsified.android.badged.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.defalsified.android.badged.models.Badge;
+import org.defalsified.android.badged.models.SerialKey;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, file-backed record log for badges
+ *
+ * Every save appends one record and the latest record for a serial wins.
+ * The log is replayed when first used to rebuild the serial index, a torn
+ * tail left behind by a crash is truncated away, and superseded records
+ * are dropped by a background compaction once they outweigh the live ones.
+ *
+ * Records are framed as in {@link LogRecords}, after a 4 byte file header.
+ * Payloads are {@link BadgeBinaryCodec} records; logs written before the
+ * binary format hold JSON payloads, which are still read. A batch saved
+ * with {@link #putAll} is written as batch records:
+ * [byte marker][int count] then [int length][badge payload] each. A batch
+ * too large for one record is split over several, all but the last marked
+ * as continued, and replay only takes the badges in once the last record
+ * is intact, so a batch is replayed all or nothing whatever its size.
+ */
+public class BadgeLog implements BadgeStore {
+    private static final String TAG = "BadgeLog";
+    private static final String LOG_FILE = "badges.log";
+    private static final String COMPACT_FILE = "badges.log.compact";
+
+    // File header
+    private static final int MAGIC = 0x42444731; // "BDG1"
+    private static final int HEADER_SIZE = 4;
+
+    private static final int RECORD_HEADER_SIZE = LogRecords.HEADER_SIZE;
+    private static final int MAX_RECORD_SIZE = LogRecords.MAX_RECORD_SIZE;
+    private static final byte[] HEADER_PLACEHOLDER = new byte[RECORD_HEADER_SIZE];
+
+    // First payload byte of a batch record, distinct from codec versions and '{'
+    private static final int BATCH_MARKER = 0x42;
+    // First payload byte of a batch record followed by more of the same batch
+    private static final int BATCH_CONTINUED_MARKER = 0x43;
+    // Marker and badge count
+    private static final int BATCH_HEADER_SIZE = 5;
+
+    // Compact once superseded records pass this size and outweigh live ones
+    private static final long COMPACT_MIN_DEAD_BYTES = 64 * 1024;
+
+    // Listing orders of index entries, as in BadgeOrder
+    private static final Comparator<Entry> SERIAL_ORDER =
+            (e1, e2) -> BadgeOrder.compareSerials(e1.key, e2.key);
+    private static final Comparator<Entry> TIMESTAMP_ORDER =
+            (e1, e2) -> BadgeOrder.compareTimestamps(e1.timestamp, e1.key, e2.timestamp, e2.key);
+
+    private static BadgeLog instance;
+
+    private final File file;
+    private final File compactFile;
+    private final ExecutorService compactor;
+
+    // Serial -> location of the latest record, in first-seen order
+    private final Map<String, Entry> index = new LinkedHashMap<>();
+    private final CRC32 crc = new CRC32();
+
+    // Reused by every append, guarded by this
+    private final BadgeBinaryCodec.Output recordBuffer = new BadgeBinaryCodec.Output(512);
+
+    // Index entries in listing order, built on first listing and then kept in order
+    private List<Entry> bySerial;
+    private List<Entry> byTimestamp;
+
+    private RandomAccessFile raf;
+    private long end;
+    private long liveBytes;
+    private long deadBytes;
+    private boolean compactionPending;
+
+    /**
+     * Get the process-wide badge log
+     *
+     * The log is opened and replayed lazily by the first operation.
+     *
+     * @param context Any context, only its application context is kept
+     */
+    public static synchronized BadgeLog open(Context context) {
+        if (instance == null) {
+            File dir = context.getApplicationContext().getFilesDir();
+            instance = new BadgeLog(new File(dir, LOG_FILE), new File(dir, COMPACT_FILE));
+        }
+        return instance;
+    }
+
+    BadgeLog(File file, File compactFile) {
+        this.file = file;
+        this.compactFile = compactFile;
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "badge-log-compactor");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Number of live badges in the log
+     */
+    @Override
+    public synchronized int size() throws IOException {
+        ensureOpen();
+        return index.size();
+    }
+
+    /**
+     * Append a badge record, replacing any earlier record with the same serial
+     */
+    @Override
+    public void put(Badge badge) throws IOException {
+        putAll(Collections.singletonList(badge));
+    }
+
+    /**
+     * Append a batch of badges
+     *
+     * A crash mid-write leaves a torn batch that replay discards, so
+     * either every badge of the batch survives or none does.
+     *
+     * @throws IOException If a badge is larger than a record may be, in
+     *         which case nothing of the batch is saved
+     */
+    @Override
+    public synchronized void putAll(Collection<Badge> badges) throws IOException {
+        if (badges.isEmpty()) {
+            return;
+        }
+        ensureOpen();
+
+        long stop;
+        List<Entry> entries = new ArrayList<>(badges.size());
+        try {
+            stop = badges.size() == 1
+                    ? appendRecord(badges.iterator().next(), entries)
+                    : appendBatch(badges, entries);
+        } catch (IOException e) {
+            // Cut off whatever was written, so later appends never follow a partial batch
+            try {
+                raf.setLength(end);
+            } catch (IOException truncateFailed) {
+                Log.e(TAG, "Failed to truncate badge log after failed write", truncateFailed);
+            }
+            throw e;
+        }
+
+        for (Entry entry : entries) {
+            track(entry);
+        }
+        end = stop;
+
+        maybeScheduleCompaction();
+    }
+
+    /**
+     * Flush appended records to the storage device
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        if (raf != null) {
+            raf.getFD().sync();
+        }
+    }
+
+    /**
+     * Read the latest record for a serial
+     *
+     * @return The badge, or null if the serial is unknown
+     */
+    @Override
+    public synchronized Badge get(String serial) throws IOException {
+        ensureOpen();
+        Entry entry = index.get(serial);
+        return entry != null ? readRecord(entry) : null;
+    }
+
+    /**
+     * Read the latest record of every badge
+     */
+    @Override
+    public synchronized List<Badge> getAll() throws IOException {
+        ensureOpen();
+        List<Badge> badges = new ArrayList<>(index.size());
+        for (Entry entry : sortedEntries(BadgeCursor.Order.SERIAL)) {
+            badges.add(readRecord(entry));
+        }
+        return badges;
+    }
+
+    /**
+     * Read one page of badges
+     *
+     * Paging walks the in-memory index, so only the records on the page
+     * are read from the file.
+     */
+    @Override
+    public synchronized List<Badge> getPage(BadgeCursor.Order order, BadgeCursor after, int limit)
+            throws IOException {
+        ensureOpen();
+
+        List<Entry> sorted = sortedEntries(order);
+        int start = 0;
+        if (after != null) {
+            Entry probe = new Entry(SerialKey.of(after.getSerial()), after.getTimestamp(), 0, 0);
+            int position = Collections.binarySearch(sorted, probe, entryOrder(order));
+            start = position >= 0 ? position + 1 : -(position + 1);
+        }
+
+        int stop = Math.min(sorted.size(), start + limit);
+        List<Badge> badges = new ArrayList<>(Math.max(0, stop - start));
+        for (int i = start; i < stop; i++) {
+            badges.add(readRecord(sorted.get(i)));
+        }
+        return badges;
+    }
+
+    // The log only indexes serials and times, so the filters below scan every record
+
+    @Override
+    public List<Badge> findByProject(String project) throws IOException {
+        List<Badge> badges = getAll();
+        badges.removeIf(badge -> !project.equals(badge.getProject()));
+        return badges;
+    }
+
+    @Override
+    public List<Badge> findByHolder(String holder) throws IOException {
+        List<Badge> badges = getAll();
+        badges.removeIf(badge -> !holder.equals(badge.getHolder()));
+        return badges;
+    }
+
+    @Override
+    public List<Badge> findByTimestamp(long from, long to) throws IOException {
+        List<Badge> badges = getAll();
+        badges.removeIf(badge -> badge.getTimestamp() < from || badge.getTimestamp() >= to);
+        return badges;
+    }
+
+    /**
+     * Rewrite the log keeping only the latest record of each badge
+     *
+     * The compacted log is written to a side file and renamed over the
+     * original, so a crash at any point leaves one complete log behind.
+     */
+    public synchronized void compact() throws IOException {
+        compactionPending = false;
+        ensureOpen();
+        if (deadBytes == 0) {
+            return;
+        }
+
+        long started = System.currentTimeMillis();
+        Map<String, Entry> compacted = new LinkedHashMap<>();
+
+        LogRecords.writeCompacted(compactFile, out -> {
+            out.writeInt(MAGIC);
+            long offset = HEADER_SIZE;
+            // Batches are split back into single records
+            for (Map.Entry<String, Entry> item : index.entrySet()) {
+                Entry entry = item.getValue();
+                byte[] payload = new byte[entry.length];
+                raf.seek(entry.offset);
+                raf.readFully(payload);
+                LogRecords.write(out, crc, payload, 0, entry.length);
+
+                compacted.put(item.getKey(), new Entry(entry.key, entry.timestamp,
+                        offset + RECORD_HEADER_SIZE, entry.length));
+                offset += RECORD_HEADER_SIZE + entry.length;
+            }
+        });
+
+        // Reopened and replayed by the next operation if the swap fails
+        raf.close();
+        raf = null;
+        LogRecords.swap(compactFile, file);
+
+        raf = new RandomAccessFile(file, "rw");
+        long offset = HEADER_SIZE;
+        for (Entry entry : compacted.values()) {
+            offset += entry.size;
+        }
+        index.clear();
+        index.putAll(compacted);
+        bySerial = null;
+        byTimestamp = null;
+        end = offset;
+        liveBytes = offset - HEADER_SIZE;
+        deadBytes = 0;
+
+        Log.d(TAG, "Compacted badge log to " + index.size() + " records in "
+                + (System.currentTimeMillis() - started) + "ms");
+    }
+
+    /**
+     * Open the log file and replay it, creating it if needed
+     */
+    private void ensureOpen() throws IOException {
+        if (raf != null) {
+            return;
+        }
+
+        LogRecords.deleteStale(compactFile);
+
+        index.clear();
+        bySerial = null;
+        byTimestamp = null;
+        liveBytes = 0;
+        deadBytes = 0;
+
+        RandomAccessFile opened = new RandomAccessFile(file, "rw");
+        try {
+            if (opened.length() == 0) {
+                opened.writeInt(MAGIC);
+                end = HEADER_SIZE;
+            } else {
+                if (opened.length() < HEADER_SIZE || opened.readInt() != MAGIC) {
+                    throw new IOException("Not a badge log: " + file);
+                }
+                end = replay(opened.length());
+                if (end < opened.length()) {
+                    Log.w(TAG, "Truncating " + (opened.length() - end) + " bytes of torn badge log tail");
+                    opened.setLength(end);
+                }
+            }
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        raf = opened;
+    }
+
+    /**
+     * Replay every intact record into the index
+     *
+     * @return Offset just past the last intact record
+     */
+    private long replay(long length) throws IOException {
+        // Badges of a batch whose last record has not been seen yet
+        List<Entry> pending = new ArrayList<>();
+        long[] pendingStart = {HEADER_SIZE};
+
+        long offset = LogRecords.replay(file, HEADER_SIZE, length, (payload, payloadOffset) -> {
+            long recordOffset = payloadOffset - RECORD_HEADER_SIZE;
+            try {
+                List<Entry> entries = replayPayload(payload, payloadOffset);
+                if (pending.isEmpty()) {
+                    pendingStart[0] = recordOffset;
+                }
+                pending.addAll(entries);
+                if ((payload[0] & 0xFF) != BATCH_CONTINUED_MARKER) {
+                    for (Entry entry : pending) {
+                        track(entry);
+                    }
+                    pending.clear();
+                }
+            } catch (IOException e) {
+                // Intact but unreadable, leave it for compaction to drop
+                Log.e(TAG, "Skipping unreadable badge record at " + recordOffset, e);
+                deadBytes += RECORD_HEADER_SIZE + payload.length;
+            }
+            return true;
+        });
+
+        if (!pending.isEmpty()) {
+            // The batch was cut short, so none of it counts
+            Log.w(TAG, "Dropping " + pending.size() + " badges of an unfinished batch");
+            offset = pendingStart[0];
+        }
+        Log.d(TAG, "Replayed badge log: " + index.size() + " badges, " + offset + " bytes");
+        return offset;
+    }
+
+    /**
+     * Decode the badges of an intact record payload
+     *
+     * @param payloadOffset File offset of the payload
+     * @return Index entries of the badges, in record order
+     */
+    private List<Entry> replayPayload(byte[] payload, long payloadOffset) throws IOException {
+        int marker = payload[0] & 0xFF;
+        if (marker != BATCH_MARKER && marker != BATCH_CONTINUED_MARKER) {
+            return Collections.singletonList(new Entry(decodePayload(payload, 0, payload.length),
+                    payloadOffset, payload.length));
+        }
+
+        // Decode the whole batch before indexing any of it
+        ByteBuffer batch = ByteBuffer.wrap(payload);
+        batch.get();
+        int count = batch.getInt();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = batch.getInt();
+            int start = batch.position();
+            if (length <= 0 || length > batch.remaining()) {
+                throw new IOException("Malformed badge batch record");
+            }
+
+            Badge badge = decodePayload(payload, start, length);
+            entries.add(new Entry(badge, payloadOffset + start, length));
+            batch.position(start + length);
+        }
+        return entries;
+    }
+
+    private Badge readRecord(Entry entry) throws IOException {
+        byte[] payload = new byte[entry.length];
+        raf.seek(entry.offset);
+        raf.readFully(payload);
+        return decodePayload(payload, 0, entry.length);
+    }
+
+    private static Badge decodePayload(byte[] payload, int offset, int length) throws IOException {
+        if (BadgeBinaryCodec.isBinary(payload, offset, length)) {
+            return BadgeBinaryCodec.decode(payload, offset, length);
+        }
+
+        try {
+            return BadgeJsonCodec.decode(Arrays.copyOfRange(payload, offset, offset + length));
+        } catch (JSONException e) {
+            throw new IOException("Unreadable JSON badge record", e);
+        }
+    }
+
+    /**
+     * Write a single badge record at the end of the log
+     *
+     * @param entries Receives the index entry of the badge
+     * @return File offset just past the record
+     */
+    private long appendRecord(Badge badge, List<Entry> entries) throws IOException {
+        recordBuffer.reset();
+        recordBuffer.write(HEADER_PLACEHOLDER, 0, RECORD_HEADER_SIZE);
+        BadgeBinaryCodec.write(badge, recordBuffer);
+        if (recordBuffer.size() - RECORD_HEADER_SIZE > MAX_RECORD_SIZE) {
+            throw tooLarge(badge);
+        }
+
+        int size = finishRecord();
+        raf.seek(end);
+        raf.write(recordBuffer.buffer(), 0, size);
+        entries.add(new Entry(badge, end + RECORD_HEADER_SIZE, size - RECORD_HEADER_SIZE));
+        return end + size;
+    }
+
+    /**
+     * Write batch records holding every badge at the end of the log
+     *
+     * Badges are packed into records until the next would not fit, then
+     * the record is written, marked as continued, and a new one begun.
+     *
+     * @param entries Receives the index entries of the badges, in batch order
+     * @return File offset just past the last record
+     */
+    private long appendBatch(Collection<Badge> badges, List<Entry> entries) throws IOException {
+        long offset = end;
+        List<Badge> record = new ArrayList<>();
+        int[] payloadOffsets = new int[badges.size()];
+
+        startBatchRecord();
+        for (Badge badge : badges) {
+            int mark = recordBuffer.size();
+            writeInt(0);
+            payloadOffsets[record.size()] = recordBuffer.size();
+            BadgeBinaryCodec.write(badge, recordBuffer);
+
+            if (recordBuffer.size() - RECORD_HEADER_SIZE > MAX_RECORD_SIZE && !record.isEmpty()) {
+                // Full, this badge begins the next record
+                recordBuffer.truncate(mark);
+                offset = writeBatchRecord(offset, BATCH_CONTINUED_MARKER, record, payloadOffsets,
+                        entries);
+                record.clear();
+
+                startBatchRecord();
+                writeInt(0);
+                payloadOffsets[0] = recordBuffer.size();
+                BadgeBinaryCodec.write(badge, recordBuffer);
+            }
+            if (recordBuffer.size() - RECORD_HEADER_SIZE > MAX_RECORD_SIZE) {
+                throw tooLarge(badge);
+            }
+            record.add(badge);
+        }
+        return writeBatchRecord(offset, BATCH_MARKER, record, payloadOffsets, entries);
+    }
+
+    private void startBatchRecord() {
+        recordBuffer.reset();
+        recordBuffer.write(HEADER_PLACEHOLDER, 0, RECORD_HEADER_SIZE);
+        // Marker and count are filled in when the record is written
+        recordBuffer.write(HEADER_PLACEHOLDER, 0, BATCH_HEADER_SIZE);
+    }
+
+    /**
+     * Finish the batch record in the record buffer and write it
+     *
+     * @param offset File offset to write the record at
+     * @param badges Badges in the record
+     * @param payloadOffsets Offset of each badge payload in the record
+     * @param entries Receives the index entries of the badges
+     * @return File offset just past the record
+     */
+    private long writeBatchRecord(long offset, int marker, List<Badge> badges,
+                                  int[] payloadOffsets, List<Entry> entries) throws IOException {
+        // Patch in the header and lengths now that the buffer has stopped growing
+        ByteBuffer record = ByteBuffer.wrap(recordBuffer.buffer());
+        int size = recordBuffer.size();
+        record.put(RECORD_HEADER_SIZE, (byte) marker);
+        record.putInt(RECORD_HEADER_SIZE + 1, badges.size());
+        for (int i = 0; i < badges.size(); i++) {
+            int stop = i + 1 < badges.size() ? payloadOffsets[i + 1] - 4 : size;
+            record.putInt(payloadOffsets[i] - 4, stop - payloadOffsets[i]);
+            entries.add(new Entry(badges.get(i), offset + payloadOffsets[i],
+                    stop - payloadOffsets[i]));
+        }
+
+        finishRecord();
+        raf.seek(offset);
+        raf.write(recordBuffer.buffer(), 0, size);
+        return offset + size;
+    }
+
+    private static IOException tooLarge(Badge badge) {
+        return new IOException("Badge " + badge.getSerial() + " is larger than a badge log record");
+    }
+
+    /**
+     * Fill in the header of the record in the record buffer
+     */
+    private int finishRecord() {
+        byte[] record = recordBuffer.buffer();
+        int size = recordBuffer.size();
+        int length = size - RECORD_HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.wrap(record, 0, RECORD_HEADER_SIZE);
+        header.putInt(length);
+        header.putInt(LogRecords.checksum(crc, record, RECORD_HEADER_SIZE, length));
+        return size;
+    }
+
+    private void writeInt(int value) {
+        recordBuffer.write(value >>> 24);
+        recordBuffer.write(value >>> 16);
+        recordBuffer.write(value >>> 8);
+        recordBuffer.write(value);
+    }
+
+    // Sizes count a full record header per badge, which is close enough for compaction
+    private void track(Entry entry) {
+        Entry previous = index.put(entry.key.getSerial(), entry);
+        if (previous != null) {
+            liveBytes -= previous.size;
+            deadBytes += previous.size;
+        }
+        liveBytes += entry.size;
+        reposition(bySerial, BadgeCursor.Order.SERIAL, previous, entry);
+        reposition(byTimestamp, BadgeCursor.Order.TIMESTAMP, previous, entry);
+    }
+
+    // Move an entry within an ordered list by binary search instead of re-sorting it
+    private static void reposition(List<Entry> sorted, BadgeCursor.Order order,
+                                   Entry previous, Entry entry) {
+        if (sorted == null) {
+            return;
+        }
+
+        Comparator<Entry> comparator = entryOrder(order);
+        if (previous != null) {
+            int position = Collections.binarySearch(sorted, previous, comparator);
+            if (position >= 0) {
+                sorted.remove(position);
+            }
+        }
+        int position = Collections.binarySearch(sorted, entry, comparator);
+        sorted.add(position >= 0 ? position : -(position + 1), entry);
+    }
+
+    private List<Entry> sortedEntries(BadgeCursor.Order order) {
+        if (order == BadgeCursor.Order.TIMESTAMP) {
+            if (byTimestamp == null) {
+                byTimestamp = new ArrayList<>(index.values());
+                byTimestamp.sort(entryOrder(order));
+            }
+            return byTimestamp;
+        }
+
+        if (bySerial == null) {
+            bySerial = new ArrayList<>(index.values());
+            bySerial.sort(entryOrder(order));
+        }
+        return bySerial;
+    }
+
+    private static Comparator<Entry> entryOrder(BadgeCursor.Order order) {
+        if (order == BadgeCursor.Order.TIMESTAMP) {
+            return TIMESTAMP_ORDER;
+        }
+        return SERIAL_ORDER;
+    }
+
+    private void maybeScheduleCompaction() {
+        if (compactionPending || deadBytes < COMPACT_MIN_DEAD_BYTES || deadBytes < liveBytes) {
+            return;
+        }
+
+        compactionPending = true;
+        compactor.execute(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.e(TAG, "Badge log compaction failed", e);
+            }
+        });
+    }
+
+    /**
+     * Sort keys and location of a badge payload in the log file
+     */
+    private static class Entry {
+        final SerialKey key;
+        final long timestamp;
+        final long offset;
+        final int length;
+        final int size;
+
+        Entry(Badge badge, long offset, int length) {
+            this(badge.getSerialKey(), badge.getTimestamp(), offset, length);
+        }
+
+        Entry(SerialKey key, long timestamp, long offset, int length) {
+            this.key = key;
+            this.timestamp = timestamp;
+            this.offset = offset;
+            this.length = length;
+            this.size = RECORD_HEADER_SIZE + length;
+        }
+    }
+}
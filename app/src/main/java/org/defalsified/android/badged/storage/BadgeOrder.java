@@ -0,0 +1,47 @@
+package org.defalsified.android.badged.storage;
+
+import org.defalsified.android.badged.models.Badge;
+import org.defalsified.android.badged.models.SerialKey;
+
+import java.util.Comparator;
+
+/**
+ * Display orders of badges, all latest first
+ */
+public final class BadgeOrder {
+    // Sorting vouchers latest first (descending order by serial number)
+    public static final Comparator<Badge> SERIAL_DESCENDING =
+            (b1, b2) -> compareSerials(b1.getSerialKey(), b2.getSerialKey());
+
+    // Most recently saved first, ties broken by serial
+    public static final Comparator<Badge> TIMESTAMP_DESCENDING =
+            (b1, b2) -> compareTimestamps(b1.getTimestamp(), b1.getSerialKey(),
+                    b2.getTimestamp(), b2.getSerialKey());
+
+    private BadgeOrder() {}
+
+    /**
+     * Get the badge comparator for a paged listing order
+     */
+    public static Comparator<Badge> of(BadgeCursor.Order order) {
+        return order == BadgeCursor.Order.TIMESTAMP ? TIMESTAMP_DESCENDING : SERIAL_DESCENDING;
+    }
+
+    /**
+     * Compare two serials, the higher serial first
+     *
+     * Numeric serials come before text ones, see {@link SerialKey}.
+     */
+    public static int compareSerials(SerialKey serial1, SerialKey serial2) {
+        return serial2.compareTo(serial1);
+    }
+
+    /**
+     * Compare two save times, the later first and then the higher serial
+     */
+    public static int compareTimestamps(long timestamp1, SerialKey serial1,
+                                        long timestamp2, SerialKey serial2) {
+        int result = Long.compare(timestamp2, timestamp1);
+        return result != 0 ? result : compareSerials(serial1, serial2);
+    }
+}
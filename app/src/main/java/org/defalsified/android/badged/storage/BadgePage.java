@@ -0,0 +1,27 @@
+package org.defalsified.android.badged.storage;
+
+import org.defalsified.android.badged.models.Badge;
+
+import java.util.List;
+
+/**
+ * One page of a badge listing
+ */
+public final class BadgePage {
+    private final List<Badge> badges;
+    private final BadgeCursor next;
+
+    public BadgePage(List<Badge> badges, BadgeCursor next) {
+        this.badges = badges;
+        this.next = next;
+    }
+
+    public List<Badge> getBadges() { return badges; }
+
+    /**
+     * Cursor for the following page, or null if this is the last one
+     */
+    public BadgeCursor getNext() { return next; }
+
+    public boolean hasNext() { return next != null; }
+}
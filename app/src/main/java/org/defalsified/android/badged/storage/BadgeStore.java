@@ -0,0 +1,78 @@
+package org.defalsified.android.badged.storage;
+
+import org.defalsified.android.badged.models.Badge;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persistent storage backend for badges
+ *
+ * Badges are keyed by serial; saving a badge replaces any earlier badge
+ * with the same serial. Lists are returned latest first, that is in
+ * descending serial order.
+ */
+public interface BadgeStore {
+
+    /**
+     * Save a badge, replacing any badge with the same serial
+     */
+    void put(Badge badge) throws IOException;
+
+    /**
+     * Save a batch of badges as one transaction
+     *
+     * Either every badge of the batch is stored or none is.
+     */
+    void putAll(Collection<Badge> badges) throws IOException;
+
+    /**
+     * Make every save so far durable, surviving a crash or power loss
+     */
+    void sync() throws IOException;
+
+    /**
+     * Get a badge by serial
+     *
+     * @return The badge, or null if there is none with that serial
+     */
+    Badge get(String serial) throws IOException;
+
+    /**
+     * Get every badge
+     */
+    List<Badge> getAll() throws IOException;
+
+    /**
+     * Get one page of badges by keyset
+     *
+     * @param order Sort order of the listing
+     * @param after Position to continue from, or null for the first page
+     * @param limit Maximum number of badges to return
+     */
+    List<Badge> getPage(BadgeCursor.Order order, BadgeCursor after, int limit) throws IOException;
+
+    /**
+     * Number of stored badges
+     */
+    int size() throws IOException;
+
+    /**
+     * Get the badges issued for a project
+     */
+    List<Badge> findByProject(String project) throws IOException;
+
+    /**
+     * Get the badges issued to a holder
+     */
+    List<Badge> findByHolder(String holder) throws IOException;
+
+    /**
+     * Get the badges saved within a time range
+     *
+     * @param from Start of the range in epoch millis, inclusive
+     * @param to End of the range in epoch millis, exclusive
+     */
+    List<Badge> findByTimestamp(long from, long to) throws IOException;
+}
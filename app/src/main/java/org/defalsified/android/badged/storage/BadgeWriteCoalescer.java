@@ -0,0 +1,114 @@
+package org.defalsified.android.badged.storage;
+
+import org.defalsified.android.badged.models.Badge;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges badge saves that arrive close together into a single write
+ *
+ * The first save after a flush opens a window; every save submitted
+ * before the window closes joins the same batch, the latest badge per
+ * serial winning. All of them share one future, completed once the batch
+ * has been written and made durable.
+ */
+public class BadgeWriteCoalescer {
+
+    /**
+     * Destination of coalesced batches
+     */
+    public interface Sink {
+        /**
+         * Write a batch durably
+         *
+         * @return true if the batch was stored
+         */
+        boolean write(List<Badge> badges);
+    }
+
+    private final Sink sink;
+    private final ScheduledExecutorService executor;
+    private volatile long windowMillis;
+
+    // Guarded by this
+    private final Map<String, Badge> pending = new LinkedHashMap<>();
+    private CompletableFuture<Boolean> pendingResult;
+
+    /**
+     * Constructor
+     *
+     * @param sink Destination of the batches
+     * @param executor Thread the batches are written on
+     * @param windowMillis How long a batch stays open for more saves
+     */
+    public BadgeWriteCoalescer(Sink sink, ScheduledExecutorService executor, long windowMillis) {
+        this.sink = sink;
+        this.executor = executor;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Change the window for batches opened from now on
+     */
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Queue a badge for the current batch
+     *
+     * @return Completes with true once the badge is durably stored, or
+     *         false if its batch could not be written
+     */
+    public synchronized Future<Boolean> submit(Badge badge) {
+        pending.put(badge.getSerial(), badge);
+        if (pendingResult == null) {
+            pendingResult = new CompletableFuture<>();
+            executor.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return pendingResult;
+    }
+
+    /**
+     * Write the current batch now instead of waiting for its window
+     *
+     * @return Completes when the batch queued so far is durably stored
+     */
+    public synchronized Future<Boolean> flushNow() {
+        if (pendingResult == null) {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        Future<Boolean> result = pendingResult;
+        executor.execute(this::flush);
+        return result;
+    }
+
+    private void flush() {
+        List<Badge> batch;
+        CompletableFuture<Boolean> result;
+        synchronized (this) {
+            if (pendingResult == null) {
+                // Already written by an earlier flushNow
+                return;
+            }
+            batch = new ArrayList<>(pending.values());
+            result = pendingResult;
+            pending.clear();
+            pendingResult = null;
+        }
+
+        try {
+            result.complete(sink.write(batch));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+}
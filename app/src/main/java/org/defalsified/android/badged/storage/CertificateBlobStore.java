@@ -0,0 +1,170 @@
+package org.defalsified.android.badged.storage;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import org.defalsified.android.badged.models.Badge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed file store for certificates
+ *
+ * Each certificate is stored once, as its raw bytes, in a file named by
+ * the hex SHA-256 digest of those bytes. Badges keep only the digest and
+ * read the certificate back through a memory mapping when first asked.
+ */
+public class CertificateBlobStore implements Badge.CertificateLoader {
+    private static final String TAG = "CertificateBlobStore";
+    private static final String BLOB_DIR = "certificates";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static CertificateBlobStore instance;
+
+    private final File dir;
+
+    /**
+     * Get the process-wide certificate store
+     *
+     * @param context Any context, only its application context is kept
+     */
+    public static synchronized CertificateBlobStore open(Context context) {
+        if (instance == null) {
+            File dir = new File(context.getApplicationContext().getFilesDir(), BLOB_DIR);
+            instance = new CertificateBlobStore(dir);
+        }
+        return instance;
+    }
+
+    private CertificateBlobStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Store a certificate, unless an identical one is already stored
+     *
+     * @param certificate The raw certificate bytes
+     * @return Hex SHA-256 digest the certificate is stored under
+     */
+    public String put(byte[] certificate) throws IOException {
+        String digest = digest(certificate);
+        File blob = new File(dir, digest);
+        if (blob.exists()) {
+            return digest;
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        // Write aside and rename, so a blob file is never seen half written
+        File temp = new File(dir, digest + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(certificate);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(blob)) {
+            temp.delete();
+            throw new IOException("Failed to store certificate " + digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Read a certificate through a read-only memory mapping
+     *
+     * @param digest Digest returned by {@link #put}
+     * @return The raw certificate bytes
+     */
+    public byte[] read(String digest) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, digest), "r");
+             FileChannel channel = file.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] certificate = new byte[mapped.remaining()];
+            mapped.get(certificate);
+            return certificate;
+        }
+    }
+
+    /**
+     * Move a badge's inline certificate into the store
+     *
+     * The badge keeps its certificate loaded and gains the reference that
+     * gets persisted in place of the certificate. Certificates that are
+     * not valid base64 stay inline.
+     */
+    public void externalize(Badge badge) throws IOException {
+        if (badge.getCertificateRef() != null || badge.getCertificateData() == null) {
+            return;
+        }
+
+        byte[] certificate;
+        try {
+            certificate = Base64.decode(badge.getCertificateData(), Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Keeping certificate of badge " + badge.getSerial() + " inline, not base64");
+            return;
+        }
+        badge.setCertificateRef(put(certificate));
+    }
+
+    /**
+     * Load a referenced certificate as base64, for {@link Badge}
+     */
+    @Override
+    public String loadCertificate(String digest) {
+        try {
+            return Base64.encodeToString(read(digest), Base64.NO_WRAP);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read certificate " + digest, e);
+            return null;
+        }
+    }
+
+    /**
+     * Hex SHA-256 digest of a certificate
+     */
+    public static String digest(byte[] certificate) {
+        MessageDigest sha256 = sha256();
+        sha256.update(certificate);
+        return toHex(sha256.digest());
+    }
+
+    /**
+     * Hex SHA-256 digest of a certificate held in a buffer
+     *
+     * @param certificate Buffer whose remaining bytes are the certificate, left unchanged
+     */
+    public static String digest(ByteBuffer certificate) {
+        MessageDigest sha256 = sha256();
+        sha256.update(certificate.duplicate());
+        return toHex(sha256.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+            hex[i * 2 + 1] = HEX[hash[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+}
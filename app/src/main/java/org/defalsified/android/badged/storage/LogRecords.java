@@ -0,0 +1,128 @@
+package org.defalsified.android.badged.storage;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Record framing shared by the append-only logs
+ *
+ * A record is [int length][int crc32 of payload][payload]. Replay reads
+ * records until one is cut short or fails its checksum, which marks the
+ * torn tail a crash leaves behind. Compaction writes a side file and
+ * renames it over the log, so a crash leaves one complete log either way.
+ */
+final class LogRecords {
+    private static final String TAG = "LogRecords";
+
+    // Payload length + checksum
+    static final int HEADER_SIZE = 8;
+    static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private LogRecords() {}
+
+    /**
+     * Receives the intact records of a log in file order
+     */
+    interface Handler {
+        /**
+         * @param payloadOffset File offset of the payload
+         * @return false to end replay before this record, as if the tail were torn
+         */
+        boolean onRecord(byte[] payload, long payloadOffset) throws IOException;
+    }
+
+    /**
+     * Writes the records of a compacted log
+     */
+    interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Replay the intact records of a log
+     *
+     * @param start File offset of the first record
+     * @param length Length of the file
+     * @return Offset just past the last record the handler took
+     */
+    static long replay(File file, long start, long length, Handler handler) throws IOException {
+        long offset = start;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            in.skipBytes((int) start);
+
+            while (offset + HEADER_SIZE <= length) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                if (size <= 0 || size > MAX_RECORD_SIZE || offset + HEADER_SIZE + size > length) {
+                    break;
+                }
+
+                byte[] payload = new byte[size];
+                in.readFully(payload);
+                if (checksum(crc, payload, 0, size) != checksum
+                        || !handler.onRecord(payload, offset + HEADER_SIZE)) {
+                    break;
+                }
+                offset += HEADER_SIZE + size;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Write one record to a stream
+     */
+    static void write(DataOutputStream out, CRC32 crc, byte[] payload, int offset, int length)
+            throws IOException {
+        out.writeInt(length);
+        out.writeInt(checksum(crc, payload, offset, length));
+        out.write(payload, offset, length);
+    }
+
+    static int checksum(CRC32 crc, byte[] data, int offset, int length) {
+        crc.reset();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Write a compacted log to its side file and sync it
+     */
+    static void writeCompacted(File compactFile, Writer writer) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(compactFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            writer.write(out);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    /**
+     * Put the compacted side file in place of the log
+     */
+    static void swap(File compactFile, File file) throws IOException {
+        if (!compactFile.renameTo(file)) {
+            throw new IOException("Failed to replace " + file + " with compacted log");
+        }
+    }
+
+    /**
+     * Delete a side file left by a compaction that died before the swap
+     */
+    static void deleteStale(File compactFile) {
+        if (compactFile.exists() && !compactFile.delete()) {
+            Log.w(TAG, "Could not delete stale " + compactFile);
+        }
+    }
+}
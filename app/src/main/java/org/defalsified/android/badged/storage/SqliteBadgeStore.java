@@ -0,0 +1,342 @@
+package org.defalsified.android.badged.storage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import org.defalsified.android.badged.models.Badge;
+import org.defalsified.android.badged.models.SerialKey;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SQLite storage backend for badges
+ *
+ * One row per badge, keyed by serial, with indexes for the project,
+ * holder and timestamp queries. Numeric serials are also stored as
+ * integers so the display order can be served from an index.
+ */
+public class SqliteBadgeStore extends SQLiteOpenHelper implements BadgeStore {
+    private static final String DATABASE_NAME = "badges.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_BADGES = "badges";
+    private static final String COLUMN_SERIAL = "serial";
+    private static final String COLUMN_SERIAL_NUMBER = "serial_number";
+    private static final String COLUMN_OFFER = "offer";
+    private static final String COLUMN_HOLDER = "holder";
+    private static final String COLUMN_PROJECT = "project";
+    private static final String COLUMN_CERTIFICATE_DATA = "certificate_data";
+    private static final String COLUMN_CERTIFICATE_REF = "certificate_ref";
+    private static final String COLUMN_TIMESTAMP = "timestamp";
+
+    private static final String COLUMNS = COLUMN_SERIAL + ", " + COLUMN_OFFER + ", "
+            + COLUMN_HOLDER + ", " + COLUMN_PROJECT + ", " + COLUMN_CERTIFICATE_DATA + ", "
+            + COLUMN_TIMESTAMP + ", " + COLUMN_CERTIFICATE_REF;
+
+    // Latest first: numeric serials descending, then the rest descending.
+    // SQLite sorts NULL lowest, so text serials come last and the order
+    // index serves the sort as is.
+    static final String ORDER_LATEST_FIRST = COLUMN_SERIAL_NUMBER + " DESC, "
+            + COLUMN_SERIAL + " DESC";
+
+    // Keyset ranges in that order, each one range of the order index: the
+    // numeric serials after a numeric cursor, all text serials, and the
+    // text serials after a text cursor
+    static final String AFTER_NUMBER = COLUMN_SERIAL_NUMBER + " <= ? AND ("
+            + COLUMN_SERIAL_NUMBER + " < ? OR " + COLUMN_SERIAL + " < ?)";
+    static final String TEXT_SERIALS = COLUMN_SERIAL_NUMBER + " IS NULL";
+    static final String AFTER_TEXT = COLUMN_SERIAL_NUMBER + " IS NULL AND "
+            + COLUMN_SERIAL + " < ?";
+
+    // Most recently saved first, ties broken in the latest first serial order
+    private static final String ORDER_TIMESTAMP = COLUMN_TIMESTAMP + " DESC, "
+            + ORDER_LATEST_FIRST;
+
+    // Keyset ranges in that order: earlier times, or the same time and a
+    // serial after the cursor's, split as AFTER_NUMBER and AFTER_TEXT are
+    private static final String TIMESTAMP_AFTER_NUMBER = COLUMN_TIMESTAMP + " < ? OR ("
+            + COLUMN_TIMESTAMP + " = ? AND (" + TEXT_SERIALS + " OR (" + AFTER_NUMBER + ")))";
+    private static final String TIMESTAMP_AFTER_TEXT = COLUMN_TIMESTAMP + " < ? OR ("
+            + COLUMN_TIMESTAMP + " = ? AND " + AFTER_TEXT + ")";
+
+    private static final String SQL_UPSERT = "INSERT OR REPLACE INTO " + TABLE_BADGES + " ("
+            + COLUMN_SERIAL + ", " + COLUMN_SERIAL_NUMBER + ", " + COLUMN_OFFER + ", "
+            + COLUMN_HOLDER + ", " + COLUMN_PROJECT + ", " + COLUMN_CERTIFICATE_DATA + ", "
+            + COLUMN_TIMESTAMP + ", " + COLUMN_CERTIFICATE_REF + ")"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static SqliteBadgeStore instance;
+
+    // Compiled once, guarded by this
+    private SQLiteStatement upsertStatement;
+
+    /**
+     * Get the process-wide SQLite badge store
+     *
+     * @param context Any context, only its application context is kept
+     */
+    public static synchronized SqliteBadgeStore open(Context context) {
+        if (instance == null) {
+            instance = new SqliteBadgeStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private SqliteBadgeStore(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param name Database file name, or null for an in-memory database
+     */
+    SqliteBadgeStore(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_BADGES + " ("
+                + COLUMN_SERIAL + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_SERIAL_NUMBER + " INTEGER, "
+                + COLUMN_OFFER + " TEXT, "
+                + COLUMN_HOLDER + " TEXT, "
+                + COLUMN_PROJECT + " TEXT, "
+                + COLUMN_CERTIFICATE_DATA + " TEXT, "
+                + COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                + COLUMN_CERTIFICATE_REF + " TEXT)");
+
+        db.execSQL("CREATE INDEX idx_badges_order ON " + TABLE_BADGES
+                + " (" + COLUMN_SERIAL_NUMBER + ", " + COLUMN_SERIAL + ")");
+        db.execSQL("CREATE INDEX idx_badges_project ON " + TABLE_BADGES
+                + " (" + COLUMN_PROJECT + ")");
+        db.execSQL("CREATE INDEX idx_badges_holder ON " + TABLE_BADGES
+                + " (" + COLUMN_HOLDER + ")");
+        db.execSQL("CREATE INDEX idx_badges_timestamp ON " + TABLE_BADGES
+                + " (" + COLUMN_TIMESTAMP + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // Certificates stored by reference
+            db.execSQL("ALTER TABLE " + TABLE_BADGES + " ADD COLUMN "
+                    + COLUMN_CERTIFICATE_REF + " TEXT");
+        }
+    }
+
+    @Override
+    public synchronized void put(Badge badge) throws IOException {
+        putAll(Collections.singletonList(badge));
+    }
+
+    @Override
+    public synchronized void putAll(Collection<Badge> badges) throws IOException {
+        SQLiteDatabase db;
+        try {
+            db = getWritableDatabase();
+            db.beginTransaction();
+        } catch (SQLException e) {
+            throw new IOException("Failed to open badge database", e);
+        }
+
+        try {
+            for (Badge badge : badges) {
+                upsert(db, badge);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Nothing to do, a committed transaction is already durable
+     */
+    @Override
+    public void sync() {
+    }
+
+    private void upsert(SQLiteDatabase db, Badge badge) throws IOException {
+        try {
+            if (upsertStatement == null) {
+                upsertStatement = db.compileStatement(SQL_UPSERT);
+            }
+
+            SQLiteStatement statement = upsertStatement;
+            statement.clearBindings();
+            statement.bindString(1, badge.getSerial());
+            Long serialNumber = parseSerialNumber(badge.getSerial());
+            if (serialNumber != null) {
+                statement.bindLong(2, serialNumber);
+            } else {
+                statement.bindNull(2);
+            }
+            bindNullable(statement, 3, badge.getOffer());
+            bindNullable(statement, 4, badge.getHolder());
+            bindNullable(statement, 5, badge.getProject());
+            // A referenced certificate is not stored inline as well
+            String certificateRef = badge.getCertificateRef();
+            bindNullable(statement, 6, certificateRef == null ? badge.getCertificateData() : null);
+            statement.bindLong(7, badge.getTimestamp());
+            bindNullable(statement, 8, certificateRef);
+            statement.executeInsert();
+        } catch (SQLException e) {
+            throw new IOException("Failed to save badge " + badge.getSerial(), e);
+        }
+    }
+
+    @Override
+    public Badge get(String serial) throws IOException {
+        List<Badge> badges = query(COLUMN_SERIAL + " = ?", new String[]{serial});
+        return badges.isEmpty() ? null : badges.get(0);
+    }
+
+    @Override
+    public List<Badge> getAll() throws IOException {
+        return query(null, null);
+    }
+
+    @Override
+    public List<Badge> getPage(BadgeCursor.Order order, BadgeCursor after, int limit)
+            throws IOException {
+        if (order == BadgeCursor.Order.TIMESTAMP) {
+            return getTimestampPage(after, limit);
+        }
+
+        if (after == null) {
+            return query(null, null, ORDER_LATEST_FIRST, limit);
+        }
+
+        Long serialNumber = parseSerialNumber(after.getSerial());
+        if (serialNumber == null) {
+            return query(AFTER_TEXT, new String[]{after.getSerial()}, ORDER_LATEST_FIRST, limit);
+        }
+
+        // Smaller numeric serials, then every text serial. Or-ing the two
+        // would have SQLite scan the index from the top, so they are two
+        // range queries, the second only run for a page that spans both.
+        String number = Long.toString(serialNumber);
+        List<Badge> badges = query(AFTER_NUMBER, new String[]{number, number, after.getSerial()},
+                ORDER_LATEST_FIRST, limit);
+        if (limit > 0 && badges.size() >= limit) {
+            return badges;
+        }
+        badges.addAll(query(TEXT_SERIALS, null, ORDER_LATEST_FIRST,
+                limit > 0 ? limit - badges.size() : 0));
+        return badges;
+    }
+
+    private List<Badge> getTimestampPage(BadgeCursor after, int limit) throws IOException {
+        if (after == null) {
+            return query(null, null, ORDER_TIMESTAMP, limit);
+        }
+
+        String timestamp = Long.toString(after.getTimestamp());
+        Long serialNumber = parseSerialNumber(after.getSerial());
+        if (serialNumber == null) {
+            return query(TIMESTAMP_AFTER_TEXT,
+                    new String[]{timestamp, timestamp, after.getSerial()}, ORDER_TIMESTAMP, limit);
+        }
+        String number = Long.toString(serialNumber);
+        return query(TIMESTAMP_AFTER_NUMBER,
+                new String[]{timestamp, timestamp, number, number, after.getSerial()},
+                ORDER_TIMESTAMP, limit);
+    }
+
+    @Override
+    public int size() throws IOException {
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT COUNT(*) FROM " + TABLE_BADGES, null)) {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } catch (SQLException e) {
+            throw new IOException("Failed to count badges", e);
+        }
+    }
+
+    @Override
+    public List<Badge> findByProject(String project) throws IOException {
+        return query(COLUMN_PROJECT + " = ?", new String[]{project});
+    }
+
+    @Override
+    public List<Badge> findByHolder(String holder) throws IOException {
+        return query(COLUMN_HOLDER + " = ?", new String[]{holder});
+    }
+
+    @Override
+    public List<Badge> findByTimestamp(long from, long to) throws IOException {
+        return query(COLUMN_TIMESTAMP + " >= ? AND " + COLUMN_TIMESTAMP + " < ?",
+                new String[]{Long.toString(from), Long.toString(to)});
+    }
+
+    /**
+     * Run a badge query in display order
+     */
+    private List<Badge> query(String selection, String[] selectionArgs) throws IOException {
+        return query(selection, selectionArgs, ORDER_LATEST_FIRST, 0);
+    }
+
+    /**
+     * Run a badge query
+     *
+     * @param limit Maximum number of rows, or 0 for all of them
+     */
+    private List<Badge> query(String selection, String[] selectionArgs, String orderBy, int limit)
+            throws IOException {
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                sql(selection, orderBy, limit), selectionArgs)) {
+            List<Badge> badges = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                badges.add(readBadge(cursor));
+            }
+            return badges;
+        } catch (SQLException e) {
+            throw new IOException("Failed to query badges", e);
+        }
+    }
+
+    /**
+     * Badge query text
+     *
+     * @param limit Maximum number of rows, or 0 for all of them
+     */
+    static String sql(String selection, String orderBy, int limit) {
+        return "SELECT " + COLUMNS + " FROM " + TABLE_BADGES
+                + (selection != null ? " WHERE " + selection : "")
+                + " ORDER BY " + orderBy
+                + (limit > 0 ? " LIMIT " + limit : "");
+    }
+
+    private static Badge readBadge(Cursor cursor) {
+        Badge badge = new Badge();
+        badge.setSerial(cursor.getString(0));
+        badge.setOffer(cursor.getString(1));
+        badge.setHolder(cursor.getString(2));
+        badge.setProject(cursor.getString(3));
+        badge.setCertificateData(cursor.getString(4));
+        badge.setTimestamp(cursor.getLong(5));
+        badge.setCertificateRef(cursor.getString(6));
+        return badge;
+    }
+
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    // Same rule as the badge log: serials wider than a long are text
+    private static Long parseSerialNumber(String serial) {
+        return SerialKey.of(serial).toLong();
+    }
+}
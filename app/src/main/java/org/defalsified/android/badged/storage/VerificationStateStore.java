@@ -0,0 +1,240 @@
+package org.defalsified.android.badged.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Per-badge outcome of the latest certificate re-verification
+ *
+ * Kept apart from the badges themselves, so a verification pass over the
+ * wallet appends a few bytes per badge instead of rewriting every badge.
+ * The file is an append-only log replayed into memory on first use; the
+ * latest record for a serial wins and a torn tail is truncated away.
+ *
+ * Records are framed as in {@link LogRecords}. The payload is [int count]
+ * then [UTF serial][int status][long verifiedAt] for each badge of the
+ * batch, so a batch is replayed all or nothing. A record that passes its
+ * checksum but does not decode ends replay like a torn tail.
+ */
+public class VerificationStateStore {
+    private static final String TAG = "VerificationStateStore";
+    private static final String LOG_FILE = "verification.log";
+    private static final String COMPACT_FILE = "verification.log.compact";
+
+    // Rewrite once superseded records outnumber live ones by this factor
+    private static final int COMPACT_FACTOR = 4;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    private static final int COMPACT_CHUNK = 1024;
+
+    private static VerificationStateStore instance;
+
+    private final File file;
+    private final File compactFile;
+    private final CRC32 crc = new CRC32();
+
+    // Latest state per serial, null until the log is replayed
+    private Map<String, State> states;
+    private long records;
+
+    /**
+     * Get the process-wide verification state store
+     *
+     * @param context Any context, only its application context is kept
+     */
+    public static synchronized VerificationStateStore open(Context context) {
+        if (instance == null) {
+            File dir = context.getApplicationContext().getFilesDir();
+            instance = new VerificationStateStore(new File(dir, LOG_FILE),
+                    new File(dir, COMPACT_FILE));
+        }
+        return instance;
+    }
+
+    VerificationStateStore(File file, File compactFile) {
+        this.file = file;
+        this.compactFile = compactFile;
+    }
+
+    /**
+     * Latest state of a badge
+     *
+     * @return The state, or null if the badge was never re-verified
+     */
+    public synchronized State get(String serial) throws IOException {
+        ensureOpen();
+        return states.get(serial);
+    }
+
+    /**
+     * Record the states of a batch of badges, durably and all at once
+     *
+     * @param updates Serial -> new state
+     */
+    public synchronized void putAll(Map<String, State> updates) throws IOException {
+        ensureOpen();
+        if (updates.isEmpty()) {
+            return;
+        }
+
+        FileOutputStream fileOut = new FileOutputStream(file, true);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            writeRecord(out, updates);
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            // Replay again next time, truncating whatever part was written
+            states = null;
+            throw e;
+        }
+
+        states.putAll(updates);
+        records += updates.size();
+        if (records > COMPACT_MIN_RECORDS && records > (long) states.size() * COMPACT_FACTOR) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // The updates are durable already, the log stays as it is until next time
+                Log.e(TAG, "Verification log compaction failed", e);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the log keeping only the latest state of each badge
+     */
+    private void compact() throws IOException {
+        LogRecords.writeCompacted(compactFile, out -> {
+            // Split into records that stay well below the size limit
+            Map<String, State> chunk = new HashMap<>();
+            for (Map.Entry<String, State> item : states.entrySet()) {
+                chunk.put(item.getKey(), item.getValue());
+                if (chunk.size() == COMPACT_CHUNK) {
+                    writeRecord(out, chunk);
+                    chunk.clear();
+                }
+            }
+            writeRecord(out, chunk);
+        });
+        LogRecords.swap(compactFile, file);
+        records = states.size();
+        Log.d(TAG, "Compacted verification log to " + records + " records");
+    }
+
+    /**
+     * Replay the log, truncating a torn tail left by a crash
+     */
+    private void ensureOpen() throws IOException {
+        if (states != null) {
+            return;
+        }
+        LogRecords.deleteStale(compactFile);
+
+        Map<String, State> replayed = new HashMap<>();
+        long length = file.length();
+        long[] count = {0};
+        long offset = 0;
+        if (length > 0) {
+            offset = LogRecords.replay(file, 0, length, (payload, payloadOffset) -> {
+                Map<String, State> batch;
+                try {
+                    batch = decode(payload);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unreadable verification record at "
+                            + (payloadOffset - LogRecords.HEADER_SIZE), e);
+                    return false;
+                }
+                // Only whole batches are applied
+                replayed.putAll(batch);
+                count[0] += batch.size();
+                return true;
+            });
+        }
+
+        if (offset < length) {
+            Log.w(TAG, "Truncating " + (length - offset) + " bytes of torn verification log tail");
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.getChannel().truncate(offset);
+            }
+        }
+        states = replayed;
+        records = count[0];
+    }
+
+    private void writeRecord(DataOutputStream out, Map<String, State> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        byte[] payload = encode(batch);
+        if (payload.length > LogRecords.MAX_RECORD_SIZE) {
+            // Replay would take it for a torn tail
+            throw new IOException("Verification batch is larger than a log record");
+        }
+        LogRecords.write(out, crc, payload, 0, payload.length);
+    }
+
+    private static byte[] encode(Map<String, State> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + batch.size() * 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(batch.size());
+        for (Map.Entry<String, State> item : batch.entrySet()) {
+            out.writeUTF(item.getKey());
+            out.writeInt(item.getValue().status);
+            out.writeLong(item.getValue().verifiedAt);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, State> decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = in.readInt();
+        // Each state takes at least 14 bytes, which bounds a sane count
+        if (count <= 0 || count > payload.length / 14) {
+            throw new IOException("Bad verification batch count " + count);
+        }
+
+        Map<String, State> batch = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String serial = in.readUTF();
+            int status = in.readInt();
+            long verifiedAt = in.readLong();
+            batch.put(serial, new State(status, verifiedAt));
+        }
+        if (in.available() != 0) {
+            throw new IOException("Trailing bytes in verification record");
+        }
+        return batch;
+    }
+
+    /**
+     * Outcome of verifying one badge's certificate
+     */
+    public static final class State {
+        private final int status;
+        private final long verifiedAt;
+
+        /**
+         * @param status A {@code Cert.Verification} status code
+         * @param verifiedAt When the certificate was verified, epoch millis
+         */
+        public State(int status, long verifiedAt) {
+            this.status = status;
+            this.verifiedAt = verifiedAt;
+        }
+
+        public int getStatus() { return status; }
+        public long getVerifiedAt() { return verifiedAt; }
+    }
+}
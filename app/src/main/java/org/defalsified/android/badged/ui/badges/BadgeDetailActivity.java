@@ -15,7 +15,7 @@ import com.google.android.material.appbar.CollapsingToolbarLayout;
 
 import org.defalsified.android.badged.R;
 import org.defalsified.android.badged.models.Badge;
-import org.defalsified.android.badged.services.BadgeRepository;
+import org.defalsified.android.badged.services.AsyncBadgeRepository;
 
 /**
  * Shows badge details (verification done during QR scanning)
@@ -27,7 +27,7 @@ public class BadgeDetailActivity extends AppCompatActivity {
     public static final String EXTRA_IS_NEW_BADGE = "is_new_badge";
     public static final String EXTRA_VERIFICATION_STATUS = "verification_status";
 
-    private BadgeRepository badgeRepository;
+    private AsyncBadgeRepository badgeRepository;
     private TextView verificationStatusText;
     private View newBadgeIndicator;
 
@@ -43,11 +43,8 @@ public class BadgeDetailActivity extends AppCompatActivity {
             getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         }
 
-        // Setup collapsing toolbar
-        CollapsingToolbarLayout collapsingToolbar = findViewById(R.id.collapsing_toolbar);
-
         // Init services
-        badgeRepository = new BadgeRepository(this);
+        badgeRepository = new AsyncBadgeRepository(this);
 
         // Init views
         verificationStatusText = findViewById(R.id.verification_status);
@@ -63,12 +60,36 @@ public class BadgeDetailActivity extends AppCompatActivity {
             return;
         }
 
-        // Get badge
-        Badge badge = badgeRepository.getBadgeById(badgeSerial);
-        if (badge == null) {
-            finish();
-            return;
-        }
+        // Get badge, off the main thread
+        badgeRepository.getBadgeById(badgeSerial, new AsyncBadgeRepository.Callback<Badge>() {
+            @Override
+            public void onResult(Badge badge) {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (badge == null) {
+                    finish();
+                    return;
+                }
+                showBadge(badge, isNewBadge, verificationStatus);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                Log.e(TAG, "Failed to load badge " + badgeSerial, error);
+                if (!isDestroyed()) {
+                    finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Populate views once the badge is loaded
+     */
+    private void showBadge(Badge badge, boolean isNewBadge, String verificationStatus) {
+        // Setup collapsing toolbar
+        CollapsingToolbarLayout collapsingToolbar = findViewById(R.id.collapsing_toolbar);
 
         // Populate views
         ImageView badgeImage = findViewById(R.id.badge_image);
@@ -2,6 +2,7 @@ package org.defalsified.android.badged.ui.badges;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
@@ -13,19 +14,22 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import org.defalsified.android.badged.R;
 import org.defalsified.android.badged.models.Badge;
-import org.defalsified.android.badged.services.BadgeRepository;
+import org.defalsified.android.badged.services.AsyncBadgeRepository;
+import org.defalsified.android.badged.storage.BadgeCursor;
 import org.defalsified.android.badged.ui.scanner.QrScannerActivity;
 
-import java.util.List;
-
 /**
  * Activity to display all collected badges
  */
 public class BadgeGalleryActivity extends AppCompatActivity implements BadgeAdapter.OnBadgeClickListener {
+    private static final String TAG = "BadgeGalleryActivity";
+
+    // Badges fetched per page while scrolling
+    private static final int PAGE_SIZE = 30;
 
     private View emptyState;
     private RecyclerView recyclerView;
-    private BadgeRepository badgeRepository;
+    private AsyncBadgeRepository badgeRepository;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -33,7 +37,7 @@ public class BadgeGalleryActivity extends AppCompatActivity implements BadgeAdap
         setContentView(R.layout.activity_badge_gallery);
 
         // Initialize repository
-        badgeRepository = new BadgeRepository(this);
+        badgeRepository = new AsyncBadgeRepository(this);
 
         // Set up toolbar
         Toolbar toolbar = findViewById(R.id.toolbar);
@@ -63,25 +67,45 @@ public class BadgeGalleryActivity extends AppCompatActivity implements BadgeAdap
     }
 
     /**
-     * Load badges from repository and update UI
+     * Load the first page of badges and update UI
      */
     private void loadBadges() {
-        // Get all badges
-        List<Badge> badges = badgeRepository.getAllBadges();
-
-        if (badges.isEmpty()) {
-            // Show empty state
-            emptyState.setVisibility(View.VISIBLE);
-            recyclerView.setVisibility(View.GONE);
-        } else {
-            // Show badges in RecyclerView
-            emptyState.setVisibility(View.GONE);
-            recyclerView.setVisibility(View.VISIBLE);
-
-            // Set up adapter
-            BadgeAdapter adapter = new BadgeAdapter(badges, this);
-            recyclerView.setAdapter(adapter);
-        }
+        // Further pages are fetched by the adapter while scrolling
+        PagedBadgeAdapter adapter = new PagedBadgeAdapter(
+                badgeRepository::getBadgePage, BadgeCursor.Order.SERIAL, PAGE_SIZE, this);
+
+        adapter.loadFirstPage(new AsyncBadgeRepository.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean hasBadges) {
+                if (isDestroyed()) {
+                    return;
+                }
+
+                if (!hasBadges) {
+                    showEmptyState();
+                } else {
+                    // Show badges in RecyclerView
+                    emptyState.setVisibility(View.GONE);
+                    recyclerView.setVisibility(View.VISIBLE);
+
+                    recyclerView.setAdapter(adapter);
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                Log.e(TAG, "Failed to load badges", error);
+                if (!isDestroyed()) {
+                    // Scanning still works, so offer that rather than a blank screen
+                    showEmptyState();
+                }
+            }
+        });
+    }
+
+    private void showEmptyState() {
+        emptyState.setVisibility(View.VISIBLE);
+        recyclerView.setVisibility(View.GONE);
     }
 
     /**]
@@ -0,0 +1,144 @@
+package org.defalsified.android.badged.ui.badges;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import org.defalsified.android.badged.R;
+import org.defalsified.android.badged.models.Badge;
+import org.defalsified.android.badged.services.AsyncBadgeRepository;
+import org.defalsified.android.badged.storage.BadgeCursor;
+import org.defalsified.android.badged.storage.BadgePage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adapter for displaying badges in a RecyclerView, one page at a time
+ *
+ * Starts with the first page and fetches the next one when binding comes
+ * within a few items of the end of what is loaded. Pages are loaded in the
+ * background and added when they arrive on the main thread. A page that
+ * fails to load ends the listing, until the first page is loaded again.
+ */
+public class PagedBadgeAdapter extends RecyclerView.Adapter<BadgeAdapter.BadgeViewHolder> {
+
+    // Start fetching the next page this many items before the end
+    private static final int PREFETCH_DISTANCE = 10;
+
+    /**
+     * Source of badge pages, delivering them on the main thread
+     */
+    public interface PageSource {
+        void loadPage(BadgeCursor.Order order, BadgeCursor after, int pageSize,
+                      AsyncBadgeRepository.Callback<BadgePage> callback);
+    }
+
+    private final PageSource pageSource;
+    private final BadgeCursor.Order order;
+    private final int pageSize;
+    private final BadgeAdapter.OnBadgeClickListener listener;
+    private final List<Badge> badges = new ArrayList<>();
+
+    private BadgeCursor nextCursor;
+    private boolean hasMore = true;
+    private boolean loading;
+
+    /**
+     * Constructor
+     *
+     * @param pageSource Source of badge pages
+     * @param order Sort order of the listing
+     * @param pageSize Number of badges fetched at a time
+     * @param listener Click listener for badge items
+     */
+    public PagedBadgeAdapter(PageSource pageSource, BadgeCursor.Order order, int pageSize,
+                             BadgeAdapter.OnBadgeClickListener listener) {
+        this.pageSource = pageSource;
+        this.order = order;
+        this.pageSize = pageSize;
+        this.listener = listener;
+    }
+
+    /**
+     * Load the first page
+     *
+     * @param onLoaded Called with true if the wallet has any badges, or
+     *                 told of the error if the page could not be loaded
+     */
+    public void loadFirstPage(AsyncBadgeRepository.Callback<Boolean> onLoaded) {
+        badges.clear();
+        nextCursor = null;
+        hasMore = true;
+        loading = true;
+        pageSource.loadPage(order, null, pageSize, new AsyncBadgeRepository.Callback<BadgePage>() {
+            @Override
+            public void onResult(BadgePage page) {
+                addPage(page);
+                onLoaded.onResult(!badges.isEmpty());
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                pageFailed();
+                onLoaded.onError(error);
+            }
+        });
+    }
+
+    @NonNull
+    @Override
+    public BadgeAdapter.BadgeViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_badge, parent, false);
+        return new BadgeAdapter.BadgeViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull BadgeAdapter.BadgeViewHolder holder, int position) {
+        holder.bind(badges.get(position), listener);
+
+        // The page arrives in a later main thread message, after binding is done
+        if (position >= badges.size() - PREFETCH_DISTANCE && hasMore && !loading) {
+            loading = true;
+            pageSource.loadPage(order, nextCursor, pageSize, new AsyncBadgeRepository.Callback<BadgePage>() {
+                @Override
+                public void onResult(BadgePage page) {
+                    addPage(page);
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    AsyncBadgeRepository.Callback.super.onError(error);
+                    pageFailed();
+                }
+            });
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return badges.size();
+    }
+
+    // Retrying on every bind would repeat the error while scrolling
+    private void pageFailed() {
+        hasMore = false;
+        loading = false;
+    }
+
+    private void addPage(BadgePage page) {
+        int start = badges.size();
+        badges.addAll(page.getBadges());
+        nextCursor = page.getNext();
+        hasMore = page.hasNext();
+        loading = false;
+
+        if (!page.getBadges().isEmpty()) {
+            notifyItemRangeInserted(start, page.getBadges().size());
+        }
+    }
+}
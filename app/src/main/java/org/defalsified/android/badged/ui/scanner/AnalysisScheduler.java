@@ -0,0 +1,212 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+import org.defalsified.android.badged.utils.Tracer;
+
+/**
+ * How many frames to analyze, and at what resolution
+ *
+ * Decode latency and the camera's frame interval are smoothed as frames
+ * go by, and frames are skipped so decoding takes no more than
+ * {@link #CPU_BUDGET} of one core, however long it takes per frame. The
+ * resolution steps up when decoded codes are small in the frame or
+ * nothing decodes for a while, and down when codes are large or even
+ * skipping cannot keep within budget; it changes at most once every
+ * {@link #DWELL_NANOS}, as each change restarts the camera.
+ *
+ * Frames are offered from the analysis thread and reported from the
+ * decoder threads; the level may be read from any thread.
+ */
+final class AnalysisScheduler {
+    private static final String TAG = "AnalysisScheduler";
+
+    /**
+     * Told when the analysis resolution should change
+     */
+    interface Listener {
+        /**
+         * Called on a decoder thread
+         *
+         * @param level Index into {@link #RESOLUTIONS}
+         */
+        void onResolutionChanged(int level);
+    }
+
+    // Long and short side of each analysis resolution, smallest first
+    static final int[][] RESOLUTIONS = {{640, 480}, {960, 720}, {1280, 960}};
+    // Share of one core spent decoding
+    static final float CPU_BUDGET = 0.4f;
+    // Analyze at least one frame in this many
+    static final int MAX_SKIP = 5;
+    static final long DWELL_NANOS = 3_000_000_000L;
+    // Analyzed frames without a code before looking closer
+    static final int MISSES_BEFORE_STEP_UP = 60;
+    // Pixels per module below which codes are hard to read, and above
+    // which a lower resolution still reads them comfortably
+    static final float SMALL_MODULE = 2.5f;
+    static final float COMFORTABLE_MODULE = 4f;
+
+    // Weight of the newest sample in the running averages
+    private static final float SMOOTHING = 0.2f;
+    // Gaps longer than this are the camera stopping, not frame timing
+    private static final long MAX_INTERVAL_NANOS = 500_000_000L;
+    private static final long DEFAULT_INTERVAL_NANOS = 33_333_333L;
+
+    private final Listener listener;
+    private volatile int level;
+    private volatile int skip;
+
+    private float latencyNanos;
+    private float intervalNanos = DEFAULT_INTERVAL_NANOS;
+    private long lastTimestamp;
+    private long changedAt;
+    private int skipped;
+    private int misses;
+
+    /**
+     * @param listener Told of resolution changes
+     */
+    AnalysisScheduler(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Current resolution, an index into {@link #RESOLUTIONS}
+     */
+    int level() {
+        return level;
+    }
+
+    /**
+     * Frames currently skipped after each analyzed one
+     */
+    int skip() {
+        return skip;
+    }
+
+    /**
+     * Whether to analyze a frame or drop it straight away
+     *
+     * @param timestampNanos Sensor timestamp of the frame
+     */
+    synchronized boolean shouldAnalyze(long timestampNanos) {
+        long interval = timestampNanos - lastTimestamp;
+        if (lastTimestamp != 0 && interval > 0 && interval < MAX_INTERVAL_NANOS) {
+            intervalNanos += (interval - intervalNanos) * SMOOTHING;
+        }
+        lastTimestamp = timestampNanos;
+        if (changedAt == 0) {
+            changedAt = timestampNanos;
+        }
+
+        if (skipped < skip) {
+            skipped++;
+            return false;
+        }
+        skipped = 0;
+        return true;
+    }
+
+    /**
+     * Account for an analyzed frame
+     *
+     * @param nanos Time spent decoding it
+     * @param result What was decoded, or null
+     */
+    synchronized void record(long nanos, Result result) {
+        latencyNanos = latencyNanos == 0 ? nanos : latencyNanos + (nanos - latencyNanos) * SMOOTHING;
+
+        int step = 0;
+        float budgetSkip = framesPerAnalysis(latencyNanos) - 1;
+        if (result != null) {
+            misses = 0;
+            float module = moduleSize(result);
+            if (module > 0 && module < SMALL_MODULE) {
+                step = 1;
+            } else if (module > 0 && level > 0
+                    && module * RESOLUTIONS[level - 1][0] / RESOLUTIONS[level][0] >= COMFORTABLE_MODULE) {
+                step = -1;
+            }
+        } else if (++misses >= MISSES_BEFORE_STEP_UP && level < RESOLUTIONS.length - 1
+                && framesPerAnalysis(latencyNanos * areaRatio(level + 1)) - 1 <= MAX_SKIP) {
+            step = 1;
+        }
+        if (budgetSkip > MAX_SKIP && level > 0) {
+            // Over budget even skipping as much as we may
+            step = -1;
+        }
+
+        int newSkip = Math.max(0, Math.min(MAX_SKIP, (int) Math.ceil(budgetSkip)));
+        if (newSkip != skip) {
+            Tracer.d(TAG, "Analyzing 1 in ", newSkip + 1);
+            skip = newSkip;
+        }
+
+        int newLevel = level + step;
+        if (step != 0 && newLevel >= 0 && newLevel < RESOLUTIONS.length
+                && lastTimestamp - changedAt >= DWELL_NANOS) {
+            // Expect latency to follow the pixel count until measured
+            latencyNanos *= areaRatio(newLevel);
+            changedAt = lastTimestamp;
+            misses = 0;
+            level = newLevel;
+            Tracer.d(TAG, "Resolution level ", newLevel);
+            listener.onResolutionChanged(newLevel);
+        }
+    }
+
+    // Frames per analyzed one, so decoding stays within budget
+    private float framesPerAnalysis(float latency) {
+        return latency / (CPU_BUDGET * intervalNanos);
+    }
+
+    // Pixels at another level, relative to the current one
+    private float areaRatio(int other) {
+        return (float) (RESOLUTIONS[other][0] * RESOLUTIONS[other][1])
+                / (RESOLUTIONS[level][0] * RESOLUTIONS[level][1]);
+    }
+
+    /**
+     * Pixels per module of a decoded QR code
+     *
+     * The version, and so the modules across, follows from the number of
+     * data codewords and the error correction level; the finder patterns
+     * give the distance in pixels.
+     *
+     * @return Pixels per module, or 0 if not known
+     */
+    static float moduleSize(Result result) {
+        ResultPoint[] points = result.getResultPoints();
+        byte[] raw = result.getRawBytes();
+        Object ecLevel = result.getResultMetadata() != null
+                ? result.getResultMetadata().get(ResultMetadataType.ERROR_CORRECTION_LEVEL)
+                : null;
+        if (points == null || points.length < 3 || raw == null || !(ecLevel instanceof String)) {
+            return 0;
+        }
+
+        ErrorCorrectionLevel correction;
+        try {
+            correction = ErrorCorrectionLevel.valueOf((String) ecLevel);
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+        for (int number = 1; number <= 40; number++) {
+            Version version = Version.getVersionForNumber(number);
+            Version.ECBlocks blocks = version.getECBlocksForLevel(correction);
+            int dataCodewords = version.getTotalCodewords()
+                    - blocks.getTotalECCodewords();
+            if (dataCodewords == raw.length) {
+                // Top left to top right finder centers, 7 modules short of the width
+                float across = ResultPoint.distance(points[1], points[2]);
+                return across / (version.getDimensionForVersion() - 7);
+            }
+        }
+        return 0;
+    }
+}
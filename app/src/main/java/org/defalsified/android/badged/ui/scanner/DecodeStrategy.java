@@ -0,0 +1,155 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import org.defalsified.android.badged.utils.Tracer;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Which decode attempts to spend on a frame
+ *
+ * Vouchers are QR codes only, so frames go straight to the QR reader.
+ * Attempts come in tiers, from a cheap global threshold to inverted
+ * images; the lead tier runs on every frame and the others only every
+ * few frames, or all of them after a run of misses. Tiers due on a frame
+ * go cheapest first. Each success is scored to its tier and the tier with
+ * the best recent record leads, so a cheaper tier that works again soon
+ * takes the lead back.
+ *
+ * One strategy is shared by all decoder threads, so what one learns the
+ * others use; each thread brings its own reader.
+ */
+final class DecodeStrategy {
+    private static final String TAG = "DecodeStrategy";
+    // After this many frames in a row without a code, every tier is tried
+    static final int SWEEP_AFTER_MISSES = 10;
+    // Weight kept by older successes each time a tier scores
+    private static final float DECAY = 0.75f;
+
+    private static final Map<DecodeHintType, Object> TRY_HARDER_HINTS;
+
+    static {
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        TRY_HARDER_HINTS = Collections.unmodifiableMap(hints);
+    }
+
+    /**
+     * Decode attempts, cheapest first
+     */
+    enum Tier {
+        // Global threshold, fine for a well lit code filling the box
+        FAST(2, false, false),
+        // Local thresholds, for shadows and glare
+        HYBRID(3, true, false),
+        // Finder pattern search on every row
+        TRY_HARDER(6, true, true),
+        // Light code on a dark background
+        INVERTED(8, true, false);
+
+        // A tier that does not lead runs on every this many frames
+        final int period;
+        final boolean hybrid;
+        final boolean tryHarder;
+
+        Tier(int period, boolean hybrid, boolean tryHarder) {
+            this.period = period;
+            this.hybrid = hybrid;
+            this.tryHarder = tryHarder;
+        }
+    }
+
+    private static final Tier[] TIERS = Tier.values();
+
+    private final float[] scores = new float[TIERS.length];
+    private Tier lead = Tier.FAST;
+    private int frames;
+    private int misses;
+
+    /**
+     * Try the tiers due on this frame, cheapest first
+     *
+     * @param source Luminance of the frame, or the region of it to decode
+     * @param reader Reader of the calling thread
+     * @return The decoded code, or null if none of the tiers found one
+     */
+    Result decode(LuminanceSource source, QRCodeReader reader) {
+        int frame;
+        boolean sweep;
+        Tier first;
+        synchronized (this) {
+            frame = frames++;
+            sweep = misses > 0 && misses % SWEEP_AFTER_MISSES == 0;
+            first = lead;
+        }
+
+        for (Tier tier : TIERS) {
+            if (tier == first || sweep || frame % tier.period == 0) {
+                Result result = attempt(tier, source, reader);
+                if (result != null) {
+                    scored(tier);
+                    return result;
+                }
+            }
+        }
+        synchronized (this) {
+            misses++;
+        }
+        return null;
+    }
+
+    /**
+     * The tier tried on every frame
+     */
+    synchronized Tier lead() {
+        return lead;
+    }
+
+    private static Result attempt(Tier tier, LuminanceSource source, QRCodeReader reader) {
+        LuminanceSource luminance = tier == Tier.INVERTED ? source.invert() : source;
+        Binarizer binarizer = tier.hybrid
+                ? new HybridBinarizer(luminance)
+                : new GlobalHistogramBinarizer(luminance);
+        try {
+            return reader.decode(new BinaryBitmap(binarizer),
+                    tier.tryHarder ? TRY_HARDER_HINTS : null);
+        } catch (ReaderException e) {
+            // Not found, or found but unreadable
+            return null;
+        } finally {
+            reader.reset();
+        }
+    }
+
+    private synchronized void scored(Tier tier) {
+        misses = 0;
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] *= DECAY;
+        }
+        scores[tier.ordinal()] += 1;
+
+        // Best record leads; on a tie the cheaper tier does
+        Tier best = TIERS[0];
+        for (Tier candidate : TIERS) {
+            if (scores[candidate.ordinal()] > scores[best.ordinal()]) {
+                best = candidate;
+            }
+        }
+        if (best != lead) {
+            Tracer.d(TAG, "Lead tier is now ", best);
+            lead = best;
+        }
+        Tracer.d(TAG, "Decoded by tier ", tier);
+    }
+}
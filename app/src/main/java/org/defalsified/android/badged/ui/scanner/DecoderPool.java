@@ -0,0 +1,169 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import android.util.Log;
+
+import com.google.zxing.Result;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import org.defalsified.android.badged.utils.Tracer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes camera frames on a few threads at once
+ *
+ * Each worker owns a luminance buffer and a reader, and all follow one
+ * {@link DecodeStrategy}, so every frame counts towards its schedule. A
+ * frame goes to an idle worker, which copies the region to decode so the
+ * camera can have the frame back straight away; if none is idle, or too
+ * many frames wait on an earlier slow one, the frame is dropped, as the
+ * camera would drop it for a busy analyzer. Results go through a
+ * {@link FrameMerger}, so codes come out in frame order and once each.
+ * With a single worker there is nothing to overlap, so frames are
+ * decoded on the calling thread, reading the plane in place.
+ */
+final class DecoderPool {
+    private static final String TAG = "DecoderPool";
+    static final int MAX_WORKERS = 4;
+
+    private final ExecutorService executor;
+    private final BlockingQueue<Worker> idle;
+    private final FrameMerger merger;
+    private final AnalysisScheduler scheduler;
+    private final DecodeStrategy strategy = new DecodeStrategy();
+
+    /**
+     * Workers for this device: one per core but one, left to the camera and views
+     */
+    static int defaultWorkers() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(MAX_WORKERS, cores - 1));
+    }
+
+    /**
+     * @param workers Frames decoded at once
+     * @param scheduler Told how long each decode took
+     * @param listener Told of each distinct code, on the thread that decoded it
+     */
+    DecoderPool(int workers, AnalysisScheduler scheduler, QrCodeAnalyzer.QrCodeListener listener) {
+        this.scheduler = scheduler;
+        // Room for every worker to finish one frame past a slow one
+        merger = new FrameMerger(listener, workers * 2);
+        idle = new ArrayBlockingQueue<>(workers);
+        for (int i = 0; i < workers; i++) {
+            idle.add(new Worker());
+        }
+
+        if (workers == 1) {
+            executor = null;
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "qr-decoder-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Hand a frame to an idle worker
+     *
+     * Copies the region on the calling thread, or decodes it there with a
+     * single worker, so the plane is free again when this returns.
+     *
+     * @param plane Y plane bytes from its position on
+     * @param rowStride Bytes from one row to the next
+     * @param pixelStride Bytes from one pixel to the next
+     * @param width Frame width in pixels
+     * @param height Frame height in pixels
+     * @param region Left, top, width and height of the region to decode
+     * @param timestampNanos Sensor timestamp of the frame
+     * @return False if the frame was dropped, all workers being busy
+     * @throws IllegalArgumentException If the plane does not hold the frame or region
+     */
+    boolean dispatch(ByteBuffer plane, int rowStride, int pixelStride, int width, int height,
+                     int[] region, long timestampNanos) {
+        Worker worker = idle.poll();
+        if (worker == null) {
+            return false;
+        }
+        long frame = merger.open();
+        if (frame < 0) {
+            idle.add(worker);
+            return false;
+        }
+
+        try {
+            worker.source = executor == null
+                    ? worker.buffer.wrap(plane, rowStride, pixelStride, width, height,
+                            region[0], region[1], region[2], region[3])
+                    : worker.buffer.copy(plane, rowStride, pixelStride, width, height,
+                            region[0], region[1], region[2], region[3]);
+        } catch (IllegalArgumentException e) {
+            // The slot is open, so close it before the frame is skipped
+            merger.complete(frame, timestampNanos, null);
+            idle.add(worker);
+            throw e;
+        }
+        if (executor == null) {
+            worker.decode(frame, timestampNanos);
+            return true;
+        }
+        try {
+            executor.execute(() -> worker.decode(frame, timestampNanos));
+        } catch (RejectedExecutionException e) {
+            // A last frame after shutdown
+            merger.complete(frame, timestampNanos, null);
+            idle.add(worker);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop the workers; frames being decoded are finished
+     */
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        // An idle worker's buffer is left for the next pool
+        Worker worker = idle.poll();
+        if (worker != null) {
+            worker.buffer.release();
+        }
+    }
+
+    private final class Worker {
+        final LuminanceBuffer buffer = LuminanceBuffer.acquire();
+        final QRCodeReader reader = new QRCodeReader();
+        PlaneLuminanceSource source;
+
+        void decode(long frame, long timestampNanos) {
+            boolean traced = Tracer.begin("DecoderPool.decode");
+            String text = null;
+            try {
+                long started = System.nanoTime();
+                Result result = strategy.decode(source, reader);
+                scheduler.record(System.nanoTime() - started, result);
+                if (result != null) {
+                    text = result.getText();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error decoding frame", e);
+            } finally {
+                // Always close the slot, or later frames would wait on it forever
+                merger.complete(frame, timestampNanos, text);
+                idle.add(this);
+                Tracer.end(traced);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.defalsified.android.badged.ui.scanner;
+
+/**
+ * Puts decode results from several workers back in frame order
+ *
+ * Each dispatched frame opens a numbered slot, and results are passed on
+ * in slot order once every earlier frame is done, found or not. At most
+ * {@link #capacity} frames may be open, so one slow frame holds back only
+ * a bounded number after it. A code that was just passed on is not
+ * passed on again while it stays in view, however many frames and
+ * workers see it.
+ */
+final class FrameMerger {
+    // A code seen again within this long of its last sighting is the same scan
+    static final long DUPLICATE_WINDOW_NANOS = 2_000_000_000L;
+
+    private final QrCodeAnalyzer.QrCodeListener listener;
+    private final int capacity;
+    private final String[] texts;
+    private final long[] timestamps;
+    private final boolean[] done;
+
+    // Next frame to open, and the oldest one not yet passed on
+    private long opened;
+    private long merged;
+    private String lastText;
+    private long lastSeen;
+
+    /**
+     * @param listener Told of each distinct code, in frame order, from worker threads
+     * @param capacity Frames that may be open at once
+     */
+    FrameMerger(QrCodeAnalyzer.QrCodeListener listener, int capacity) {
+        this.listener = listener;
+        this.capacity = capacity;
+        texts = new String[capacity];
+        timestamps = new long[capacity];
+        done = new boolean[capacity];
+    }
+
+    /**
+     * Open the slot for the next frame
+     *
+     * @return Its number, or -1 if too many frames are open already
+     */
+    synchronized long open() {
+        if (opened - merged >= capacity) {
+            return -1;
+        }
+        return opened++;
+    }
+
+    /**
+     * Hand in the outcome of an opened frame
+     *
+     * The listener is called with the lock held, so codes reach it in
+     * order; it should only post the code on.
+     *
+     * @param frame Number from {@link #open}
+     * @param timestampNanos Sensor timestamp of the frame
+     * @param text Decoded code, or null if none was found
+     */
+    synchronized void complete(long frame, long timestampNanos, String text) {
+        int slot = (int) (frame % capacity);
+        texts[slot] = text;
+        timestamps[slot] = timestampNanos;
+        done[slot] = true;
+
+        while (merged < opened && done[slot = (int) (merged % capacity)]) {
+            String found = texts[slot];
+            long timestamp = timestamps[slot];
+            texts[slot] = null;
+            done[slot] = false;
+            merged++;
+            if (found != null) {
+                pass(found, timestamp);
+            }
+        }
+    }
+
+    private void pass(String text, long timestampNanos) {
+        boolean repeat = text.equals(lastText)
+                && timestampNanos - lastSeen < DUPLICATE_WINDOW_NANOS;
+        lastText = text;
+        lastSeen = timestampNanos;
+        if (!repeat) {
+            listener.onQrCodeFound(text);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import org.defalsified.android.badged.utils.Spare;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable luminance of one camera frame
+ *
+ * The Y plane of a frame is wrapped in place when it is backed by an
+ * array and decoded before the frame is closed. Otherwise the region to
+ * decode is copied into an array kept between frames, dropping any row
+ * padding on the way. Each decoder worker holds a buffer for as long as
+ * the pool runs; an idle one is kept as the {@link Spare} when the pool
+ * shuts down, so the scanner opening again starts with a grown array.
+ */
+final class LuminanceBuffer {
+    private static final Spare<LuminanceBuffer> spare = new Spare<>();
+
+    private static final int SOURCES = 4;
+
+    private byte[] luminance = new byte[0];
+    private final PlaneLuminanceSource[] sources = new PlaneLuminanceSource[SOURCES];
+    private int nextSource;
+
+    private LuminanceBuffer() {}
+
+    /**
+     * Buffer for a new decoder worker, the one left by the last pool if any
+     */
+    static LuminanceBuffer acquire() {
+        LuminanceBuffer buffer = spare.take();
+        return buffer != null ? buffer : new LuminanceBuffer();
+    }
+
+    /**
+     * Leave the buffer to the next pool; its sources must no longer be decoded
+     */
+    void release() {
+        spare.put(this);
+    }
+
+    /**
+     * Luminance source over a whole Y plane, valid until the next call
+     *
+     * @see #wrap(ByteBuffer, int, int, int, int, int, int, int, int)
+     */
+    PlaneLuminanceSource wrap(ByteBuffer plane, int rowStride, int pixelStride,
+                              int width, int height) {
+        return wrap(plane, rowStride, pixelStride, width, height, 0, 0, width, height);
+    }
+
+    /**
+     * Luminance source over a region of a Y plane, valid until the next call
+     *
+     * @param plane Plane bytes from its position on, which is left unchanged
+     * @param rowStride Bytes from one row to the next
+     * @param pixelStride Bytes from one pixel to the next, 1 for a Y plane
+     * @param width Frame width in pixels
+     * @param height Frame height in pixels
+     * @param left Left edge of the region
+     * @param top Top edge of the region
+     * @param regionWidth Width of the region
+     * @param regionHeight Height of the region
+     * @throws IllegalArgumentException If the plane is too small for the frame,
+     *                                  or the region not inside it
+     */
+    PlaneLuminanceSource wrap(ByteBuffer plane, int rowStride, int pixelStride,
+                              int width, int height,
+                              int left, int top, int regionWidth, int regionHeight) {
+        return load(plane, rowStride, pixelStride, width, height,
+                left, top, regionWidth, regionHeight, true);
+    }
+
+    /**
+     * Copy of a region of a Y plane, valid until the next call
+     *
+     * Unlike {@link #wrap}, never refers to the plane itself, so the frame
+     * can be closed while the copy is decoded.
+     *
+     * @see #wrap(ByteBuffer, int, int, int, int, int, int, int, int)
+     */
+    PlaneLuminanceSource copy(ByteBuffer plane, int rowStride, int pixelStride,
+                              int width, int height,
+                              int left, int top, int regionWidth, int regionHeight) {
+        return load(plane, rowStride, pixelStride, width, height,
+                left, top, regionWidth, regionHeight, false);
+    }
+
+    private PlaneLuminanceSource load(ByteBuffer plane, int rowStride, int pixelStride,
+                                      int width, int height,
+                                      int left, int top, int regionWidth, int regionHeight,
+                                      boolean inPlace) {
+        // The last row need not be padded out to the stride
+        long needed = (long) (height - 1) * rowStride + (long) (width - 1) * pixelStride + 1;
+        if (width <= 0 || height <= 0 || rowStride < width * pixelStride
+                || needed > plane.remaining()) {
+            throw new IllegalArgumentException("Plane of " + plane.remaining()
+                    + " bytes does not hold a " + width + "x" + height + " frame");
+        }
+        if (left < 0 || top < 0 || regionWidth <= 0 || regionHeight <= 0
+                || left + regionWidth > width || top + regionHeight > height) {
+            throw new IllegalArgumentException("Region " + regionWidth + "x" + regionHeight
+                    + " at " + left + "," + top + " is outside the frame");
+        }
+
+        int start = plane.position() + top * rowStride + left * pixelStride;
+        if (inPlace && pixelStride == 1 && plane.hasArray()) {
+            return source(plane.array(), plane.arrayOffset() + start, rowStride,
+                    regionWidth, regionHeight);
+        }
+
+        // Only the region is copied; the array grows to the largest one seen
+        int area = regionWidth * regionHeight;
+        if (luminance.length < area) {
+            luminance = new byte[area];
+        }
+        int position = plane.position();
+        try {
+            if (pixelStride != 1) {
+                for (int y = 0; y < regionHeight; y++) {
+                    for (int x = 0; x < regionWidth; x++) {
+                        luminance[y * regionWidth + x] =
+                                plane.get(start + y * rowStride + x * pixelStride);
+                    }
+                }
+            } else if (rowStride == regionWidth) {
+                plane.position(start);
+                plane.get(luminance, 0, area);
+            } else {
+                for (int y = 0; y < regionHeight; y++) {
+                    plane.position(start + y * rowStride);
+                    plane.get(luminance, y * regionWidth, regionWidth);
+                }
+            }
+        } finally {
+            plane.position(position);
+        }
+        return source(luminance, 0, regionWidth, regionWidth, regionHeight);
+    }
+
+    // Sources are kept by size, as the region changes from frame to frame
+    private PlaneLuminanceSource source(byte[] data, int offset, int rowStride,
+                                        int width, int height) {
+        for (PlaneLuminanceSource source : sources) {
+            if (source != null && source.getWidth() == width && source.getHeight() == height) {
+                source.reset(data, offset, rowStride);
+                return source;
+            }
+        }
+        PlaneLuminanceSource source = new PlaneLuminanceSource(data, offset, rowStride,
+                0, 0, width, height);
+        sources[nextSource] = source;
+        nextSource = (nextSource + 1) % sources.length;
+        return source;
+    }
+}
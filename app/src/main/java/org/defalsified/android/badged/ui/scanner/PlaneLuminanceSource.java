@@ -0,0 +1,101 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * Luminance of a camera Y plane, read in place
+ *
+ * Unlike {@code PlanarYUVLuminanceSource}, rows may be padded: row y
+ * starts at {@code offset + y * rowStride}, so the plane is used as the
+ * camera delivered it. The source is reset for each frame of the same
+ * size, and a cropped matrix is copied into an array kept between frames,
+ * so steady state decoding allocates nothing here.
+ */
+final class PlaneLuminanceSource extends LuminanceSource {
+    private final int left;
+    private final int top;
+
+    private byte[] data;
+    private int offset;
+    private int rowStride;
+    // Reused for getMatrix when the luminance is not one packed array
+    private byte[] matrix;
+
+    /**
+     * @param data Plane bytes, one byte per pixel
+     * @param offset Index of the first pixel of the first row
+     * @param rowStride Bytes from one row to the next, at least the full width
+     * @param left Left edge of the area to read
+     * @param top Top edge of the area to read
+     * @param width Width of the area to read
+     * @param height Height of the area to read
+     */
+    PlaneLuminanceSource(byte[] data, int offset, int rowStride,
+                         int left, int top, int width, int height) {
+        super(width, height);
+        this.left = left;
+        this.top = top;
+        reset(data, offset, rowStride);
+    }
+
+    /**
+     * Point the source at the next frame, of the same size
+     */
+    void reset(byte[] data, int offset, int rowStride) {
+        this.data = data;
+        this.offset = offset;
+        this.rowStride = rowStride;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        System.arraycopy(data, start(y), row, 0, width);
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        int area = width * height;
+
+        // Already packed from the start; zxing allows a longer array
+        if (offset == 0 && left == 0 && top == 0 && rowStride == width) {
+            return data;
+        }
+
+        if (matrix == null || matrix.length != area) {
+            matrix = new byte[area];
+        }
+        if (rowStride == width) {
+            System.arraycopy(data, start(0), matrix, 0, area);
+        } else {
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(data, start(y), matrix, y * width, width);
+            }
+        }
+        return matrix;
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int cropLeft, int cropTop, int width, int height) {
+        return new PlaneLuminanceSource(data, offset, rowStride,
+                left + cropLeft, top + cropTop, width, height);
+    }
+
+    private int start(int y) {
+        return offset + (top + y) * rowStride + left;
+    }
+}
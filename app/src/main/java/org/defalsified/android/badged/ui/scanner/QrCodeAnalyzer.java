@@ -1,80 +1,100 @@
 package org.defalsified.android.badged.ui.scanner;
 
+import android.graphics.Rect;
+import android.util.Log;
+
 import androidx.annotation.NonNull;
 import androidx.camera.core.ImageAnalysis;
 import androidx.camera.core.ImageProxy;
 
-import com.google.zxing.BinaryBitmap;
-import com.google.zxing.MultiFormatReader;
-import com.google.zxing.NotFoundException;
-import com.google.zxing.PlanarYUVLuminanceSource;
-import com.google.zxing.Result;
-import com.google.zxing.common.HybridBinarizer;
-
-import java.nio.ByteBuffer;
+import org.defalsified.android.badged.utils.Tracer;
 
 /**
  * Image analyzer that detects and decodes QR codes from camera frames
  * visit this page to learn about the zxing lib; https://www.geeksforgeeks.org/how-to-generate-and-read-qr-code-with-java-using-zxing-library/
  */
 public class QrCodeAnalyzer implements ImageAnalysis.Analyzer {
+    private static final String TAG = "QrCodeAnalyzer";
+    // Room around the scan box, as a fraction of its size
+    private static final float BOX_MARGIN = 0.1f;
+    private static final float WIDE_MARGIN = 0.5f;
+    // Every 4th frame looks around the box, every 12th at the whole view
+    private static final int WIDEN_EVERY = 4;
+    private static final int FULL_EVERY = 12;
 
     // Interface for QR code result callback
     public interface QrCodeListener {
         void onQrCodeFound(String qrContent);
     }
 
-    private final QrCodeListener listener;
-    private final MultiFormatReader multiFormatReader;
+    private final DecoderPool decoders;
+    private final AnalysisScheduler scheduler;
+    private volatile ScanBox scanBox;
+    private final int[] region = new int[4];
+    private int frames;
 
     /**
      * Constructor
      *
-     * @param listener Callback for QR code detection
+     * @param decoders Workers the frames are decoded on, which tell of the codes found
+     * @param scheduler Frame skipping and resolution, kept across camera restarts
+     */
+    QrCodeAnalyzer(DecoderPool decoders, AnalysisScheduler scheduler) {
+        this.decoders = decoders;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Decode only under this box from now on, or the whole frame if null
      */
-    public QrCodeAnalyzer(QrCodeListener listener) {
-        this.listener = listener;
-        multiFormatReader = new MultiFormatReader();
+    void setScanBox(ScanBox box) {
+        scanBox = box;
     }
 
     @Override
     public void analyze(@NonNull ImageProxy image) {
-        // Get the image data
-        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-        byte[] data = new byte[buffer.remaining()];
-        buffer.get(data);
-
-        // Get image dimensions
-        int width = image.getWidth();
-        int height = image.getHeight();
-
-        // Create luminance source
-        PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(
-                data,
-                width,
-                height,
-                0,
-                0,
-                width,
-                height,
-                false
-        );
-
-        // Create binary bitmap
-        BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+        // Drop frames beyond the CPU budget before touching them
+        if (!scheduler.shouldAnalyze(image.getImageInfo().getTimestamp())) {
+            image.close();
+            return;
+        }
+        boolean traced = Tracer.begin("QrCodeAnalyzer.analyze");
 
+        ImageProxy.PlaneProxy plane = image.getPlanes()[0];
         try {
-            // Try to decode QR code
-            Result result = multiFormatReader.decode(bitmap);
-            if (result != null) {
-                // QR code found, notify listener
-                listener.onQrCodeFound(result.getText());
+            selectRegion(image);
+            // The region is copied out, so the camera has the frame back
+            // while a worker decodes it
+            if (!decoders.dispatch(plane.getBuffer(), plane.getRowStride(),
+                    plane.getPixelStride(), image.getWidth(), image.getHeight(),
+                    region, image.getImageInfo().getTimestamp())) {
+                Tracer.d(TAG, "All decoders busy, dropped frame");
             }
-        } catch (NotFoundException e) {
-            // No QR code found, that's OK
+        } catch (IllegalArgumentException e) {
+            // Truncated plane or a crop outside it, skip the frame
+            Log.w(TAG, "Skipping frame", e);
         } finally {
             //  close the image
             image.close();
+            Tracer.end(traced);
+        }
+    }
+
+    // The scan box on most frames, more of the view on a schedule
+    private void selectRegion(ImageProxy image) {
+        Rect crop = image.getCropRect();
+        int frame = frames++;
+        ScanBox box = scanBox;
+        if (box != null && frame % FULL_EVERY != FULL_EVERY - 1) {
+            float margin = frame % WIDEN_EVERY == WIDEN_EVERY - 1 ? WIDE_MARGIN : BOX_MARGIN;
+            if (box.map(crop.left, crop.top, crop.width(), crop.height(),
+                    image.getImageInfo().getRotationDegrees(), margin, region)) {
+                return;
+            }
         }
+        region[0] = crop.left;
+        region[1] = crop.top;
+        region[2] = crop.width();
+        region[3] = crop.height();
     }
-}
\ No newline at end of file
+}
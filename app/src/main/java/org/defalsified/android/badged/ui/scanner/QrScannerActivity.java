@@ -3,11 +3,13 @@ package org.defalsified.android.badged.ui.scanner;
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Base64;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Size;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
@@ -18,6 +20,8 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.camera.core.CameraSelector;
 import androidx.camera.core.ImageAnalysis;
 import androidx.camera.core.Preview;
+import androidx.camera.core.UseCaseGroup;
+import androidx.camera.core.ViewPort;
 import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.camera.view.PreviewView;
 import androidx.core.app.ActivityCompat;
@@ -27,8 +31,10 @@ import com.google.common.util.concurrent.ListenableFuture;
 
 import org.defalsified.android.badged.R;
 import org.defalsified.android.badged.models.Badge;
+import org.defalsified.android.badged.services.BadgeReverifier;
 import org.defalsified.android.badged.services.BadgeService;
 import org.defalsified.android.badged.services.Cert;
+import org.defalsified.android.badged.services.CertificateService;
 import org.defalsified.android.badged.ui.badges.BadgeDetailActivity;
 import org.defalsified.android.badged.ui.badges.BadgeGalleryActivity;
 import org.defalsified.android.badged.utils.QrCodeParser;
@@ -44,9 +50,11 @@ public class QrScannerActivity extends AppCompatActivity {
     private static final String TAG = "QrScannerActivity";
     private static final int REQUEST_CAMERA_PERMISSION = 10;
     private static final long SCANNING_COOLDOWN_MS = 2000; // 2s cooldown between scans
+    private static final long DUPLICATE_WINDOW_MS = 10000; // same voucher again after 10s
 
     // UI Components
     private PreviewView previewView;
+    private View scanOverlay;
     private TextView statusTextView;
     private Button galleryButton;
     private View loadingView;
@@ -54,15 +62,18 @@ public class QrScannerActivity extends AppCompatActivity {
     // Camera and analysis
     private ExecutorService cameraExecutor;
     private QrCodeAnalyzer qrCodeAnalyzer;
+    private DecoderPool decoderPool;
+    private AnalysisScheduler analysisScheduler;
     private ProcessCameraProvider cameraProvider;
+    private ScanBox scanBox;
 
     // Services
     private BadgeService badgeService;
-    private Cert certHandler;
+    private CertificateService certificateService;
 
-    // Processing state
-    private boolean isProcessing = false;
-    private long lastProcessingTime = 0;
+    // Processing state, offered codes from decoder threads
+    private final ScanAdmission scanAdmission =
+            new ScanAdmission(SCANNING_COOLDOWN_MS, DUPLICATE_WINDOW_MS);
     private Handler mainHandler;
 
     @Override
@@ -72,14 +83,18 @@ public class QrScannerActivity extends AppCompatActivity {
 
         // Init services
         badgeService = new BadgeService(this);
-        certHandler = new Cert();
+        certificateService = new CertificateService();
         mainHandler = new Handler(Looper.getMainLooper());
 
         // Setup UI
         initializeViews();
 
-        // Setup camera executor
+        // Setup camera executor, which takes frames in and hands them to the decoders
         cameraExecutor = Executors.newSingleThreadExecutor();
+        analysisScheduler = new AnalysisScheduler(
+                level -> mainHandler.post(this::onAnalysisResolutionChanged));
+        decoderPool = new DecoderPool(DecoderPool.defaultWorkers(), analysisScheduler,
+                this::onQrCodeFound);
 
         // Request camera permission if needed
         if (hasCameraPermission()) {
@@ -92,12 +107,30 @@ public class QrScannerActivity extends AppCompatActivity {
     // Init UI components
     private void initializeViews() {
         previewView = findViewById(R.id.preview_view);
+        scanOverlay = findViewById(R.id.scan_overlay);
         statusTextView = findViewById(R.id.status_text);
         galleryButton = findViewById(R.id.gallery_button);
         loadingView = findViewById(R.id.loading_view);
 
         galleryButton.setOnClickListener(v -> openBadgeGallery());
         updateStatusText(R.string.scanner_ready);
+
+        // Decode where the box is drawn, wherever layout puts it
+        View.OnLayoutChangeListener layoutListener =
+                (v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> updateScanBox();
+        previewView.addOnLayoutChangeListener(layoutListener);
+        scanOverlay.addOnLayoutChangeListener(layoutListener);
+    }
+
+    // Scan box relative to the preview, handed to the analyzer
+    private void updateScanBox() {
+        int left = scanOverlay.getLeft() - previewView.getLeft();
+        int top = scanOverlay.getTop() - previewView.getTop();
+        scanBox = ScanBox.of(previewView.getWidth(), previewView.getHeight(),
+                left, top, left + scanOverlay.getWidth(), top + scanOverlay.getHeight());
+        if (qrCodeAnalyzer != null) {
+            qrCodeAnalyzer.setScanBox(scanBox);
+        }
     }
 
     // Update status with resource ID
@@ -152,16 +185,14 @@ public class QrScannerActivity extends AppCompatActivity {
 
                 // Setup QR code analysis
                 ImageAnalysis imageAnalysis = new ImageAnalysis.Builder()
+                        .setTargetResolution(analysisSize())
                         .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
                         .build();
 
-                //  QR analyzer with cooldown
-                qrCodeAnalyzer = new QrCodeAnalyzer(qrContent -> {
-                    // Only process if not busy and after cooldown
-                    if (!isProcessing && System.currentTimeMillis() > lastProcessingTime + SCANNING_COOLDOWN_MS) {
-                        mainHandler.post(() -> processQrContent(qrContent));
-                    }
-                });
+                //  QR analyzer, decoding on the pool
+                qrCodeAnalyzer = new QrCodeAnalyzer(decoderPool, analysisScheduler);
+
+                qrCodeAnalyzer.setScanBox(scanBox);
 
                 imageAnalysis.setAnalyzer(cameraExecutor, qrCodeAnalyzer);
 
@@ -173,8 +204,19 @@ public class QrScannerActivity extends AppCompatActivity {
                 // Unbind existing use cases
                 cameraProvider.unbindAll();
 
-                // Bind use cases to camera
-                cameraProvider.bindToLifecycle(this, cameraSelector, preview, imageAnalysis);
+                // Bind use cases to camera, cropping analysis frames to what the
+                // preview shows once it is laid out, so the scan box maps exactly
+                ViewPort viewPort = previewView.getViewPort();
+                if (viewPort != null) {
+                    UseCaseGroup useCases = new UseCaseGroup.Builder()
+                            .addUseCase(preview)
+                            .addUseCase(imageAnalysis)
+                            .setViewPort(viewPort)
+                            .build();
+                    cameraProvider.bindToLifecycle(this, cameraSelector, useCases);
+                } else {
+                    cameraProvider.bindToLifecycle(this, cameraSelector, preview, imageAnalysis);
+                }
 
             } catch (ExecutionException | InterruptedException e) {
                 Toast.makeText(this, "Error starting camera: " + e.getMessage(),
@@ -183,6 +225,31 @@ public class QrScannerActivity extends AppCompatActivity {
         }, ContextCompat.getMainExecutor(this));
     }
 
+    // Decoded QR code, on a decoder thread
+    private void onQrCodeFound(String qrContent) {
+        // Only post if this code starts a scan: not busy, cooled down, not a repeat
+        if (scanAdmission.admit(qrContent, SystemClock.elapsedRealtime())) {
+            mainHandler.post(() -> processQrContent(qrContent));
+        }
+    }
+
+    // Analysis resolution picked by the scheduler, in the screen's orientation
+    private Size analysisSize() {
+        int[] resolution = AnalysisScheduler.RESOLUTIONS[analysisScheduler.level()];
+        boolean portrait = getResources().getConfiguration().orientation
+                == Configuration.ORIENTATION_PORTRAIT;
+        return portrait
+                ? new Size(resolution[1], resolution[0])
+                : new Size(resolution[0], resolution[1]);
+    }
+
+    // Rebind at the new resolution, unless a scan holds the camera
+    private void onAnalysisResolutionChanged() {
+        if (!scanAdmission.isBusy() && cameraProvider != null) {
+            startCamera();
+        }
+    }
+
     // Pause camera during processing
     private void pauseCameraScanning() {
         if (cameraProvider != null) {
@@ -195,12 +262,8 @@ public class QrScannerActivity extends AppCompatActivity {
         startCamera();
     }
 
-    // Process scanned QR content
+    // Process scanned QR content, admitted and so verifying
     private void processQrContent(String qrContent) {
-        // Set processing state
-        isProcessing = true;
-        lastProcessingTime = System.currentTimeMillis();
-
         // Pause camera during processing
         pauseCameraScanning();
 
@@ -214,12 +277,8 @@ public class QrScannerActivity extends AppCompatActivity {
             Cert.CertificateResult result = null;
 
             try {
-                // Decode base64
-                byte[] decodedBytes = Base64.decode(qrContent, Base64.DEFAULT);
-                Log.d(TAG, "Decoded QR Content (Hex): " + bytesToHex(decodedBytes));
-
-                // Process certificate
-                result = certHandler.processAndCleanup(decodedBytes);
+                // Decode and verify the certificate
+                result = certificateService.processScannedCertificate(qrContent);
 
                 if (!result.success) {
                     String errorMessage = result.error != null ? result.error : "Certificate processing failed";
@@ -229,6 +288,7 @@ public class QrScannerActivity extends AppCompatActivity {
                     });
                     return;
                 }
+                scanAdmission.verified();
 
                 try {
                     // Parse JSON
@@ -324,7 +384,7 @@ public class QrScannerActivity extends AppCompatActivity {
     // Reset processing state
     private void finishProcessing() {
         showLoading(false);
-        isProcessing = false;
+        scanAdmission.finish(SystemClock.elapsedRealtime());
         updateStatusText(R.string.scanner_ready);
 
         // Resume camera after delay
@@ -351,15 +411,6 @@ public class QrScannerActivity extends AppCompatActivity {
         startActivity(intent);
     }
 
-    // Convert bytes to hex for logging
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02X ", b));
-        }
-        return sb.toString();
-    }
-
     @Override
     protected void onPause() {
         super.onPause();
@@ -367,14 +418,16 @@ public class QrScannerActivity extends AppCompatActivity {
         if (cameraProvider != null) {
             cameraProvider.unbindAll();
         }
+        BadgeReverifier.open(this).resume();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        // Reset state on resume
-        isProcessing = false;
-        if (hasCameraPermission()) {
+        // Keep background re-verification out of the way of live scans
+        BadgeReverifier.open(this).pause();
+        // A scan still in progress resumes the camera when it finishes
+        if (hasCameraPermission() && !scanAdmission.isBusy()) {
             resumeCameraScanning();
         }
     }
@@ -383,9 +436,11 @@ public class QrScannerActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         // Clean up resources
-        certHandler.cleanupJNI();
         if (cameraExecutor != null) {
             cameraExecutor.shutdown();
         }
+        if (decoderPool != null) {
+            decoderPool.shutdown();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decides which decoded codes start a redemption
+ *
+ * A scan moves through {@link State#IDLE}, {@link State#VERIFYING},
+ * {@link State#PERSISTING} and {@link State#COOLDOWN}, and a code is only
+ * admitted when idle, or once the cooldown has run out. The same content,
+ * compared by hash, is not admitted again within the duplicate window of
+ * its last admission, so a voucher left in front of the camera is
+ * redeemed once. State changes are compare-and-set on one reference, so
+ * decoder threads may offer codes while the main thread moves the scan
+ * on, and exactly one of several racing offers wins.
+ */
+final class ScanAdmission {
+
+    /**
+     * Where the scan pipeline is
+     */
+    enum State {
+        // Waiting for a code
+        IDLE,
+        // Certificate being checked
+        VERIFYING,
+        // Badge being saved
+        PERSISTING,
+        // Just finished; codes are ignored until the cooldown runs out
+        COOLDOWN
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // Nothing admitted yet
+    private static final Snapshot INITIAL = new Snapshot(State.IDLE, 0, 0, 0);
+
+    private final long cooldownMillis;
+    private final long duplicateWindowMillis;
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(INITIAL);
+
+    /**
+     * @param cooldownMillis Time after a scan finishes before the next is admitted
+     * @param duplicateWindowMillis Time after admitting content before it is admitted again
+     */
+    ScanAdmission(long cooldownMillis, long duplicateWindowMillis) {
+        this.cooldownMillis = cooldownMillis;
+        this.duplicateWindowMillis = duplicateWindowMillis;
+    }
+
+    /**
+     * Offer a decoded code, from any thread
+     *
+     * @param content Decoded text
+     * @param nowMillis Current time on a monotonic clock
+     * @return True if this call started a scan, now {@link State#VERIFYING}
+     */
+    boolean admit(String content, long nowMillis) {
+        long hash = hash(content);
+        while (true) {
+            Snapshot snapshot = current.get();
+            if (snapshot.state(nowMillis) != State.IDLE) {
+                return false;
+            }
+            if (snapshot != INITIAL && hash == snapshot.hash
+                    && nowMillis - snapshot.admittedAt < duplicateWindowMillis) {
+                return false;
+            }
+            Snapshot admitted = new Snapshot(State.VERIFYING, hash, nowMillis, 0);
+            if (current.compareAndSet(snapshot, admitted)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The certificate checked out; the badge is being saved
+     *
+     * @return False if the scan was not verifying
+     */
+    boolean verified() {
+        while (true) {
+            Snapshot snapshot = current.get();
+            if (snapshot.state != State.VERIFYING) {
+                return false;
+            }
+            if (current.compareAndSet(snapshot, snapshot.with(State.PERSISTING, 0))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The scan ended, redeemed or not; cool down before the next
+     *
+     * @param nowMillis Current time on the clock given to {@link #admit}
+     */
+    void finish(long nowMillis) {
+        while (true) {
+            Snapshot snapshot = current.get();
+            if (snapshot.state != State.VERIFYING && snapshot.state != State.PERSISTING) {
+                return;
+            }
+            Snapshot cooling = snapshot.with(State.COOLDOWN, nowMillis + cooldownMillis);
+            if (current.compareAndSet(snapshot, cooling)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Where the scan is now
+     */
+    State state(long nowMillis) {
+        return current.get().state(nowMillis);
+    }
+
+    /**
+     * Whether a scan is verifying or persisting
+     */
+    boolean isBusy() {
+        State state = current.get().state;
+        return state == State.VERIFYING || state == State.PERSISTING;
+    }
+
+    // 64-bit FNV-1a over the characters, cheap and allocation free
+    static long hash(String content) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static final class Snapshot {
+        final State state;
+        final long hash;
+        final long admittedAt;
+        final long cooldownUntil;
+
+        Snapshot(State state, long hash, long admittedAt, long cooldownUntil) {
+            this.state = state;
+            this.hash = hash;
+            this.admittedAt = admittedAt;
+            this.cooldownUntil = cooldownUntil;
+        }
+
+        // A cooldown that has run out is idle
+        State state(long nowMillis) {
+            return state == State.COOLDOWN && nowMillis >= cooldownUntil ? State.IDLE : state;
+        }
+
+        Snapshot with(State newState, long newCooldownUntil) {
+            return new Snapshot(newState, hash, admittedAt, newCooldownUntil);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.defalsified.android.badged.ui.scanner;
+
+/**
+ * The on-screen scan box, mapped into camera frames
+ *
+ * Holds the box in the pixels of the preview view it is drawn over. For
+ * each frame it works out where the box falls in the image buffer: the
+ * visible part of the frame is scaled to fill the view and centered, as
+ * {@code PreviewView} shows it by default, and the buffer is in sensor
+ * orientation, rotated from what the user sees by the frame's rotation.
+ * Immutable, so a new box can be handed to the analysis thread as is.
+ */
+final class ScanBox {
+    private final int viewWidth;
+    private final int viewHeight;
+    private final int left;
+    private final int top;
+    private final int right;
+    private final int bottom;
+
+    /**
+     * @param viewWidth Width of the preview view
+     * @param viewHeight Height of the preview view
+     * @param left Left edge of the box, relative to the view
+     * @param top Top edge of the box, relative to the view
+     * @param right Right edge of the box, relative to the view
+     * @param bottom Bottom edge of the box, relative to the view
+     * @return The box, or null if the view or the box has no area
+     */
+    static ScanBox of(int viewWidth, int viewHeight, int left, int top, int right, int bottom) {
+        if (viewWidth <= 0 || viewHeight <= 0 || right <= left || bottom <= top) {
+            return null;
+        }
+        return new ScanBox(viewWidth, viewHeight, left, top, right, bottom);
+    }
+
+    private ScanBox(int viewWidth, int viewHeight, int left, int top, int right, int bottom) {
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    /**
+     * Region of a frame buffer under the box
+     *
+     * @param cropLeft Left edge of the visible part of the buffer
+     * @param cropTop Top edge of the visible part of the buffer
+     * @param cropWidth Width of the visible part of the buffer
+     * @param cropHeight Height of the visible part of the buffer
+     * @param rotationDegrees Clockwise rotation that turns the buffer upright
+     * @param margin Extra room on each side, as a fraction of the box size
+     * @param region Receives left, top, width and height in the buffer
+     * @return False if the box lies outside the visible part of the frame
+     */
+    boolean map(int cropLeft, int cropTop, int cropWidth, int cropHeight,
+                int rotationDegrees, float margin, int[] region) {
+        boolean sideways = rotationDegrees % 180 != 0;
+        float uprightWidth = sideways ? cropHeight : cropWidth;
+        float uprightHeight = sideways ? cropWidth : cropHeight;
+
+        // Frame pixels per view pixel, filling the view and centered
+        float scale = Math.min(uprightWidth / viewWidth, uprightHeight / viewHeight);
+        float offsetX = (uprightWidth - viewWidth * scale) / 2;
+        float offsetY = (uprightHeight - viewHeight * scale) / 2;
+
+        float marginX = (right - left) * margin;
+        float marginY = (bottom - top) * margin;
+        float uprightLeft = clamp(offsetX + (left - marginX) * scale, uprightWidth);
+        float uprightTop = clamp(offsetY + (top - marginY) * scale, uprightHeight);
+        float uprightRight = clamp(offsetX + (right + marginX) * scale, uprightWidth);
+        float uprightBottom = clamp(offsetY + (bottom + marginY) * scale, uprightHeight);
+
+        // Undo the rotation, back into buffer orientation
+        float l, t, r, b;
+        switch ((rotationDegrees % 360 + 360) % 360) {
+            case 90:
+                l = uprightTop;
+                t = cropHeight - uprightRight;
+                r = uprightBottom;
+                b = cropHeight - uprightLeft;
+                break;
+            case 180:
+                l = cropWidth - uprightRight;
+                t = cropHeight - uprightBottom;
+                r = cropWidth - uprightLeft;
+                b = cropHeight - uprightTop;
+                break;
+            case 270:
+                l = cropWidth - uprightBottom;
+                t = uprightLeft;
+                r = cropWidth - uprightTop;
+                b = uprightRight;
+                break;
+            default:
+                l = uprightLeft;
+                t = uprightTop;
+                r = uprightRight;
+                b = uprightBottom;
+                break;
+        }
+
+        // Round outwards, so the box is never cut short
+        int regionLeft = (int) Math.floor(l);
+        int regionTop = (int) Math.floor(t);
+        int regionWidth = Math.min((int) Math.ceil(r), cropWidth) - regionLeft;
+        int regionHeight = Math.min((int) Math.ceil(b), cropHeight) - regionTop;
+        if (regionWidth <= 0 || regionHeight <= 0) {
+            return false;
+        }
+        region[0] = cropLeft + regionLeft;
+        region[1] = cropTop + regionTop;
+        region[2] = regionWidth;
+        region[3] = regionHeight;
+        return true;
+    }
+
+    private static float clamp(float value, float limit) {
+        return Math.max(0, Math.min(value, limit));
+    }
+}
@@ -54,6 +54,51 @@ public class PrefsManager {
         preferences.edit().putString(key, value).apply();
     }
 
+    /**
+     * Save a string value and wait until it is written to disk
+     *
+     * @param key Key for the preference
+     * @param value String value to save
+     * @return true if the value was written
+     */
+    public boolean commitString(String key, String value) {
+        return preferences.edit().putString(key, value).commit();
+    }
+
+    /**
+     * Save a boolean value and wait until it is written to disk
+     *
+     * @param key Key for the preference
+     * @param value Boolean value to save
+     * @return true if the value was written
+     */
+    public boolean commitBoolean(String key, boolean value) {
+        return preferences.edit().putBoolean(key, value).commit();
+    }
+
+    /**
+     * Start a batch of changes that are written together
+     *
+     * Each setX call above writes the preferences file on its own; a batch
+     * collects several values and writes the file once.
+     *
+     * @return Batch to fill and then apply or commit
+     */
+    public Batch edit() {
+        return new Batch(preferences.edit());
+    }
+
+    /**
+     * Get a long value from SharedPreferences
+     *
+     * @param key Key for the preference
+     * @param defaultValue Default value to return if preference does not exist
+     * @return The stored long value or defaultValue
+     */
+    public long getLong(String key, long defaultValue) {
+        return preferences.getLong(key, defaultValue);
+    }
+
     /**
      * Get a string value from SharedPreferences
      *
@@ -64,4 +109,46 @@ public class PrefsManager {
     public String getString(String key, String defaultValue) {
         return preferences.getString(key, defaultValue);
     }
-}
\ No newline at end of file
+
+    /**
+     * Several preference changes written in one go
+     */
+    public static class Batch {
+        private final SharedPreferences.Editor editor;
+
+        private Batch(SharedPreferences.Editor editor) {
+            this.editor = editor;
+        }
+
+        public Batch setBoolean(String key, boolean value) {
+            editor.putBoolean(key, value);
+            return this;
+        }
+
+        public Batch setString(String key, String value) {
+            editor.putString(key, value);
+            return this;
+        }
+
+        public Batch setLong(String key, long value) {
+            editor.putLong(key, value);
+            return this;
+        }
+
+        /**
+         * Write the batch in the background
+         */
+        public void apply() {
+            editor.apply();
+        }
+
+        /**
+         * Write the batch and wait until it is on disk
+         *
+         * @return true if the batch was written
+         */
+        public boolean commit() {
+            return editor.commit();
+        }
+    }
+}
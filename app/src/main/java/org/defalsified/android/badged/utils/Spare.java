@@ -0,0 +1,32 @@
+package org.defalsified.android.badged.utils;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * At most one idle object kept for reuse
+ *
+ * For buffers that are costly to build and used by one thread at a time.
+ * Whoever takes the spare owns it; when it is taken already a new object
+ * is made, and of several put back only the last is kept.
+ *
+ * @param <T> Type of the kept object
+ */
+public final class Spare<T> {
+    private final AtomicReference<T> spare = new AtomicReference<>();
+
+    /**
+     * Take the spare object, leaving none
+     *
+     * @return The spare, or null if there is none
+     */
+    public T take() {
+        return spare.getAndSet(null);
+    }
+
+    /**
+     * Keep an object no longer used as the spare, replacing any other
+     */
+    public void put(T value) {
+        spare.set(value);
+    }
+}
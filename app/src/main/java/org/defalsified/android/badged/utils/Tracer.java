@@ -0,0 +1,155 @@
+package org.defalsified.android.badged.utils;
+
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Leveled logging and trace sections for hot paths
+ *
+ * A disabled call is one volatile read and a compare: messages are
+ * passed as a constant plus separate values, and only concatenated once
+ * the level is known to be enabled, so nothing is formatted or allocated
+ * otherwise. Trace sections show up in system traces when tracing is on.
+ *
+ * Native code keeps its own copy of the settings, pushed through a
+ * {@link Listener}; its debug logging is also compiled out of release builds.
+ */
+public final class Tracer {
+    // Levels, as in android.util.Log
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int NONE = Integer.MAX_VALUE;
+
+    /**
+     * Told about every change of the settings
+     */
+    public interface Listener {
+        void onTracerChanged(int level, boolean tracing);
+    }
+
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private static volatile int level = WARN;
+    private static volatile boolean tracing;
+
+    private Tracer() {}
+
+    /**
+     * Set the lowest level that is logged
+     */
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+        notifyListeners();
+    }
+
+    /**
+     * Turn trace sections on or off
+     */
+    public static void setTracing(boolean enabled) {
+        tracing = enabled;
+        notifyListeners();
+    }
+
+    /**
+     * Register a listener, told the current settings right away
+     */
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+        listener.onTracerChanged(level, tracing);
+    }
+
+    public static boolean isLoggable(int atLevel) {
+        return atLevel >= level;
+    }
+
+    public static boolean isTracing() {
+        return tracing;
+    }
+
+    public static void d(String tag, String message) {
+        if (DEBUG >= level) {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void d(String tag, String message, long value) {
+        if (DEBUG >= level) {
+            Log.d(tag, message + value);
+        }
+    }
+
+    public static void d(String tag, String message, Object value) {
+        if (DEBUG >= level) {
+            Log.d(tag, message + value);
+        }
+    }
+
+    /**
+     * Log bytes as hex, only converted when debug logging is on
+     */
+    public static void dHex(String tag, String message, byte[] bytes) {
+        if (DEBUG >= level) {
+            Log.d(tag, message + toHex(bytes));
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (INFO >= level) {
+            Log.i(tag, message);
+        }
+    }
+
+    public static void i(String tag, String message, long value) {
+        if (INFO >= level) {
+            Log.i(tag, message + value);
+        }
+    }
+
+    /**
+     * Open a trace section, if tracing is on
+     *
+     * Pass the result to {@link #end}, best in a finally block, so the
+     * section is closed even when tracing was turned off in between.
+     *
+     * @param name Section name, a constant
+     * @return Whether a section was opened
+     */
+    public static boolean begin(String name) {
+        if (!tracing) {
+            return false;
+        }
+        Trace.beginSection(name);
+        return true;
+    }
+
+    public static void end(boolean begun) {
+        if (begun) {
+            Trace.endSection();
+        }
+    }
+
+    private static void notifyListeners() {
+        int currentLevel = level;
+        boolean currentTracing = tracing;
+        for (Listener listener : listeners) {
+            listener.onTracerChanged(currentLevel, currentTracing);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        if (bytes == null) {
+            return "null";
+        }
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0x0f, 16));
+            hex.append(Character.forDigit(b & 0x0f, 16));
+        }
+        return hex.toString();
+    }
+}
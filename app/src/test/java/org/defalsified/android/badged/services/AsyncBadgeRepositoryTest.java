@@ -0,0 +1,117 @@
+package org.defalsified.android.badged.services;
+
+import org.defalsified.android.badged.models.Badge;
+import org.defalsified.android.badged.storage.BadgeCursor;
+import org.defalsified.android.badged.storage.BadgePage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that callbacks hear about failures, not only results
+ */
+public class AsyncBadgeRepositoryTest {
+
+    @Test
+    public void failedPageIsDeliveredOnMainThread() {
+        IOException failure = new IOException("store unavailable");
+        RecordingExecutor mainThread = new RecordingExecutor();
+        AsyncBadgeRepository repository = failingRepository(failure, mainThread);
+        RecordingCallback<BadgePage> callback = new RecordingCallback<>(mainThread);
+
+        repository.getBadgePage(BadgeCursor.Order.SERIAL, null, 30, callback);
+
+        assertEquals(0, callback.calls);
+        mainThread.runAll();
+        assertEquals(1, callback.calls);
+        assertTrue(callback.onMainThread);
+        assertSame(failure, callback.error);
+        assertNull(callback.result);
+    }
+
+    @Test
+    public void failedLookupIsDeliveredOnMainThread() {
+        IOException failure = new IOException("store unavailable");
+        RecordingExecutor mainThread = new RecordingExecutor();
+        AsyncBadgeRepository repository = failingRepository(failure, mainThread);
+        RecordingCallback<Badge> callback = new RecordingCallback<>(mainThread);
+
+        repository.getBadgeById("1", callback);
+        mainThread.runAll();
+
+        assertEquals(1, callback.calls);
+        assertTrue(callback.onMainThread);
+        assertSame(failure, callback.error);
+    }
+
+    @Test
+    public void failedReadCompletesFutureExceptionally() {
+        IOException failure = new IOException("store unavailable");
+        AsyncBadgeRepository repository = failingRepository(failure, new RecordingExecutor());
+
+        CompletableFuture<List<Badge>> badges = repository.getAllBadges();
+
+        assertTrue(badges.isCompletedExceptionally());
+    }
+
+    // Reads and writes run inline; only callbacks wait for the main thread
+    private static AsyncBadgeRepository failingRepository(IOException failure, Executor mainThread) {
+        CompletableFuture<BadgeRepository> opened = new CompletableFuture<>();
+        opened.completeExceptionally(failure);
+        return new AsyncBadgeRepository(opened, Runnable::run, Runnable::run, mainThread);
+    }
+
+    private static class RecordingExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+        boolean running;
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            running = true;
+            try {
+                while (!tasks.isEmpty()) {
+                    tasks.remove(0).run();
+                }
+            } finally {
+                running = false;
+            }
+        }
+    }
+
+    private static class RecordingCallback<T> implements AsyncBadgeRepository.Callback<T> {
+        private final RecordingExecutor mainThread;
+        int calls;
+        boolean onMainThread;
+        T result;
+        Throwable error;
+
+        RecordingCallback(RecordingExecutor mainThread) {
+            this.mainThread = mainThread;
+        }
+
+        @Override
+        public void onResult(T result) {
+            calls++;
+            onMainThread = mainThread.running;
+            this.result = result;
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            calls++;
+            onMainThread = mainThread.running;
+            this.error = error;
+        }
+    }
+}
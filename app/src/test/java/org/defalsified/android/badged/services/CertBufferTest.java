@@ -0,0 +1,110 @@
+package org.defalsified.android.badged.services;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * CertBuffer must decode exactly as {@code Base64.DEFAULT} does
+ *
+ * The blob store and the re-verifier decode vouchers with
+ * {@code android.util.Base64}, so a scan has to see the same bytes. That
+ * class is a stub in JVM tests; the MIME decoder of java.util skips
+ * characters outside the alphabet the same way and serves as reference.
+ */
+public class CertBufferTest {
+    private static final int ROUNDS = 20_000;
+    // Characters Base64.DEFAULT skips, URL-safe ones included
+    private static final String NOISE = " \n\r\t-_!.é";
+
+    @Test
+    public void matchesReferenceDecoder() {
+        Random random = new Random(14);
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] data = new byte[random.nextInt(48)];
+            random.nextBytes(data);
+            StringBuilder text = new StringBuilder(Base64.getEncoder().encodeToString(data));
+            if (random.nextBoolean()) {
+                // Unpadded, as some QR generators write it
+                while (text.length() > 0 && text.charAt(text.length() - 1) == '=') {
+                    text.setLength(text.length() - 1);
+                }
+            }
+            // The reference rejects noise between two '=', so keep it before the padding
+            int padding = text.indexOf("=");
+            int end = padding >= 0 ? padding : text.length();
+            int noise = random.nextInt(4);
+            for (int j = 0; j < noise; j++) {
+                text.insert(random.nextInt(end + 1), NOISE.charAt(random.nextInt(NOISE.length())));
+                end++;
+            }
+
+            String base64 = text.toString();
+            byte[] expected = Base64.getMimeDecoder().decode(
+                    base64.getBytes(StandardCharsets.UTF_8));
+            assertArrayEquals(base64, data, expected);
+            assertArrayEquals(base64, expected, decode(base64));
+        }
+    }
+
+    @Test
+    public void skipsUrlSafeAndOtherCharacters() {
+        // "-" and "_" are not 62 and 63 here, they are dropped
+        assertArrayEquals(decode("AAEC"), decode("AA-_EC"));
+        assertArrayEquals(decode("AAEC"), decode("AA!EéC"));
+        assertArrayEquals(new byte[0], decode("-_!"));
+    }
+
+    @Test
+    public void acceptsOptionalPadding() {
+        assertArrayEquals(new byte[]{'a'}, decode("YQ"));
+        assertArrayEquals(new byte[]{'a'}, decode("YQ=="));
+        assertArrayEquals(new byte[]{'a', 'b'}, decode("YWI"));
+        assertArrayEquals(new byte[]{'a', 'b'}, decode("YWI="));
+        assertArrayEquals(new byte[]{'a'}, decode("YQ=\n=\n"));
+    }
+
+    @Test
+    public void rejectsDataAfterPadding() {
+        assertRejected("YQ==YQ==");
+        assertRejected("YWI=YQ");
+        assertRejected("YQ===");
+        assertRejected("YWI==");
+    }
+
+    @Test
+    public void rejectsBadPadding() {
+        assertRejected("Y");
+        assertRejected("Y===");
+        assertRejected("YQ=");
+        assertRejected("=");
+        assertRejected("YWJj=");
+    }
+
+    private static byte[] decode(String base64) {
+        CertBuffer certBuffer = CertBuffer.acquire();
+        try {
+            certBuffer.decode(base64);
+            byte[] bytes = new byte[certBuffer.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = certBuffer.buffer().get(i);
+            }
+            return bytes;
+        } finally {
+            certBuffer.release();
+        }
+    }
+
+    private static void assertRejected(String base64) {
+        try {
+            decode(base64);
+            fail("Decoded " + base64);
+        } catch (IllegalArgumentException expected) {
+            // Not base64
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.defalsified.android.badged.services;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import static org.defalsified.android.badged.services.TestCertificates.Signer;
+import static org.defalsified.android.badged.services.TestCertificates.utf8;
+import static org.junit.Assert.*;
+
+/**
+ * The committed certificate fixtures, checked byte for byte
+ *
+ * The same files are verified against libqaeda on device by
+ * {@code CertVerifierCrossCheckTest}. Here the bytes are read as committed,
+ * not rebuilt, so a change to the verifier or to TestCertificates cannot
+ * quietly move both sides of the comparison.
+ */
+public class CertGoldenVectorTest {
+    private static final String VOUCHER =
+            "{\"serial\":\"1001\",\"offer\":\"Coffee\","
+            + "\"holder\":\"Fixture Holder\",\"project\":\"Fixtures\"}";
+    private static final String VOUCHER_WITH_RESPONSE =
+            "{\"serial\":\"1002\",\"offer\":\"Tea\","
+            + "\"holder\":\"Fixture Holder\",\"project\":\"Fixtures\"}";
+
+    private static final String[] FIXTURES = {
+            "ok-request", "ok-response", "untrusted-signer", "invalid-signature-request",
+            "invalid-signature-response", "malformed-truncated"
+    };
+    private static final int[] STATUSES = {
+            Cert.Verification.STATUS_OK, Cert.Verification.STATUS_OK,
+            Cert.Verification.STATUS_UNTRUSTED, Cert.Verification.STATUS_INVALID_SIGNATURE,
+            Cert.Verification.STATUS_INVALID_SIGNATURE, Cert.Verification.STATUS_MALFORMED
+    };
+
+    @Test
+    public void fixtureKeyIsTheTestIssuer() throws Exception {
+        List<byte[]> keys = keys("fixture_trusted_keys");
+
+        assertEquals(1, keys.size());
+        assertArrayEquals(Signer.of(1).publicKey, keys.get(0));
+    }
+
+    @Test
+    public void fixturesVerifyAsNamed() throws Exception {
+        JavaCertVerifier verifier = new JavaCertVerifier();
+        verifier.setTrustedKeys(keys("fixture_trusted_keys").toArray(new byte[0][]));
+
+        for (int i = 0; i < FIXTURES.length; i++) {
+            Cert.Verification result = verifier.verify(fixture(FIXTURES[i]));
+            assertEquals(FIXTURES[i], STATUSES[i], result.getStatus());
+        }
+    }
+
+    @Test
+    public void validFixturesCarryVoucher() throws Exception {
+        JavaCertVerifier verifier = new JavaCertVerifier();
+        verifier.setTrustedKeys(keys("fixture_trusted_keys").toArray(new byte[0][]));
+
+        Cert.Verification request = verifier.verify(fixture("ok-request"));
+        assertEquals(VOUCHER, request.getJsonContent());
+        assertEquals("badged", request.getDomain());
+        assertArrayEquals(Signer.of(1).publicKey, request.getSignerPublicKey());
+
+        Cert.Verification response = verifier.verify(fixture("ok-response"));
+        assertEquals(VOUCHER_WITH_RESPONSE, response.getJsonContent());
+        assertArrayEquals(utf8(VOUCHER_WITH_RESPONSE), response.getPayload());
+    }
+
+    @Test
+    public void appKeysRejectFixtures() throws Exception {
+        JavaCertVerifier bundled = new JavaCertVerifier();
+        bundled.setTrustedKeys(keys("trusted_keys").toArray(new byte[0][]));
+        JavaCertVerifier builtIn = new JavaCertVerifier();
+
+        // The app trusts the voucher issuer, never the test key
+        for (String name : new String[]{"ok-request", "ok-response"}) {
+            assertEquals(name, Cert.Verification.STATUS_UNTRUSTED,
+                    bundled.verify(fixture(name)).getStatus());
+            assertEquals(name, Cert.Verification.STATUS_UNTRUSTED,
+                    builtIn.verify(fixture(name)).getStatus());
+        }
+    }
+
+    private static byte[] fixture(String name) throws IOException {
+        String base64 = new String(read("certificates/" + name), StandardCharsets.US_ASCII).trim();
+        return Base64.getDecoder().decode(base64);
+    }
+
+    private static List<byte[]> keys(String name) throws IOException {
+        try (InputStream in = open(name)) {
+            return TrustStore.parse(in);
+        }
+    }
+
+    private static byte[] read(String name) throws IOException {
+        try (InputStream in = open(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // The app and test assets are on the unit test classpath
+    private static InputStream open(String name) throws IOException {
+        InputStream in = CertGoldenVectorTest.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Missing test resource " + name);
+        }
+        return in;
+    }
+}
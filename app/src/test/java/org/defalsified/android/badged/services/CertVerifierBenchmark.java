@@ -0,0 +1,71 @@
+package org.defalsified.android.badged.services;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.defalsified.android.badged.services.TestCertificates.Signer;
+import static org.defalsified.android.badged.services.TestCertificates.certificate;
+import static org.junit.Assert.*;
+
+/**
+ * Throughput of the pure Java verifier on a JVM host
+ *
+ * Times single verifications and batches by thread count over a mix of
+ * signed certificates. libqaeda only builds for arm64, so the native side
+ * of the comparison runs on device in {@code CertBatchBenchmark}, which
+ * logs both backends in the same units. Timings are printed, not asserted.
+ */
+public class CertVerifierBenchmark {
+    private static final int CERTIFICATES = 64;
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    @Test
+    public void compareSingleAndBatch() {
+        Signer issuer = Signer.of(1);
+        JavaCertVerifier verifier = new JavaCertVerifier();
+        verifier.setTrustedKeys(new byte[][]{issuer.publicKey});
+
+        byte[][] batch = new byte[CERTIFICATES][];
+        for (int i = 0; i < CERTIFICATES; i++) {
+            // Half carry a response, so half need two signature checks
+            batch[i] = i % 2 == 0
+                    ? certificate("badge", "{\"serial\":\"" + i + "\"}", issuer, "ok", Signer.of(i + 2))
+                    : certificate("badge", "{\"serial\":\"" + i + "\"}", issuer, null, null);
+        }
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            verifier.verifyBatch(batch, 1);
+        }
+        long[] nanos = new long[MEASURED_RUNS];
+        for (int run = 0; run < MEASURED_RUNS; run++) {
+            long started = System.nanoTime();
+            for (byte[] certificate : batch) {
+                assertTrue(verifier.verify(certificate).isVerified());
+            }
+            nanos[run] = System.nanoTime() - started;
+        }
+        System.out.printf("single: %.0f certs/s%n", perSecond(nanos));
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            for (int run = 0; run < MEASURED_RUNS; run++) {
+                long started = System.nanoTime();
+                int[] statuses = verifier.verifyBatch(batch, threads);
+                nanos[run] = System.nanoTime() - started;
+                for (int status : statuses) {
+                    assertEquals(Cert.Verification.STATUS_OK, status);
+                }
+            }
+            System.out.printf("batch, %d threads: %.0f certs/s%n", threads, perSecond(nanos));
+        }
+    }
+
+    // Median run, so a single GC does not skew it
+    private static double perSecond(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return CERTIFICATES * 1e9 / sorted[sorted.length / 2];
+    }
+}
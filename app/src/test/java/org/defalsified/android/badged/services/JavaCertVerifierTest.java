@@ -0,0 +1,237 @@
+package org.defalsified.android.badged.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.defalsified.android.badged.services.TestCertificates.Signer;
+import static org.defalsified.android.badged.services.TestCertificates.cert;
+import static org.defalsified.android.badged.services.TestCertificates.certificate;
+import static org.defalsified.android.badged.services.TestCertificates.fromHex;
+import static org.defalsified.android.badged.services.TestCertificates.msg;
+import static org.defalsified.android.badged.services.TestCertificates.utf8;
+import static org.junit.Assert.*;
+
+/**
+ * The pure Java verifier on certificates signed here
+ *
+ * Agreement with libqaeda itself is checked on device by
+ * {@code CertVerifierCrossCheckTest}, as the native library only builds for arm64.
+ */
+public class JavaCertVerifierTest {
+    private static final String PAYLOAD = "{\"serial\":\"A-1\",\"offer\":\"Coffee\"}";
+
+    private final Signer issuer = Signer.of(1);
+    private final Signer holder = Signer.of(2);
+    private final Signer stranger = Signer.of(3);
+    private JavaCertVerifier verifier;
+
+    @Before
+    public void setUp() {
+        verifier = new JavaCertVerifier();
+        assertEquals(1, verifier.setTrustedKeys(new byte[][]{issuer.publicKey}));
+    }
+
+    @Test
+    public void matchesRfc8032TestVector() {
+        Signer signer = new Signer(fromHex(
+                "9d61b19deffd5a60ba844af492ec2cc44449c5697b326919703bac031cae7f60"));
+        byte[] publicKey = fromHex("d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a");
+        byte[] signature = fromHex("e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e065"
+                + "224901555fb8821590a33bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b");
+
+        assertArrayEquals(publicKey, signer.publicKey);
+        assertArrayEquals(signature, signer.sign(new byte[0]));
+        assertTrue(Ed25519.verify(publicKey, new byte[0], signature, 0));
+        assertFalse(Ed25519.verify(publicKey, new byte[1], signature, 0));
+    }
+
+    @Test
+    public void acceptsTrustedCertificate() {
+        byte[] certificate = certificate("badge", PAYLOAD, issuer, "accepted", holder);
+
+        Cert.Verification result = verifier.verify(certificate);
+
+        assertEquals(Cert.Verification.STATUS_OK, result.getStatus());
+        assertEquals(PAYLOAD, result.getJsonContent());
+        assertEquals("badge", result.getDomain());
+        assertArrayEquals(issuer.publicKey, result.getSignerPublicKey());
+    }
+
+    @Test
+    public void acceptsCertificateWithoutResponse() {
+        byte[] certificate = certificate("badge", PAYLOAD, issuer, null, null);
+
+        assertEquals(Cert.Verification.STATUS_OK, verifier.verify(certificate).getStatus());
+    }
+
+    @Test
+    public void rejectsUntrustedSigner() {
+        byte[] certificate = certificate("badge", PAYLOAD, stranger, "accepted", holder);
+
+        Cert.Verification result = verifier.verify(certificate);
+
+        assertEquals(Cert.Verification.STATUS_UNTRUSTED, result.getStatus());
+        assertEquals(PAYLOAD, result.getJsonContent());
+        assertArrayEquals(stranger.publicKey, result.getSignerPublicKey());
+    }
+
+    @Test
+    public void rejectsTamperedRequest() {
+        byte[] certificate = certificate("badge", PAYLOAD, issuer, "accepted", holder);
+        String tampered = PAYLOAD.replace("Coffee", "Caviar");
+        byte[] forged = replace(certificate, utf8(PAYLOAD), utf8(tampered));
+
+        Cert.Verification result = verifier.verify(forged);
+
+        assertEquals(Cert.Verification.STATUS_INVALID_SIGNATURE, result.getStatus());
+        assertEquals(tampered, result.getJsonContent());
+        assertNull(result.getSignerPublicKey());
+    }
+
+    @Test
+    public void rejectsTamperedResponseAndDomain() {
+        byte[] certificate = certificate("badge", PAYLOAD, issuer, "accepted", holder);
+
+        assertEquals(Cert.Verification.STATUS_INVALID_SIGNATURE, verifier.verify(
+                replace(certificate, utf8("accepted"), utf8("rejected"))).getStatus());
+        assertEquals(Cert.Verification.STATUS_INVALID_SIGNATURE, verifier.verify(
+                replace(certificate, utf8("badge"), utf8("bodge"))).getStatus());
+    }
+
+    @Test
+    public void rejectsMissingRequestSignature() {
+        byte[] request = msg(utf8(PAYLOAD), issuer.publicKey);
+        byte[] response = msg(new byte[0], new byte[0]);
+
+        assertEquals(Cert.Verification.STATUS_INVALID_SIGNATURE, verifier.verify(
+                cert(utf8("badge"), request, new byte[0], response, new byte[0])).getStatus());
+        assertEquals(Cert.Verification.STATUS_INVALID_SIGNATURE, verifier.verify(
+                cert(utf8("badge"), request, new byte[64], response, new byte[0])).getStatus());
+    }
+
+    @Test
+    public void warmUpCertificateReachesTrustCheck() {
+        byte[] certificate = Base64.getDecoder().decode(CertificateService.WARM_UP_CERTIFICATE);
+
+        // Signatures verify, so only the trust check turns it down
+        Cert.Verification result = new JavaCertVerifier().verify(certificate);
+        assertEquals(Cert.Verification.STATUS_UNTRUSTED, result.getStatus());
+        assertNotNull(result.getSignerPublicKey());
+        assertEquals(Cert.Verification.STATUS_UNTRUSTED, verifier.verify(certificate).getStatus());
+    }
+
+    @Test
+    public void gettersReturnCopies() {
+        Cert.Verification result = verifier.verify(certificate("badge", PAYLOAD, issuer, null, null));
+
+        result.getPayload()[0] ^= 1;
+        result.getSignerPublicKey()[0] ^= 1;
+
+        assertArrayEquals(utf8(PAYLOAD), result.getPayload());
+        assertArrayEquals(issuer.publicKey, result.getSignerPublicKey());
+        assertEquals(PAYLOAD.length(), result.payloadLength());
+    }
+
+    @Test
+    public void emptyPayloadHasNoContent() {
+        Cert.Verification result = verifier.verify(certificate("badge", "", issuer, null, null));
+
+        // The signature is fine, there is just nothing to read
+        assertEquals(Cert.Verification.STATUS_OK, result.getStatus());
+        assertArrayEquals(new byte[0], result.getPayload());
+        assertNull(result.getJsonContent());
+
+        Cert.CertificateResult scanned = result.toCertificateResult();
+        assertFalse(scanned.success);
+        assertEquals("Failed to deserialize certificate", scanned.error);
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        byte[] certificate = certificate("badge", PAYLOAD, issuer, "accepted", holder);
+
+        assertEquals(Cert.Verification.STATUS_MALFORMED, verifier.verify((byte[]) null).getStatus());
+        for (int length = 0; length < certificate.length; length++) {
+            Cert.Verification result = verifier.verify(Arrays.copyOf(certificate, length));
+            assertEquals("Truncated to " + length, Cert.Verification.STATUS_MALFORMED,
+                    result.getStatus());
+            assertNull(result.getPayload());
+        }
+        assertEquals(Cert.Verification.STATUS_MALFORMED, verifier.verify(
+                Arrays.copyOf(certificate, certificate.length + 1)).getStatus());
+
+        // Domains are at most 8 bytes
+        byte[] longDomain = certificate("domain-too-long", PAYLOAD, issuer, null, null);
+        assertEquals(Cert.Verification.STATUS_MALFORMED, verifier.verify(longDomain).getStatus());
+    }
+
+    @Test
+    public void replacesTrustedKeys() {
+        byte[] certificate = certificate("badge", PAYLOAD, stranger, null, null);
+
+        assertEquals(2, verifier.setTrustedKeys(new byte[][]{
+                issuer.publicKey, stranger.publicKey, stranger.publicKey.clone()}));
+        assertEquals(Cert.Verification.STATUS_OK, verifier.verify(certificate).getStatus());
+
+        // A bad set keeps the old one
+        assertEquals(-1, verifier.setTrustedKeys(new byte[][]{issuer.publicKey, new byte[0]}));
+        assertEquals(Cert.Verification.STATUS_OK, verifier.verify(certificate).getStatus());
+
+        assertEquals(1, verifier.setTrustedKeys(new byte[][]{issuer.publicKey}));
+        assertEquals(Cert.Verification.STATUS_UNTRUSTED, verifier.verify(certificate).getStatus());
+    }
+
+    @Test
+    public void buffersMatchArrays() {
+        byte[] certificate = certificate("badge", PAYLOAD, issuer, "accepted", holder);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(certificate.length + 16);
+        direct.put(certificate);
+        ByteBuffer sliced = ByteBuffer.wrap(TestCertificates.concat(new byte[3], certificate,
+                new byte[5]), 3, certificate.length).slice();
+
+        assertEquals(Cert.Verification.STATUS_OK,
+                verifier.verify(direct, certificate.length).getStatus());
+        assertEquals(Cert.Verification.STATUS_OK,
+                verifier.verify(sliced, certificate.length).getStatus());
+        assertEquals(Cert.Verification.STATUS_ERROR,
+                verifier.verify(direct, direct.capacity() + 1).getStatus());
+    }
+
+    @Test
+    public void batchMatchesSingleVerifications() {
+        byte[][] batch = {
+                certificate("badge", PAYLOAD, issuer, "accepted", holder),
+                certificate("badge", PAYLOAD, stranger, null, null),
+                null,
+                new byte[]{0x30, 0x00},
+                certificate("badge", PAYLOAD, issuer, null, null),
+        };
+
+        int[] expected = new int[batch.length];
+        for (int i = 0; i < batch.length; i++) {
+            expected[i] = verifier.verify(batch[i]).getStatus();
+        }
+
+        assertArrayEquals(expected, verifier.verifyBatch(batch, 1));
+        assertArrayEquals(expected, verifier.verifyBatch(batch, 3));
+        assertArrayEquals(expected, verifier.verifyBatch(batch, 0));
+        assertEquals(0, verifier.verifyBatch(new byte[0][], 4).length);
+    }
+
+    // Copy with the first occurrence of a same length byte run replaced
+    private static byte[] replace(byte[] bytes, byte[] from, byte[] to) {
+        byte[] copy = bytes.clone();
+        for (int i = 0; i + from.length <= copy.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(copy, i, i + from.length), from)) {
+                System.arraycopy(to, 0, copy, i, to.length);
+                return copy;
+            }
+        }
+        throw new AssertionError("Not found");
+    }
+}
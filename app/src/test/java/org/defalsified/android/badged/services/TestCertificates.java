@@ -0,0 +1,145 @@
+package org.defalsified.android.badged.services;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Builds signed certificates in the libqaeda format for JVM tests
+ *
+ * Signing uses the curve arithmetic of {@link Ed25519}, so certificates
+ * can be made without libqaeda; see {@link JavaCertVerifier} for the format.
+ */
+final class TestCertificates {
+
+    private TestCertificates() {}
+
+    /**
+     * Certificate with a signed request and, when a responder is given, a signed response
+     */
+    static byte[] certificate(String domain, String requestData, Signer requester,
+                              String responseData, Signer responder) {
+        byte[] domainBytes = Arrays.copyOf(domain.getBytes(StandardCharsets.UTF_8),
+                JavaCertVerifier.DOMAIN_LENGTH);
+        byte[] request = utf8(requestData);
+
+        byte[] requestSignature = requester.sign(signedMessage(sha512(domainBytes), request));
+        byte[] responseMsg;
+        byte[] responseSignature;
+        if (responder != null) {
+            byte[] response = utf8(responseData);
+            byte[] state = sha512(concat(domainBytes, requestSignature));
+            responseSignature = responder.sign(signedMessage(state, response));
+            responseMsg = msg(response, responder.publicKey);
+        } else {
+            responseSignature = new byte[0];
+            responseMsg = msg(new byte[0], new byte[0]);
+        }
+
+        return cert(domain.getBytes(StandardCharsets.UTF_8), msg(request, requester.publicKey),
+                requestSignature, responseMsg, responseSignature);
+    }
+
+    static byte[] cert(byte[] domain, byte[] request, byte[] requestSignature,
+                       byte[] response, byte[] responseSignature) {
+        return tlv(0x30, concat(octets(domain), request, octets(requestSignature),
+                response, octets(responseSignature)));
+    }
+
+    static byte[] msg(byte[] data, byte[] publicKey) {
+        byte[] literal = {0x01, 0x01, (byte) 0xff};
+        return tlv(0x30, concat(literal, octets(data), octets(new byte[8]), octets(publicKey)));
+    }
+
+    static byte[] octets(byte[] value) {
+        return tlv(0x04, value);
+    }
+
+    static byte[] tlv(int tag, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        if (value.length < 0x80) {
+            out.write(value.length);
+        } else if (value.length < 0x100) {
+            out.write(0x81);
+            out.write(value.length);
+        } else {
+            out.write(0x82);
+            out.write(value.length >> 8);
+            out.write(value.length);
+        }
+        out.write(value, 0, value.length);
+        return out.toByteArray();
+    }
+
+    // SHA-512(SHA-512(state || data)), what libqaeda hands to Ed25519
+    static byte[] signedMessage(byte[] state, byte[] data) {
+        return sha512(sha512(concat(state, data)));
+    }
+
+    static byte[] sha512(byte[] data) {
+        return Ed25519.sha512().digest(data);
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Ed25519 signing key, RFC 8032 section 5.1.6
+     */
+    static final class Signer {
+        final byte[] publicKey;
+        private final BigInteger scalar;
+        private final byte[] prefix;
+
+        Signer(byte[] seed) {
+            byte[] hash = sha512(seed);
+            hash[0] &= (byte) 248;
+            hash[31] &= 127;
+            hash[31] |= 64;
+            scalar = Ed25519.decodeInt(hash, 0, 32);
+            prefix = Arrays.copyOfRange(hash, 32, 64);
+            publicKey = Ed25519.encode(Ed25519.scalarMultiply(scalar, Ed25519.BASE));
+        }
+
+        // Deterministic test keys
+        static Signer of(int index) {
+            byte[] seed = new byte[32];
+            seed[0] = (byte) index;
+            seed[1] = (byte) (index >> 8);
+            return new Signer(seed);
+        }
+
+        byte[] sign(byte[] message) {
+            MessageDigest sha512 = Ed25519.sha512();
+            sha512.update(prefix);
+            BigInteger r = Ed25519.decodeInt(sha512.digest(message), 0, 64).mod(Ed25519.L);
+            byte[] encodedR = Ed25519.encode(Ed25519.scalarMultiply(r, Ed25519.BASE));
+
+            sha512.update(encodedR);
+            sha512.update(publicKey);
+            BigInteger k = Ed25519.decodeInt(sha512.digest(message), 0, 64).mod(Ed25519.L);
+            BigInteger s = r.add(k.multiply(scalar)).mod(Ed25519.L);
+            return concat(encodedR, Ed25519.encodeInt(s));
+        }
+    }
+}
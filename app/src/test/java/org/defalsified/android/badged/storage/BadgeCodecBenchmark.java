@@ -0,0 +1,142 @@
+package org.defalsified.android.badged.storage;
+
+import org.defalsified.android.badged.models.Badge;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the binary badge codec with the JSON path it replaces
+ *
+ * The JSON side encodes the whole wallet as one array and parses it back,
+ * as the preference blob did. Timings are printed, not asserted. The
+ * 100k badge wallet takes a while, so it only runs with
+ * {@code ./gradlew test -Pbenchmark.large}.
+ */
+public class BadgeCodecBenchmark {
+    private static final int[] WALLET_SIZES = {100, 10_000};
+    private static final int LARGE_WALLET_SIZE = 100_000;
+
+    @Test
+    public void binaryRoundTripMatchesJson() throws Exception {
+        for (Badge badge : mixedWallet()) {
+            byte[] binary = BadgeBinaryCodec.encode(badge);
+            Badge fromBinary = BadgeBinaryCodec.decode(binary, 0, binary.length);
+            Badge fromJson = BadgeJsonCodec.decode(BadgeJsonCodec.encode(badge));
+
+            assertSameFields(badge, fromJson);
+            assertSameFields(badge, fromBinary);
+        }
+    }
+
+    @Test
+    public void compareCodecs() throws Exception {
+        List<Integer> sizes = new ArrayList<>();
+        for (int size : WALLET_SIZES) {
+            sizes.add(size);
+        }
+        if (Boolean.getBoolean("benchmark.large")) {
+            sizes.add(LARGE_WALLET_SIZE);
+        }
+
+        for (int size : sizes) {
+            List<Badge> badges = wallet(size);
+
+            // Warm up both paths before timing
+            jsonRoundTrip(badges);
+            binaryRoundTrip(badges);
+
+            long jsonStart = System.nanoTime();
+            int jsonBytes = jsonRoundTrip(badges);
+            long jsonNanos = System.nanoTime() - jsonStart;
+
+            long binaryStart = System.nanoTime();
+            int binaryBytes = binaryRoundTrip(badges);
+            long binaryNanos = System.nanoTime() - binaryStart;
+
+            System.out.printf("%7d badges: json %6.1fms %9d bytes | binary %6.1fms %9d bytes%n",
+                    size, jsonNanos / 1e6, jsonBytes, binaryNanos / 1e6, binaryBytes);
+            assertTrue(binaryBytes < jsonBytes);
+        }
+    }
+
+    private static int jsonRoundTrip(List<Badge> badges) throws Exception {
+        JSONArray badgesArray = new JSONArray();
+        for (Badge badge : badges) {
+            badgesArray.put(BadgeJsonCodec.toJson(badge));
+        }
+        String json = badgesArray.toString();
+
+        JSONArray parsed = new JSONArray(json);
+        for (int i = 0; i < parsed.length(); i++) {
+            BadgeJsonCodec.fromJson(parsed.getJSONObject(i));
+        }
+        return json.length();
+    }
+
+    private static int binaryRoundTrip(List<Badge> badges) throws Exception {
+        BadgeBinaryCodec.Output out = new BadgeBinaryCodec.Output(badges.size() * 64);
+        int[] ends = new int[badges.size()];
+        for (int i = 0; i < badges.size(); i++) {
+            BadgeBinaryCodec.write(badges.get(i), out);
+            ends[i] = out.size();
+        }
+
+        byte[] data = out.buffer();
+        int start = 0;
+        for (int end : ends) {
+            BadgeBinaryCodec.decode(data, start, end - start);
+            start = end;
+        }
+        return out.size();
+    }
+
+    private static void assertSameFields(Badge expected, Badge actual) {
+        String serial = expected.getSerial();
+        assertEquals(serial, expected.getSerial(), actual.getSerial());
+        assertEquals(serial, expected.getOffer(), actual.getOffer());
+        assertEquals(serial, expected.getHolder(), actual.getHolder());
+        assertEquals(serial, expected.getProject(), actual.getProject());
+        assertEquals(serial, expected.getCertificateRef(), actual.getCertificateRef());
+        assertEquals(serial, expected.getCertificateData(), actual.getCertificateData());
+        assertEquals(serial, expected.getTimestamp(), actual.getTimestamp());
+    }
+
+    // Stored, inline and empty certificates, non-ASCII text and odd timestamps
+    private static List<Badge> mixedWallet() {
+        List<Badge> badges = wallet(100);
+
+        Badge inline = new Badge("inline", "Coffee", "holder", "project", "MIIBcertificate==");
+        inline.setTimestamp(0);
+        badges.add(inline);
+
+        Badge sparse = new Badge("sparse", "", "", "", "");
+        sparse.setTimestamp(-1);
+        badges.add(sparse);
+
+        Badge text = new Badge("Caf\u00e9-\u2615", "Kaffee \u00fcberall", "\ud83d\ude00",
+                "", null);
+        text.setCertificateRef(String.format("%064x", Long.MAX_VALUE));
+        text.setTimestamp(Long.MAX_VALUE);
+        badges.add(text);
+        return badges;
+    }
+
+    private static List<Badge> wallet(int size) {
+        List<Badge> badges = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Badge badge = new Badge(Integer.toString(i), "Coffee", "holder-" + (i % 97),
+                    "project-" + (i % 13), null);
+            // Stored badges reference their certificate by digest
+            badge.setCertificateRef(String.format("%064x", i));
+            badge.setTimestamp(1_700_000_000_000L + i * 1000L);
+            badges.add(badge);
+        }
+        return badges;
+    }
+}
@@ -0,0 +1,255 @@
+package org.defalsified.android.badged.storage;
+
+import org.defalsified.android.badged.models.Badge;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Batches, torn tails and replay of {@link BadgeLog}
+ */
+public class BadgeLogTest {
+    // Record header plus the 4 byte file header, as laid out by BadgeLog
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int FILE_HEADER_SIZE = 4;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private File compactFile;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "badges.log");
+        compactFile = new File(folder.getRoot(), "badges.log.compact");
+    }
+
+    @Test
+    public void replaysAfterReopen() throws IOException {
+        BadgeLog log = open();
+        log.put(badge(1));
+        log.putAll(Arrays.asList(badge(2), badge(3)));
+        Badge replaced = badge(1);
+        replaced.setOffer("Tea");
+        log.put(replaced);
+
+        BadgeLog reopened = open();
+        assertEquals(3, reopened.size());
+        assertEquals("Tea", reopened.get("1").getOffer());
+        assertSerials(log.getAll(), reopened.getAll());
+        assertEquals(file.length(), fileLengthAfterReplay());
+    }
+
+    @Test
+    public void largeBatchSurvivesReopen() throws IOException {
+        // Over a megabyte encoded, more than one record holds
+        List<Badge> wallet = wallet(10_000, 100);
+        BadgeLog log = open();
+        log.putAll(wallet);
+        assertTrue(file.length() > MAX_RECORD_SIZE);
+
+        BadgeLog reopened = open();
+        assertEquals(wallet.size(), reopened.size());
+        assertEquals(file.length(), fileLengthAfterReplay());
+        for (Badge badge : wallet) {
+            Badge read = reopened.get(badge.getSerial());
+            assertNotNull(badge.getSerial(), read);
+            assertEquals(badge.getCertificateData(), read.getCertificateData());
+        }
+
+        // Records after the batch still replay
+        reopened.put(badge(20_000));
+        assertEquals(wallet.size() + 1, open().size());
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws IOException {
+        BadgeLog log = open();
+        log.put(badge(1));
+        log.put(badge(2));
+        long intact = file.length();
+        log.put(badge(3));
+        cut(file.length() - 3);
+
+        BadgeLog reopened = open();
+        assertEquals(2, reopened.size());
+        assertNull(reopened.get("3"));
+        assertEquals(intact, file.length());
+
+        // Appends go where the torn record was
+        reopened.put(badge(4));
+        assertEquals(Arrays.asList("4", "2", "1"), serials(open().getAll()));
+    }
+
+    @Test
+    public void corruptRecordEndsReplay() throws IOException {
+        BadgeLog log = open();
+        log.put(badge(1));
+        long intact = file.length();
+        log.put(badge(2));
+        log.put(badge(3));
+        flip(intact + RECORD_HEADER_SIZE + 2);
+
+        BadgeLog reopened = open();
+        assertEquals(Arrays.asList("1"), serials(reopened.getAll()));
+        assertEquals(intact, file.length());
+    }
+
+    @Test
+    public void unfinishedBatchIsDroppedWhole() throws IOException {
+        BadgeLog log = open();
+        log.put(badge(-1));
+        long beforeBatch = file.length();
+        log.putAll(wallet(10_000, 100));
+        // Tear the last record of the batch, the ones before it are intact
+        cut(file.length() - 1);
+
+        BadgeLog reopened = open();
+        assertEquals(Arrays.asList("-1"), serials(reopened.getAll()));
+        assertEquals(beforeBatch, file.length());
+    }
+
+    @Test
+    public void oversizedBadgeIsRejected() throws IOException {
+        BadgeLog log = open();
+        log.put(badge(1));
+        long length = file.length();
+
+        List<Badge> batch = wallet(3, 100);
+        batch.add(badgeWithCertificate(99, MAX_RECORD_SIZE));
+        try {
+            log.putAll(batch);
+            fail("Batch with an oversized badge was saved");
+        } catch (IOException expected) {
+            // Nothing of the batch is kept
+        }
+        assertEquals(length, file.length());
+        assertEquals(1, log.size());
+
+        log.put(badge(2));
+        assertEquals(Arrays.asList("2", "1"), serials(open().getAll()));
+    }
+
+    @Test
+    public void serialsWiderThanLongSortAsText() throws IOException {
+        // The order SqliteBadgeStoreTest expects from SQLite
+        List<String> expected = Arrays.asList("9223372036854775807", "7", "007", "-3",
+                "abc", "99999999999999999999999", "18446744073709551616", "-9223372036854775809");
+        List<Badge> badges = new ArrayList<>();
+        for (String serial : expected) {
+            badges.add(new Badge(serial, "Coffee", "holder", "project", "cert"));
+        }
+        Collections.shuffle(badges, new Random(8));
+        BadgeLog log = open();
+        log.putAll(badges);
+
+        assertEquals(expected, serials(log.getAll()));
+
+        // Keyset pages run across the numeric and text serials
+        List<Badge> paged = new ArrayList<>();
+        List<Badge> page = log.getPage(BadgeCursor.Order.SERIAL, null, 3);
+        while (!page.isEmpty()) {
+            paged.addAll(page);
+            BadgeCursor after = BadgeCursor.after(BadgeCursor.Order.SERIAL, page.get(page.size() - 1));
+            page = log.getPage(BadgeCursor.Order.SERIAL, after, 3);
+        }
+        assertEquals(expected, serials(paged));
+    }
+
+    @Test
+    public void malformedStringLengthIsRejected() {
+        // Serial length varints past Long.MAX_VALUE and Integer.MAX_VALUE,
+        // each followed by an otherwise valid record
+        assertMalformed(0x81, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x01);
+        assertMalformed(0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x01);
+        assertMalformed(0x82, 0x80, 0x80, 0x80, 0x10);
+    }
+
+    private BadgeLog open() {
+        return new BadgeLog(file, compactFile);
+    }
+
+    // Length of the log once a fresh instance has replayed, and truncated, it
+    private long fileLengthAfterReplay() throws IOException {
+        open().size();
+        return file.length();
+    }
+
+    private void cut(long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+        assertTrue(length > FILE_HEADER_SIZE);
+    }
+
+    private void flip(long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        }
+    }
+
+    private static List<Badge> wallet(int size, int certificateLength) {
+        List<Badge> badges = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            badges.add(badgeWithCertificate(i, certificateLength));
+        }
+        return badges;
+    }
+
+    private static Badge badge(int serial) {
+        return badgeWithCertificate(serial, 16);
+    }
+
+    private static Badge badgeWithCertificate(int serial, int certificateLength) {
+        char[] certificate = new char[certificateLength];
+        Arrays.fill(certificate, (char) ('A' + Math.floorMod(serial, 26)));
+        Badge badge = new Badge(Integer.toString(serial), "Coffee", "holder", "project",
+                new String(certificate));
+        badge.setTimestamp(1_700_000_000_000L + serial);
+        return badge;
+    }
+
+    private static void assertMalformed(int... serialLength) {
+        byte[] record = new byte[2 + serialLength.length + 5];
+        record[0] = (byte) BadgeBinaryCodec.VERSION;
+        for (int i = 0; i < serialLength.length; i++) {
+            record[2 + i] = (byte) serialLength[i];
+        }
+        try {
+            BadgeBinaryCodec.decode(record, 0, record.length);
+            fail("Decoded a serial length of " + Arrays.toString(serialLength));
+        } catch (IOException expected) {
+            // Longer than the record
+        }
+    }
+
+    private static void assertSerials(List<Badge> expected, List<Badge> actual) {
+        assertEquals(serials(expected), serials(actual));
+    }
+
+    private static List<String> serials(List<Badge> badges) {
+        List<String> serials = new ArrayList<>(badges.size());
+        for (Badge badge : badges) {
+            serials.add(badge.getSerial());
+        }
+        return serials;
+    }
+}
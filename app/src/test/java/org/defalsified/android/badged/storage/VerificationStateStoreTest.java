@@ -0,0 +1,129 @@
+package org.defalsified.android.badged.storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replay, torn tails and compaction of {@link VerificationStateStore}
+ */
+public class VerificationStateStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private File compactFile;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "verification.log");
+        compactFile = new File(folder.getRoot(), "verification.log.compact");
+    }
+
+    @Test
+    public void replaysAfterReopen() throws IOException {
+        VerificationStateStore store = open();
+        store.putAll(states(1, 2, 3));
+        store.putAll(Collections.singletonMap("2", new VerificationStateStore.State(3, 20)));
+
+        VerificationStateStore reopened = open();
+        assertEquals(0, reopened.get("1").getStatus());
+        assertEquals(3, reopened.get("2").getStatus());
+        assertEquals(20, reopened.get("2").getVerifiedAt());
+        assertNull(reopened.get("4"));
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws IOException {
+        open().putAll(states(1));
+        long intact = file.length();
+        open().putAll(states(2, 3));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 3);
+        }
+
+        VerificationStateStore reopened = open();
+        assertNotNull(reopened.get("1"));
+        assertNull(reopened.get("2"));
+        assertEquals(intact, file.length());
+    }
+
+    @Test
+    public void undecodableRecordEndsReplay() throws IOException {
+        open().putAll(states(1));
+        long intact = file.length();
+        // Passes its checksum, but claims more states than it holds
+        appendRecord(new byte[]{0, 0, 0, 2, 0, 1, '2', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+
+        VerificationStateStore reopened = open();
+        assertNotNull(reopened.get("1"));
+        assertNull("Half the record applied", reopened.get("2"));
+        assertEquals(intact, file.length());
+
+        // Later writes go in after the cut and survive the next replay
+        reopened.putAll(states(3));
+        assertNotNull(open().get("3"));
+    }
+
+    @Test
+    public void compactionFailureKeepsWrite() throws IOException {
+        // A directory in place of the side file makes every compaction fail
+        assertTrue(compactFile.mkdir());
+        assertTrue(new File(compactFile, "busy").createNewFile());
+
+        VerificationStateStore store = open();
+        for (int i = 0; i < 1100; i++) {
+            store.putAll(Collections.singletonMap("1", new VerificationStateStore.State(0, i)));
+        }
+
+        assertEquals(1099, open().get("1").getVerifiedAt());
+    }
+
+    @Test
+    public void compactionKeepsLatestStates() throws IOException {
+        VerificationStateStore store = open();
+        for (int i = 0; i < 1100; i++) {
+            store.putAll(Collections.singletonMap(Integer.toString(i % 10),
+                    new VerificationStateStore.State(0, i)));
+        }
+        long compacted = file.length();
+        assertTrue(compacted < 1100 * 20);
+
+        VerificationStateStore reopened = open();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1090 + i, reopened.get(Integer.toString(i)).getVerifiedAt());
+        }
+        assertFalse(compactFile.exists());
+    }
+
+    private VerificationStateStore open() {
+        return new VerificationStateStore(file, compactFile);
+    }
+
+    private void appendRecord(byte[] payload) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+            LogRecords.write(out, new CRC32(), payload, 0, payload.length);
+        }
+    }
+
+    private static Map<String, VerificationStateStore.State> states(int... serials) {
+        Map<String, VerificationStateStore.State> states = new HashMap<>();
+        for (int serial : serials) {
+            states.put(Integer.toString(serial), new VerificationStateStore.State(0, serial));
+        }
+        return states;
+    }
+}
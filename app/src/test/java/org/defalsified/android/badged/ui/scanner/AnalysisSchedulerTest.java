@@ -0,0 +1,120 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame skipping and resolution choices of {@link AnalysisScheduler}
+ */
+public class AnalysisSchedulerTest {
+    private static final long FRAME_NANOS = 33_333_333L;
+    private static final long MILLIS = 1_000_000L;
+    // Version 1 at error correction level L holds 19 data codewords
+    private static final int VERSION_1_L_DATA = 19;
+
+    private final List<Integer> changes = new ArrayList<>();
+    private final AnalysisScheduler scheduler = new AnalysisScheduler(changes::add);
+    private long timestamp = 1_000_000_000L;
+
+    @Test
+    public void slowDecodesAreSpreadToFitTheBudget() {
+        int analyzed = run(300, 40 * MILLIS, null);
+
+        // 40 ms per decode at 30 frames a second fits 40% of a core analyzing 1 in 3
+        assertEquals(2, scheduler.skip());
+        double share = analyzed * 40.0 * MILLIS / (300.0 * FRAME_NANOS);
+        assertEquals(AnalysisScheduler.CPU_BUDGET, share, 0.05);
+        // No room to look closer, so no resolution change
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void fastDecodesSkipNothing() {
+        assertEquals(100, run(100, 5 * MILLIS, null));
+        assertEquals(0, scheduler.skip());
+    }
+
+    @Test
+    public void missesStepUpOnlyAfterDwelling() {
+        run(AnalysisScheduler.MISSES_BEFORE_STEP_UP, 5 * MILLIS, null);
+        // Two seconds in, not yet
+        assertTrue(changes.isEmpty());
+
+        run(60, 5 * MILLIS, null);
+        assertEquals(Arrays.asList(1), changes);
+        assertEquals(1, scheduler.level());
+    }
+
+    @Test
+    public void smallCodesStepUpAndLargeOnesStepDown() {
+        // Readable as they are
+        run(100, 5 * MILLIS, result(5f));
+        assertTrue(changes.isEmpty());
+
+        run(1, 5 * MILLIS, result(2f));
+        assertEquals(Arrays.asList(1), changes);
+
+        // Too soon after the last change
+        run(1, 5 * MILLIS, result(8f));
+        assertEquals(1, scheduler.level());
+
+        // Would be under 4 pixels a module a level down
+        run(100, 5 * MILLIS, result(5f));
+        assertEquals(1, scheduler.level());
+        run(1, 5 * MILLIS, result(8f));
+        assertEquals(Arrays.asList(1, 0), changes);
+    }
+
+    @Test
+    public void moduleSizeOfDecodedCode() throws Exception {
+        // 150 pixels across 21 modules and the quiet zone: 5 pixels a module
+        PlaneLuminanceSource source = new PlaneLuminanceSource(
+                TestFrames.plane("voucher", 150, false), 0, TestFrames.ROW_STRIDE,
+                0, 0, TestFrames.WIDTH, TestFrames.HEIGHT);
+        Result decoded = new QRCodeReader().decode(new BinaryBitmap(new HybridBinarizer(source)));
+
+        assertEquals(5f, AnalysisScheduler.moduleSize(decoded), 0.5f);
+        assertEquals(3f, AnalysisScheduler.moduleSize(result(3f)), 0.01f);
+        assertEquals(0f, AnalysisScheduler.moduleSize(
+                new Result("x", null, null, BarcodeFormat.QR_CODE)), 0f);
+    }
+
+    // Feed frames at 30 a second, decoding the ones let through
+    private int run(int frames, long latency, Result result) {
+        int analyzed = 0;
+        for (int i = 0; i < frames; i++) {
+            timestamp += FRAME_NANOS;
+            if (scheduler.shouldAnalyze(timestamp)) {
+                scheduler.record(latency, result);
+                analyzed++;
+            }
+        }
+        return analyzed;
+    }
+
+    // A version 1 code with finder patterns this many pixels per module apart
+    private static Result result(float module) {
+        ResultPoint[] points = {
+                new ResultPoint(3.5f * module, 17.5f * module),
+                new ResultPoint(3.5f * module, 3.5f * module),
+                new ResultPoint(17.5f * module, 3.5f * module),
+        };
+        Result result = new Result("voucher", new byte[VERSION_1_L_DATA], points,
+                BarcodeFormat.QR_CODE);
+        result.putMetadata(ResultMetadataType.ERROR_CORRECTION_LEVEL, "L");
+        return result;
+    }
+}
@@ -0,0 +1,73 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.Result;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import org.junit.Test;
+
+import static org.defalsified.android.badged.ui.scanner.DecodeStrategy.Tier;
+import static org.junit.Assert.*;
+
+/**
+ * Tier scheduling and adaptation of {@link DecodeStrategy}
+ */
+public class DecodeStrategyTest {
+    private static final QRCodeReader READER = new QRCodeReader();
+    // Enough frames for every tier to come due
+    private static final int FRAMES = 8;
+
+    @Test
+    public void plainCodeDecodesOnTheFastTier() throws Exception {
+        DecodeStrategy strategy = new DecodeStrategy();
+        Result result = strategy.decode(source(TestFrames.plane("voucher", 150, false)), READER);
+
+        assertNotNull(result);
+        assertEquals("voucher", result.getText());
+        assertEquals(Tier.FAST, strategy.lead());
+    }
+
+    @Test
+    public void invertedCodeTakesTheLeadAndGivesItBack() throws Exception {
+        DecodeStrategy strategy = new DecodeStrategy();
+        LuminanceSource inverted = source(TestFrames.plane("inverted", 150, true));
+
+        assertEquals("inverted", decodeWithin(strategy, inverted).getText());
+        assertEquals(Tier.INVERTED, strategy.lead());
+        // Once leading, it decodes on the next frame
+        assertNotNull(strategy.decode(inverted, READER));
+
+        // Cheaper tiers come due first and win it back within a few codes
+        LuminanceSource plain = source(TestFrames.plane("plain", 150, false));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("plain", decodeWithin(strategy, plain).getText());
+        }
+        assertEquals(Tier.FAST, strategy.lead());
+    }
+
+    @Test
+    public void emptyFramesMissThroughSweeps() {
+        DecodeStrategy strategy = new DecodeStrategy();
+        LuminanceSource empty = source(TestFrames.empty());
+        for (int i = 0; i < DecodeStrategy.SWEEP_AFTER_MISSES * 3; i++) {
+            assertNull(strategy.decode(empty, READER));
+        }
+        assertEquals(Tier.FAST, strategy.lead());
+    }
+
+    private static Result decodeWithin(DecodeStrategy strategy, LuminanceSource source) {
+        for (int i = 0; i < FRAMES; i++) {
+            Result result = strategy.decode(source, READER);
+            if (result != null) {
+                return result;
+            }
+        }
+        fail("Not decoded within " + FRAMES + " frames");
+        return null;
+    }
+
+    private static LuminanceSource source(byte[] plane) {
+        return new PlaneLuminanceSource(plane, 0, TestFrames.ROW_STRIDE,
+                0, 0, TestFrames.WIDTH, TestFrames.HEIGHT);
+    }
+}
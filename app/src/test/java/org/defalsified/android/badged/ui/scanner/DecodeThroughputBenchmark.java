@@ -0,0 +1,76 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frames per second through the decoder on a JVM host
+ *
+ * Puts the unconfigured all-formats reader with a hybrid binarizer, as
+ * the analyzer used to decode, next to {@link DecodeStrategy}, on frames
+ * with a code and on empty ones, where most of the time goes while the
+ * user aims. Timings are printed, not asserted.
+ */
+public class DecodeThroughputBenchmark {
+    private static final int FRAMES = 200;
+    private static final int MEASURED_RUNS = 5;
+
+    @Test
+    public void strategyComparedToMultiFormat() throws Exception {
+        byte[] code = TestFrames.plane("voucher", 150, false);
+        byte[] empty = TestFrames.empty();
+
+        MultiFormatReader multiFormat = new MultiFormatReader();
+        DecodeStrategy strategy = new DecodeStrategy();
+        QRCodeReader reader = new QRCodeReader();
+        for (byte[] plane : new byte[][]{code, empty}) {
+            String label = plane == code ? "code" : "empty";
+            LuminanceSource packed = new PlanarYUVLuminanceSource(plane, TestFrames.ROW_STRIDE,
+                    TestFrames.HEIGHT, 0, 0, TestFrames.WIDTH, TestFrames.HEIGHT, false);
+            LuminanceSource source = new PlaneLuminanceSource(plane, 0, TestFrames.ROW_STRIDE,
+                    0, 0, TestFrames.WIDTH, TestFrames.HEIGHT);
+
+            double before = perSecond(() -> {
+                boolean found;
+                try {
+                    found = multiFormat.decode(new BinaryBitmap(new HybridBinarizer(packed))) != null;
+                } catch (ReaderException e) {
+                    found = false;
+                }
+                assertEquals(plane == code, found);
+            });
+            double after = perSecond(() ->
+                    assertEquals(plane == code, strategy.decode(source, reader) != null));
+            System.out.printf("%s: multi-format %.0f frames/s, strategy %.0f frames/s%n",
+                    label, before, after);
+        }
+    }
+
+    // Median run, so a single GC does not skew it
+    private static double perSecond(Runnable frame) {
+        for (int i = 0; i < FRAMES; i++) {
+            frame.run();
+        }
+        long[] nanos = new long[MEASURED_RUNS];
+        for (int run = 0; run < MEASURED_RUNS; run++) {
+            long started = System.nanoTime();
+            for (int i = 0; i < FRAMES; i++) {
+                frame.run();
+            }
+            nanos[run] = System.nanoTime() - started;
+        }
+        Arrays.sort(nanos);
+        return FRAMES * 1e9 / nanos[MEASURED_RUNS / 2];
+    }
+}
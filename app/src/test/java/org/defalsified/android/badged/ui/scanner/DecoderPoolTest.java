@@ -0,0 +1,103 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frames decoded by several workers come out in order, each code once
+ */
+public class DecoderPoolTest {
+    private static final long FRAME_NANOS = 33_333_333L;
+    private static final long TIMEOUT_MILLIS = 10_000;
+    private static final int[] FULL_FRAME = {0, 0, TestFrames.WIDTH, TestFrames.HEIGHT};
+
+    private final List<String> found = Collections.synchronizedList(new ArrayList<>());
+    private final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+    private final AnalysisScheduler scheduler = new AnalysisScheduler(level -> {});
+    private DecoderPool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void workersDeliverEachCodeOnceInFrameOrder() throws Exception {
+        pool = new DecoderPool(3, scheduler, text -> {
+            found.add(text);
+            threads.add(Thread.currentThread());
+        });
+        ByteBuffer first = ByteBuffer.wrap(TestFrames.plane("first", 150, false));
+        ByteBuffer second = ByteBuffer.wrap(TestFrames.plane("second", 150, true));
+
+        for (ByteBuffer plane : new ByteBuffer[]{first, second}) {
+            for (int dispatched = 0; dispatched < 12; ) {
+                // A busy pool drops the frame; the camera would send the next
+                if (dispatch(plane, System.nanoTime())) {
+                    dispatched++;
+                } else {
+                    Thread.sleep(1);
+                }
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (found.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Let any late duplicate show up
+        Thread.sleep(200);
+
+        assertEquals(Arrays.asList("first", "second"), found);
+        assertNotSame(Thread.currentThread(), threads.get(0));
+    }
+
+    @Test
+    public void singleWorkerDecodesOnTheCallingThread() throws Exception {
+        pool = new DecoderPool(1, scheduler, text -> {
+            found.add(text);
+            threads.add(Thread.currentThread());
+        });
+
+        assertTrue(dispatch(ByteBuffer.wrap(TestFrames.plane("inline", 150, false)), FRAME_NANOS));
+        assertEquals(Arrays.asList("inline"), found);
+        assertSame(Thread.currentThread(), threads.get(0));
+    }
+
+    @Test
+    public void badRegionSkipsTheFrameOnly() throws Exception {
+        pool = new DecoderPool(2, scheduler, found::add);
+        ByteBuffer plane = ByteBuffer.wrap(TestFrames.plane("after", 150, false));
+
+        try {
+            pool.dispatch(plane, TestFrames.ROW_STRIDE, 1, TestFrames.WIDTH, TestFrames.HEIGHT,
+                    new int[]{600, 0, 100, 100}, FRAME_NANOS);
+            fail("Region outside the frame accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // The skipped frame holds nothing back
+        assertTrue(dispatch(plane, 2 * FRAME_NANOS));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (found.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("after"), found);
+    }
+
+    private boolean dispatch(ByteBuffer plane, long timestamp) {
+        return pool.dispatch(plane, TestFrames.ROW_STRIDE, 1, TestFrames.WIDTH, TestFrames.HEIGHT,
+                FULL_FRAME, timestamp);
+    }
+}
@@ -0,0 +1,168 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Bytes allocated per camera frame on the way to a luminance matrix
+ *
+ * Feeds padded Y planes, as a camera delivers them, through the copy the
+ * analyzer used to make and through {@link LuminanceBuffer}, counting the
+ * bytes the thread allocates. The pooled path must allocate next to
+ * nothing once warm; the old one allocates about a frame. Binarizing and
+ * decoding are left out, they allocate the same on both paths.
+ */
+public class FrameAllocationBenchmark {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int ROW_STRIDE = 704;
+    private static final int WARMUP_FRAMES = 200;
+    private static final int MEASURED_FRAMES = 1000;
+    // Room for the counter's own boxing, spread over every frame
+    private static final long NEAR_ZERO_BYTES = 64;
+
+    @Test
+    public void pooledPathAllocatesNearlyNothing() throws Exception {
+        Method allocated = allocatedBytes();
+        assumeTrue("No allocation counter on this JVM", allocated != null);
+
+        ByteBuffer[] planes = {plane(true, 1), plane(false, 2)};
+        long[] checksum = new long[1];
+
+        Runnable copied = () -> {
+            for (ByteBuffer plane : planes) {
+                checksum[0] += copiedFrame(plane).getMatrix()[WIDTH + 1];
+            }
+        };
+        Runnable pooled = () -> {
+            for (ByteBuffer plane : planes) {
+                LuminanceBuffer frame = LuminanceBuffer.acquire();
+                try {
+                    LuminanceSource source = frame.wrap(plane, ROW_STRIDE, 1, WIDTH, HEIGHT);
+                    checksum[0] += source.getMatrix()[WIDTH + 1];
+                } finally {
+                    frame.release();
+                }
+            }
+        };
+
+        long copiedBytes = perFrame(allocated, copied);
+        long pooledBytes = perFrame(allocated, pooled);
+        System.out.printf("copied: %d bytes/frame, pooled: %d bytes/frame (%d)%n",
+                copiedBytes, pooledBytes, checksum[0]);
+
+        assertTrue("copied path should allocate a frame, got " + copiedBytes,
+                copiedBytes >= (long) WIDTH * HEIGHT);
+        assertTrue("pooled path allocated " + pooledBytes + " bytes per frame",
+                pooledBytes <= NEAR_ZERO_BYTES);
+    }
+
+    @Test
+    public void paddedPlaneReadsLikePacked() {
+        int[] strides = {WIDTH, ROW_STRIDE};
+        for (int stride : strides) {
+            for (boolean direct : new boolean[]{false, true}) {
+                ByteBuffer plane = plane(stride, direct, 3);
+                byte[] packed = new byte[WIDTH * HEIGHT];
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        packed[y * WIDTH + x] = plane.get(plane.position() + y * stride + x);
+                    }
+                }
+
+                LuminanceBuffer frame = LuminanceBuffer.acquire();
+                try {
+                    LuminanceSource source = frame.wrap(plane, stride, 1, WIDTH, HEIGHT);
+                    String label = "stride " + stride + (direct ? " direct" : " heap");
+                    assertArrayEquals(label, packed, source.getMatrix());
+                    assertEquals(label + " position", 1, plane.position());
+
+                    byte[] row = source.getRow(HEIGHT - 1, null);
+                    for (int x = 0; x < WIDTH; x++) {
+                        assertEquals(packed[(HEIGHT - 1) * WIDTH + x], row[x]);
+                    }
+
+                    LuminanceSource crop = source.crop(10, 20, 100, 50);
+                    byte[] cropped = crop.getMatrix();
+                    for (int y = 0; y < 50; y++) {
+                        for (int x = 0; x < 100; x++) {
+                            assertEquals(packed[(20 + y) * WIDTH + 10 + x], cropped[y * 100 + x]);
+                        }
+                    }
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedPlaneIsRejected() {
+        ByteBuffer plane = ByteBuffer.allocate(ROW_STRIDE * (HEIGHT - 1));
+        LuminanceBuffer.acquire().wrap(plane, ROW_STRIDE, 1, WIDTH, HEIGHT);
+    }
+
+    // What analyze did before: copy the whole plane, padding included
+    private static LuminanceSource copiedFrame(ByteBuffer plane) {
+        ByteBuffer buffer = plane.duplicate();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return new PlanarYUVLuminanceSource(data, ROW_STRIDE, HEIGHT, 0, 0, WIDTH, HEIGHT, false);
+    }
+
+    private static long perFrame(Method allocated, Runnable frames) throws Exception {
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            frames.run();
+        }
+        Object threads = threadBean();
+        long id = Thread.currentThread().getId();
+        long before = (Long) allocated.invoke(threads, id);
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            frames.run();
+        }
+        long after = (Long) allocated.invoke(threads, id);
+        // Two planes per run
+        return (after - before) / (MEASURED_FRAMES * 2L);
+    }
+
+    private static ByteBuffer plane(boolean direct, long seed) {
+        return plane(ROW_STRIDE, direct, seed);
+    }
+
+    // A Y plane as cameras hand it over: padded rows, the last one not padded
+    private static ByteBuffer plane(int stride, boolean direct, long seed) {
+        int size = 1 + (HEIGHT - 1) * stride + WIDTH;
+        ByteBuffer plane = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        plane.put(bytes);
+        // Start one byte in, so an array offset is exercised as well
+        plane.position(1);
+        return plane;
+    }
+
+    // Unit tests compile against android.jar, so the JVM's counter is reached by name
+    private static Method allocatedBytes() {
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return method.getDeclaringClass().isInstance(threadBean()) ? method : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Object threadBean() throws Exception {
+        return Class.forName("java.lang.management.ManagementFactory")
+                .getMethod("getThreadMXBean").invoke(null);
+    }
+}
@@ -0,0 +1,74 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering and de-duplication in {@link FrameMerger}
+ */
+public class FrameMergerTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    private final List<String> found = new ArrayList<>();
+    private final FrameMerger merger = new FrameMerger(found::add, 4);
+
+    @Test
+    public void codesComeOutInFrameOrder() {
+        long first = merger.open();
+        long second = merger.open();
+        long third = merger.open();
+
+        merger.complete(third, 3, "c");
+        merger.complete(second, 2, "b");
+        assertTrue("held back by the first frame", found.isEmpty());
+
+        merger.complete(first, 1, "a");
+        assertEquals(Arrays.asList("a", "b", "c"), found);
+    }
+
+    @Test
+    public void framesWithoutCodesStillReleaseLaterOnes() {
+        long first = merger.open();
+        long second = merger.open();
+
+        merger.complete(second, 2, "b");
+        merger.complete(first, 1, null);
+        assertEquals(Arrays.asList("b"), found);
+    }
+
+    @Test
+    public void codeInViewIsPassedOnOnce() {
+        for (int i = 0; i < 10; i++) {
+            merger.complete(merger.open(), i * SECOND / 10, "voucher");
+        }
+        assertEquals(Arrays.asList("voucher"), found);
+
+        // Each sighting extends the window, so only a gap lets it through
+        merger.complete(merger.open(), 2 * SECOND, "voucher");
+        assertEquals(1, found.size());
+        merger.complete(merger.open(), 5 * SECOND, "voucher");
+        assertEquals(2, found.size());
+
+        // A different code in between ends the run
+        merger.complete(merger.open(), 5 * SECOND + 1, "other");
+        merger.complete(merger.open(), 5 * SECOND + 2, "voucher");
+        assertEquals(Arrays.asList("voucher", "voucher", "other", "voucher"), found);
+    }
+
+    @Test
+    public void openFramesAreBounded() {
+        long first = merger.open();
+        for (int i = 1; i < 4; i++) {
+            merger.complete(merger.open(), i, null);
+        }
+        assertEquals("all wait on the first", -1, merger.open());
+
+        merger.complete(first, 0, null);
+        assertEquals(4, merger.open());
+    }
+}
@@ -0,0 +1,104 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.defalsified.android.badged.ui.scanner.ScanAdmission.State;
+import static org.junit.Assert.*;
+
+/**
+ * States and de-duplication of {@link ScanAdmission}
+ */
+public class ScanAdmissionTest {
+    private static final long COOLDOWN = 2000;
+    private static final long WINDOW = 10000;
+    private static final int THREADS = 8;
+    private static final int OFFERS = 1000;
+
+    private final ScanAdmission admission = new ScanAdmission(COOLDOWN, WINDOW);
+
+    @Test
+    public void scanRunsThroughItsStates() {
+        assertEquals(State.IDLE, admission.state(0));
+        assertFalse(admission.verified());
+
+        assertTrue(admission.admit("first", 100));
+        assertEquals(State.VERIFYING, admission.state(100));
+        assertTrue(admission.isBusy());
+        assertFalse("busy", admission.admit("second", 200));
+
+        assertTrue(admission.verified());
+        assertEquals(State.PERSISTING, admission.state(300));
+        assertFalse("busy", admission.admit("second", 300));
+
+        admission.finish(400);
+        assertFalse(admission.isBusy());
+        assertEquals(State.COOLDOWN, admission.state(400));
+        assertFalse("cooling down", admission.admit("second", 400 + COOLDOWN - 1));
+
+        assertEquals(State.IDLE, admission.state(400 + COOLDOWN));
+        assertTrue(admission.admit("second", 400 + COOLDOWN));
+    }
+
+    @Test
+    public void sameVoucherWaitsOutTheWindow() {
+        assertTrue(admission.admit("voucher", 0));
+        admission.finish(500);
+
+        // Cooled down, but still the voucher just redeemed
+        assertFalse(admission.admit("voucher", 500 + COOLDOWN));
+        assertFalse(admission.admit("voucher", WINDOW - 1));
+        assertTrue(admission.admit("voucher", WINDOW));
+    }
+
+    @Test
+    public void failedScanStillCoolsDown() {
+        assertTrue(admission.admit("unreadable", 0));
+        admission.finish(100);
+        assertFalse(admission.verified());
+        assertEquals(State.COOLDOWN, admission.state(100));
+
+        // Finishing twice changes nothing
+        admission.finish(1000);
+        assertTrue(admission.admit("other", 100 + COOLDOWN));
+    }
+
+    @Test
+    public void exactlyOneRacingOfferWins() throws Exception {
+        AtomicInteger admitted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            String content = "voucher-" + (t % 2);
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < OFFERS; i++) {
+                    if (admission.admit(content, i)) {
+                        admitted.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, admitted.get());
+        assertEquals(State.VERIFYING, admission.state(OFFERS));
+    }
+
+    @Test
+    public void hashTellsContentApart() {
+        assertEquals(ScanAdmission.hash("voucher"), ScanAdmission.hash("voucher"));
+        assertNotEquals(ScanAdmission.hash("voucher-1"), ScanAdmission.hash("voucher-2"));
+        assertNotEquals(ScanAdmission.hash("\u0100"), ScanAdmission.hash("\u0001"));
+    }
+}
@@ -0,0 +1,100 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mapping the on-screen scan box into camera frames
+ */
+public class ScanBoxTest {
+
+    @Test
+    public void sameShapeUprightFrameMapsOneToOne() {
+        ScanBox box = ScanBox.of(1000, 1000, 250, 250, 750, 750);
+        assertRegion(box, 0, 0, 1000, 1000, 0, 0, 250, 250, 500, 500);
+    }
+
+    @Test
+    public void rotationMovesTheCorner() {
+        // Box in the top left corner of the view, as the user sees it
+        ScanBox box = ScanBox.of(400, 300, 0, 0, 100, 100);
+        assertRegion(box, 0, 0, 400, 300, 0, 0, 0, 0, 100, 100);
+        // Sensor held sideways: the top left is the buffer's bottom left
+        assertRegion(box, 0, 0, 300, 400, 90, 0, 0, 300, 100, 100);
+        assertRegion(box, 0, 0, 400, 300, 180, 0, 300, 200, 100, 100);
+        assertRegion(box, 0, 0, 300, 400, 270, 0, 200, 0, 100, 100);
+    }
+
+    @Test
+    public void frameIsScaledToFillTheView() {
+        // Portrait view over a 640x480 sensor frame turned 90 degrees:
+        // the frame's 480 columns are scaled by 3 and cropped to 1080
+        ScanBox box = ScanBox.of(1080, 1920, 290, 710, 790, 1210);
+        int[] region = new int[4];
+        assertTrue(box.map(0, 0, 640, 480, 90, 0, region));
+
+        // Centered box, a 500 pixel square on screen, 167 in the frame
+        assertEquals(320, region[0] + region[2] / 2, 1);
+        assertEquals(240, region[1] + region[3] / 2, 1);
+        assertEquals(168, region[2]);
+        assertEquals(168, region[3]);
+    }
+
+    @Test
+    public void marginIsClippedToTheFrame() {
+        ScanBox box = ScanBox.of(1000, 1000, 0, 400, 200, 600);
+        assertRegion(box, 0, 0, 1000, 1000, 0, 0.5f, 0, 300, 300, 400);
+    }
+
+    @Test
+    public void cropOriginIsAdded() {
+        ScanBox box = ScanBox.of(400, 300, 0, 0, 100, 100);
+        assertRegion(box, 40, 30, 400, 300, 0, 0, 40, 30, 100, 100);
+    }
+
+    @Test
+    public void boxOffTheViewIsNotMapped() {
+        ScanBox box = ScanBox.of(1000, 1000, -200, -200, -100, -100);
+        assertFalse(box.map(0, 0, 1000, 1000, 0, 0, new int[4]));
+        assertNull(ScanBox.of(0, 1000, 0, 0, 10, 10));
+        assertNull(ScanBox.of(1000, 1000, 10, 10, 10, 20));
+    }
+
+    @Test
+    public void codeUnderTheBoxDecodesFromTheRegionAlone() throws Exception {
+        int width = TestFrames.WIDTH;
+        int height = TestFrames.HEIGHT;
+        byte[] bytes = TestFrames.plane("voucher", 150, false);
+
+        ScanBox box = ScanBox.of(1080, 1920, 290, 710, 790, 1210);
+        int[] region = new int[4];
+        assertTrue(box.map(0, 0, width, height, 90, 0.1f, region));
+        assertTrue(region[2] * region[3] < width * height / 4);
+
+        LuminanceBuffer frame = LuminanceBuffer.acquire();
+        try {
+            LuminanceSource source = frame.wrap(ByteBuffer.wrap(bytes), TestFrames.ROW_STRIDE, 1,
+                    width, height, region[0], region[1], region[2], region[3]);
+            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+            assertEquals("voucher", new QRCodeReader().decode(bitmap).getText());
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static void assertRegion(ScanBox box, int cropLeft, int cropTop,
+                                     int cropWidth, int cropHeight, int rotation, float margin,
+                                     int left, int top, int width, int height) {
+        int[] region = new int[4];
+        assertTrue(box.map(cropLeft, cropTop, cropWidth, cropHeight, rotation, margin, region));
+        assertArrayEquals("rotation " + rotation, new int[]{left, top, width, height}, region);
+    }
+}
@@ -0,0 +1,50 @@
+package org.defalsified.android.badged.ui.scanner;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import java.util.Arrays;
+
+/**
+ * Synthetic camera Y planes for scanner tests
+ */
+final class TestFrames {
+    static final int WIDTH = 640;
+    static final int HEIGHT = 480;
+    static final int ROW_STRIDE = 704;
+
+    private TestFrames() {}
+
+    /**
+     * A gray, padded plane with a QR code in its middle
+     *
+     * @param text Content of the code
+     * @param size Side of the code in pixels, quiet zone included
+     * @param inverted Light modules on a dark background
+     */
+    static byte[] plane(String text, int size, boolean inverted) throws WriterException {
+        byte[] bytes = new byte[ROW_STRIDE * HEIGHT];
+        Arrays.fill(bytes, (byte) 0x80);
+        BitMatrix code = new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, size, size);
+        int left = (WIDTH - code.getWidth()) / 2;
+        int top = (HEIGHT - code.getHeight()) / 2;
+        for (int y = 0; y < code.getHeight(); y++) {
+            for (int x = 0; x < code.getWidth(); x++) {
+                boolean dark = code.get(x, y) != inverted;
+                bytes[(top + y) * ROW_STRIDE + left + x] = dark ? (byte) 0x10 : (byte) 0xf0;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * A gray, padded plane with nothing in it
+     */
+    static byte[] empty() {
+        byte[] bytes = new byte[ROW_STRIDE * HEIGHT];
+        Arrays.fill(bytes, (byte) 0x80);
+        return bytes;
+    }
+}